@@ -328,7 +328,7 @@ public class CreateJourneyActivity extends AppCompatActivity {
             createJourneyInDatabase(journey);
         } else {
             // Upload images first, then create journey
-            journeyController.uploadJourneyImages(journey, selectedImageUris)
+            journeyController.uploadJourneyImages(this, journey, selectedImageUris)
                     .addOnSuccessListener(updatedJourney -> {
                         createJourneyInDatabase(updatedJourney);
                     })
@@ -344,6 +344,10 @@ public class CreateJourneyActivity extends AppCompatActivity {
         journeyController.createJourney(journey)
                 .addOnSuccessListener(documentReference -> {
                     Log.d(TAG, "Journey created successfully");
+
+                    // Compute distance and speed once, so lists never have to load the track
+                    journeyController.refreshJourneyStats(journey)
+                            .addOnFailureListener(e -> Log.e(TAG, "Failed to compute journey stats", e));
                     Toast.makeText(this, "Journey created successfully!", Toast.LENGTH_SHORT).show();
 
                     // Clear form data
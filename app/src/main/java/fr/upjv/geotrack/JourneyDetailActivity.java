@@ -5,8 +5,10 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.graphics.Rect;
+import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -31,17 +33,17 @@ import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
 import com.google.android.gms.maps.model.PolylineOptions;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -49,14 +51,24 @@ import java.util.Locale;
 import fr.upjv.geotrack.adapters.PhotoSliderAdapter;
 import fr.upjv.geotrack.controllers.UserController;
 import fr.upjv.geotrack.controllers.LocalisationController;
+import fr.upjv.geotrack.controllers.JourneyController;
 import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.JourneyStats;
 import fr.upjv.geotrack.models.User;
 import fr.upjv.geotrack.models.Localisation;
+import fr.upjv.geotrack.models.Track;
+import fr.upjv.geotrack.utils.ExportJobManager;
 import fr.upjv.geotrack.utils.GPXExporter;
+import fr.upjv.geotrack.utils.DownloadUrlCache;
+import fr.upjv.geotrack.utils.TrackCache;
+import fr.upjv.geotrack.utils.TrackSimplifier;
+import fr.upjv.geotrack.utils.TrackWriter;
 
 public class JourneyDetailActivity extends AppCompatActivity implements PhotoSliderAdapter.OnPhotoClickListener, PhotoSliderAdapter.OnPhotoChangeListener, OnMapReadyCallback {
 
     private static final String TAG = "JourneyDetailActivity";
+    // Polylines above this size are reduced with Visvalingam-Whyatt before rendering
+    private static final int MAX_MAP_POINTS = 1000;
 
     // Intent extras
     public static final String EXTRA_JOURNEY_ID = "journey_id";
@@ -96,14 +108,63 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
 
     // Data
     private static final int PERMISSION_REQUEST_WRITE_STORAGE = 1001;
+    // Export formats offered to the user, compact ones suit sharing long journeys
+    private static final String[] EXPORT_FORMATS = {
+            TrackWriter.FORMAT_GPX,
+            TrackWriter.FORMAT_KML,
+            TrackWriter.FORMAT_GPX_GZIP,
+            TrackWriter.FORMAT_GEOJSON,
+            TrackWriter.FORMAT_POLYLINE,
+            TrackWriter.FORMAT_BINARY
+    };
+    private static final String[] EXPORT_FORMAT_LABELS = {
+            "GPX (GPS apps)",
+            "KML (Google Earth)",
+            "Compressed GPX (.gpx.gz)",
+            "GeoJSON",
+            "Encoded polyline",
+            "GeoTrack binary (.gtrk)"
+    };
     private Journey journey;
     private UserController userController;
     private LocalisationController localisationController;
+    private JourneyController journeyController;
     private FirebaseFirestore db;
-    private FirebaseStorage storage;
     private PhotoSliderAdapter photoSliderAdapter;
     private List<String> photoUrls;
-    private List<Localisation> journeyLocalisations;
+    private Track journeyTrack;
+    private boolean isTrackLoading = false;
+    // Pages loaded within the same frame are drawn once
+    private boolean mapRedrawScheduled = false;
+    private final Choreographer.FrameCallback mapRedrawCallback = frameTimeNanos -> {
+        mapRedrawScheduled = false;
+        if (googleMap != null && !isFinishing() && !isDestroyed()) {
+            updateMapWithLocalisations();
+        }
+    };
+    // Export running in the background, kept across configuration changes
+    private static final String STATE_EXPORT_JOB_KEY = "export_job_key";
+    private static final String STATE_EXPORT_JOB_FORMAT = "export_job_format";
+    private static final String STATE_EXPORT_JOB_DESTINATION = "export_job_destination";
+    private String exportJobKey;
+    private String exportJobFormat;
+    private int exportJobDestination;
+    private AlertDialog exportProgressDialog;
+    private final ExportJobManager.ExportListener exportListener = new ExportJobManager.ExportListener() {
+        @Override
+        public void onProgress(int writtenPoints) {
+            if (exportProgressDialog != null && writtenPoints > 0) {
+                exportProgressDialog.setMessage(writtenPoints + " points written...");
+            }
+        }
+
+        @Override
+        public void onExportFinished(GPXExporter.ExportResult result) {
+            onExportJobFinished(result);
+        }
+    };
+    private Polyline routePolyline;
+    private Marker endMarker;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -111,11 +172,11 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
         setContentView(R.layout.activity_journey_detail);
 
         db = FirebaseFirestore.getInstance();
-        storage = FirebaseStorage.getInstance();
         userController = new UserController(TAG, this);
         localisationController = new LocalisationController();
+        journeyController = new JourneyController();
         photoUrls = new ArrayList<>();
-        journeyLocalisations = new ArrayList<>();
+        journeyTrack = new Track(null, null);
 
         initializeViews();
         initializeMap(); // CHANGEMENT ICI - Suppression du paramètre savedInstanceState
@@ -127,6 +188,44 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
             loadJourneyPhotos();
             loadJourneyLocalisations();
         }
+
+        if (savedInstanceState != null && savedInstanceState.getString(STATE_EXPORT_JOB_KEY) != null) {
+            // An export started before the configuration change may still be running
+            exportJobKey = savedInstanceState.getString(STATE_EXPORT_JOB_KEY);
+            exportJobFormat = savedInstanceState.getString(STATE_EXPORT_JOB_FORMAT);
+            exportJobDestination = savedInstanceState.getInt(STATE_EXPORT_JOB_DESTINATION);
+            showExportProgressDialog();
+            if (!ExportJobManager.getInstance(this).observe(exportJobKey, exportListener)) {
+                dismissExportProgressDialog();
+                exportJobKey = null;
+            }
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (exportJobKey != null) {
+            outState.putString(STATE_EXPORT_JOB_KEY, exportJobKey);
+            outState.putString(STATE_EXPORT_JOB_FORMAT, exportJobFormat);
+            outState.putInt(STATE_EXPORT_JOB_DESTINATION, exportJobDestination);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        Choreographer.getInstance().removeFrameCallback(mapRedrawCallback);
+        // The export keeps running, a recreated activity attaches to it again
+        if (exportJobKey != null) {
+            ExportJobManager manager = ExportJobManager.getInstance(this);
+            manager.removeListener(exportJobKey, exportListener);
+            if (isFinishing() && exportJobDestination == ExportJobManager.DESTINATION_SHARE) {
+                // Nobody is left to share the file
+                manager.cancel(exportJobKey);
+            }
+        }
+        dismissExportProgressDialog();
     }
 
     private void initializeViews() {
@@ -190,14 +289,13 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
     }
 
     private void centerMapOnRoute() {
-        if (googleMap != null && !journeyLocalisations.isEmpty()) {
-            LatLngBounds.Builder boundsBuilder = new LatLngBounds.Builder();
-            for (Localisation location : journeyLocalisations) {
-                boundsBuilder.include(new LatLng(location.getLatitude(), location.getLongitude()));
-            }
+        if (googleMap != null && !journeyTrack.isEmpty()) {
+            double[] trackBounds = journeyTrack.getBounds();
 
             try {
-                LatLngBounds bounds = boundsBuilder.build();
+                LatLngBounds bounds = new LatLngBounds(
+                        new LatLng(trackBounds[0], trackBounds[1]),
+                        new LatLng(trackBounds[2], trackBounds[3]));
                 int padding = 100;
                 googleMap.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, padding));
             } catch (Exception e) {
@@ -219,7 +317,7 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
 
         googleMap.moveCamera(CameraUpdateFactory.newLatLngZoom(new LatLng(49.8941, 2.2956), 10));
 
-        if (!journeyLocalisations.isEmpty()) {
+        if (!journeyTrack.isEmpty()) {
             updateMapWithLocalisations();
         } else {
             updateMapUI();
@@ -242,58 +340,72 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
     }
 
     private void updateMapWithLocalisations() {
-        if (googleMap == null || journeyLocalisations.isEmpty()) {
+        if (googleMap == null || journeyTrack.isEmpty()) {
             updateMapUI();
             return;
         }
 
         try {
-            googleMap.clear();
+            Track mapTrack = TrackSimplifier.simplifyToCount(journeyTrack, MAX_MAP_POINTS);
+            int last = mapTrack.size() - 1;
 
-            List<Localisation> sortedLocalisations = new ArrayList<>(journeyLocalisations);
-            Collections.sort(sortedLocalisations, new Comparator<Localisation>() {
-                @Override
-                public int compare(Localisation l1, Localisation l2) {
-                    return l1.getTimestamp().compareTo(l2.getTimestamp());
+            List<LatLng> points = new ArrayList<>(mapTrack.size());
+            for (int i = 0; i <= last; i++) {
+                points.add(new LatLng(mapTrack.getLatitude(i), mapTrack.getLongitude(i)));
+            }
+
+            if (routePolyline != null) {
+                // Route already drawn from earlier pages: extend it in place without moving the camera
+                routePolyline.setPoints(points);
+                if (last > 0) {
+                    String endSnippet = formatTimestamp(new Date(mapTrack.getTimestamp(last)));
+                    if (endMarker != null) {
+                        endMarker.setPosition(points.get(last));
+                        endMarker.setSnippet(endSnippet);
+                    } else {
+                        endMarker = googleMap.addMarker(new MarkerOptions()
+                                .position(points.get(last))
+                                .title("Journey End")
+                                .snippet(endSnippet)
+                                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_RED)));
+                    }
                 }
-            });
+                Log.d(TAG, "Map route extended to " + mapTrack.size() + " locations");
+                updateMapUI();
+                return;
+            }
+
+            googleMap.clear();
 
             PolylineOptions polylineOptions = new PolylineOptions()
                     .color(Color.parseColor("#6C5CE7"))
                     .width(8f)
-                    .geodesic(true);
-
-            LatLngBounds.Builder boundsBuilder = new LatLngBounds.Builder();
-
-            for (int i = 0; i < sortedLocalisations.size(); i++) {
-                Localisation location = sortedLocalisations.get(i);
-                LatLng latLng = new LatLng(location.getLatitude(), location.getLongitude());
-
-                polylineOptions.add(latLng);
-                boundsBuilder.include(latLng);
-
-                if (i == 0) {
-                    googleMap.addMarker(new MarkerOptions()
-                            .position(latLng)
-                            .title("Journey Start")
-                            .snippet(formatTimestamp(location.getTimestamp()))
-                            .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_GREEN)));
-                } else if (i == sortedLocalisations.size() - 1) {
-                    googleMap.addMarker(new MarkerOptions()
-                            .position(latLng)
-                            .title("Journey End")
-                            .snippet(formatTimestamp(location.getTimestamp()))
-                            .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_RED)));
-                }
+                    .geodesic(true)
+                    .addAll(points);
+
+            googleMap.addMarker(new MarkerOptions()
+                    .position(points.get(0))
+                    .title("Journey Start")
+                    .snippet(formatTimestamp(new Date(mapTrack.getTimestamp(0))))
+                    .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_GREEN)));
+            if (last > 0) {
+                endMarker = googleMap.addMarker(new MarkerOptions()
+                        .position(points.get(last))
+                        .title("Journey End")
+                        .snippet(formatTimestamp(new Date(mapTrack.getTimestamp(last))))
+                        .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_RED)));
             }
 
-            googleMap.addPolyline(polylineOptions);
+            routePolyline = googleMap.addPolyline(polylineOptions);
 
-            LatLngBounds bounds = boundsBuilder.build();
+            double[] trackBounds = mapTrack.getBounds();
+            LatLngBounds bounds = new LatLngBounds(
+                    new LatLng(trackBounds[0], trackBounds[1]),
+                    new LatLng(trackBounds[2], trackBounds[3]));
             int padding = 100;
             googleMap.moveCamera(CameraUpdateFactory.newLatLngBounds(bounds, padding));
 
-            Log.d(TAG, "Map updated with " + sortedLocalisations.size() + " locations");
+            Log.d(TAG, "Map updated with " + mapTrack.size() + " locations");
 
         } catch (Exception e) {
             Log.e(TAG, "Error updating map with locations", e);
@@ -303,13 +415,13 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
     }
 
     private void updateMapUI() {
-        boolean hasLocalisations = !journeyLocalisations.isEmpty();
+        boolean hasLocalisations = !journeyTrack.isEmpty();
 
         if (mapLoadingOverlay != null) {
-            mapLoadingOverlay.setVisibility(View.GONE);
+            mapLoadingOverlay.setVisibility(isTrackLoading && !hasLocalisations ? View.VISIBLE : View.GONE);
         }
         if (mapNoDataOverlay != null) {
-            mapNoDataOverlay.setVisibility(hasLocalisations ? View.GONE : View.VISIBLE);
+            mapNoDataOverlay.setVisibility(hasLocalisations || isTrackLoading ? View.GONE : View.VISIBLE);
         }
         if (mapControls != null) {
             mapControls.setVisibility(hasLocalisations ? View.VISIBLE : View.GONE);
@@ -375,52 +487,106 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
         }
 
         Log.d(TAG, "Loading localisations for journey: " + journey.getId());
+        isTrackLoading = true;
 
-        localisationController.getLocalisationsForJourney(journey)
-                .addOnSuccessListener(localisations -> {
-                    Log.d(TAG, "Localisations loaded successfully: " + localisations.size());
-                    journeyLocalisations.clear();
-                    journeyLocalisations.addAll(localisations);
-                    updateLocalisationUI();
+        if (!TrackCache.isCacheable(journey)) {
+            streamJourneyTrack();
+            return;
+        }
+
+        // Completed journeys no longer change, try the on-disk copy before Firestore
+        TrackCache.getInstance(this).get(journey)
+                .addOnCompleteListener(task -> {
+                    if (isFinishing() || isDestroyed()) {
+                        return;
+                    }
+                    Track cached = task.isSuccessful() ? task.getResult() : null;
+                    if (cached == null) {
+                        streamJourneyTrack();
+                        return;
+                    }
 
+                    Log.d(TAG, "Localisations loaded from cache: " + cached.size() + " points");
+                    journeyTrack = cached;
+                    isTrackLoading = false;
+                    updateLocalisationUI();
                     if (googleMap != null) {
                         updateMapWithLocalisations();
-                    } else {
-                        Log.d(TAG, "Google map not ready yet, localisations will be displayed when map is ready");
                     }
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Failed to load localizations", e);
-                    Toast.makeText(this, "Failed to load journey locations", Toast.LENGTH_SHORT).show();
-                    updateLocalisationUI();
                     updateMapUI();
                 });
     }
 
+    private void streamJourneyTrack() {
+        journeyTrack = new Track(journey.getUserUUID(), journey.getId());
+        // Stream the route page by page so drawing starts after the first page
+        localisationController.loadTrackForJourney(journey,
+                new LocalisationController.TrackPageCallback() {
+                    @Override
+                    public boolean onPageLoaded(Track page) {
+                        if (isFinishing() || isDestroyed()) {
+                            return false;
+                        }
+
+                        journeyTrack.addAll(page);
+                        updateLocalisationUI();
+
+                        if (googleMap != null) {
+                            scheduleMapRedraw();
+                        } else {
+                            Log.d(TAG, "Google map not ready yet, localisations will be displayed when map is ready");
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public void onComplete(int totalPoints) {
+                        Log.d(TAG, "Localisations loaded successfully: " + journeyTrack.size() + " kept out of " + totalPoints);
+                        isTrackLoading = false;
+                        if (TrackCache.isCacheable(journey) && !journeyTrack.isEmpty()) {
+                            TrackCache.getInstance(JourneyDetailActivity.this).put(journey, journeyTrack)
+                                    .addOnFailureListener(e -> Log.w(TAG, "Failed to cache journey track", e));
+                        }
+                        updateLocalisationUI();
+                        updateMapUI();
+                    }
+
+                    @Override
+                    public void onFailure(String error) {
+                        Log.e(TAG, "Failed to load localizations: " + error);
+                        isTrackLoading = false;
+                        Toast.makeText(JourneyDetailActivity.this, "Failed to load journey locations", Toast.LENGTH_SHORT).show();
+                        updateLocalisationUI();
+                        updateMapUI();
+                    }
+                });
+    }
+
+    private void scheduleMapRedraw() {
+        if (!mapRedrawScheduled) {
+            mapRedrawScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mapRedrawCallback);
+        }
+    }
+
     private void updateLocalisationUI() {
         if (localisationCount != null) {
-            int count = journeyLocalisations.size();
+            int count = journeyTrack.size();
             String countText = count == 0 ? "No locations recorded" :
                     count == 1 ? "1 location recorded" :
                             count + " locations recorded";
             localisationCount.setText(countText);
         }
 
-        if (localisationRange != null && !journeyLocalisations.isEmpty()) {
-            double minLat = Double.MAX_VALUE;
-            double maxLat = Double.MIN_VALUE;
-            double minLng = Double.MAX_VALUE;
-            double maxLng = Double.MIN_VALUE;
-
-            for (Localisation loc : journeyLocalisations) {
-                minLat = Math.min(minLat, loc.getLatitude());
-                maxLat = Math.max(maxLat, loc.getLatitude());
-                minLng = Math.min(minLng, loc.getLongitude());
-                maxLng = Math.max(maxLng, loc.getLongitude());
-            }
-
-            double latRange = maxLat - minLat;
-            double lngRange = maxLng - minLng;
+        if (localisationRange != null && journey != null && journey.hasStats()) {
+            JourneyStats stats = journey.getStats();
+            String rangeText = "Distance: " + stats.formatDistance() + " (" + stats.formatSpeeds() + ")";
+            localisationRange.setText(rangeText);
+            localisationRange.setVisibility(View.VISIBLE);
+        } else if (localisationRange != null && !journeyTrack.isEmpty()) {
+            double[] bounds = journeyTrack.getBounds();
+            double latRange = bounds[2] - bounds[0];
+            double lngRange = bounds[3] - bounds[1];
             double approximateDistance = Math.sqrt(latRange * latRange + lngRange * lngRange) * 111;
 
             String rangeText = String.format(Locale.getDefault(), "Coverage: %.1f km range", approximateDistance);
@@ -431,12 +597,36 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
         }
     }
 
+    /**
+     * Compute missing or outdated stats for the owner's journey. Only the fixes recorded
+     * since the last computation are read, and the result is stored on the journey document.
+     */
+    private void updateJourneyStats() {
+        FirebaseUser currentUser = FirebaseAuth.getInstance().getCurrentUser();
+        if (currentUser == null || !currentUser.getUid().equals(journey.getUserUUID())) {
+            updateLocalisationUI();
+            return;
+        }
+        if (journey.getStats() != null && !journey.getStats().isStale(journey)) {
+            updateLocalisationUI();
+            return;
+        }
+
+        journeyController.refreshJourneyStats(journey)
+                .addOnSuccessListener(stats -> {
+                    if (!isFinishing() && !isDestroyed()) {
+                        updateLocalisationUI();
+                    }
+                })
+                .addOnFailureListener(e -> Log.e(TAG, "Failed to refresh journey stats", e));
+    }
+
     public List<Localisation> getJourneyLocalisations() {
-        return new ArrayList<>(journeyLocalisations);
+        return journeyTrack.toLocalisations();
     }
 
     public boolean hasLocalisations() {
-        return !journeyLocalisations.isEmpty();
+        return !journeyTrack.isEmpty();
     }
 
     private void loadJourneyPhotos() {
@@ -451,6 +641,9 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
                 .addOnCompleteListener(task -> {
                     if (task.isSuccessful() && task.getResult() != null && !task.getResult().isEmpty()) {
                         QueryDocumentSnapshot document = (QueryDocumentSnapshot) task.getResult().getDocuments().get(0);
+                        journey.setStats(JourneyStats.fromJson(document.get("stats")));
+                        updateJourneyStats();
+
                         Object imagePathsObj = document.get("imagePaths");
                         List<String> imagePaths = new ArrayList<>();
 
@@ -485,39 +678,15 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
             return;
         }
 
-        photoUrls.clear();
-        final int totalPaths = imagePaths.size();
-        final int[] completedCount = {0};
-
-        for (String imagePath : imagePaths) {
-            if (imagePath == null || imagePath.trim().isEmpty()) {
-                completedCount[0]++;
-                if (completedCount[0] == totalPaths) {
-                    runOnUiThread(this::updatePhotosUI);
-                }
-                continue;
-            }
-
-            String cleanPath = imagePath.startsWith("/") ? imagePath.substring(1) : imagePath;
-            StorageReference imageRef = storage.getReference().child(cleanPath);
-
-            imageRef.getDownloadUrl()
-                    .addOnSuccessListener(uri -> {
-                        synchronized (photoUrls) {
-                            photoUrls.add(uri.toString());
-                        }
-                        completedCount[0]++;
-                        if (completedCount[0] == totalPaths) {
-                            runOnUiThread(this::updatePhotosUI);
-                        }
-                    })
-                    .addOnFailureListener(exception -> {
-                        completedCount[0]++;
-                        if (completedCount[0] == totalPaths) {
-                            runOnUiThread(this::updatePhotosUI);
-                        }
-                    });
-        }
+        // Cached URLs resolve immediately, the others are looked up once and kept in order
+        DownloadUrlCache.getInstance(this).getAll(imagePaths)
+                .addOnSuccessListener(uris -> {
+                    photoUrls.clear();
+                    for (Uri uri : uris) {
+                        photoUrls.add(uri.toString());
+                    }
+                    updatePhotosUI();
+                });
     }
 
     private void updatePhotosUI() {
@@ -745,17 +914,16 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
     }
 
     private void showExportDialog() {
-        if (journeyLocalisations.isEmpty()) {
+        // While the track is still loading, the export pages it in from Firestore itself
+        if (!isTrackLoading && journeyTrack.isEmpty()) {
             Toast.makeText(this, "No location data to export", Toast.LENGTH_SHORT).show();
             return;
         }
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        builder.setTitle("Export Journey")
-                .setMessage("Choose the export format for your journey:")
-                .setPositiveButton("GPX Format", (dialog, which) -> checkPermissionAndExport("gpx"))
-                .setNegativeButton("KML Format", (dialog, which) -> checkPermissionAndExport("kml"))
-                .setNeutralButton("Cancel", null)
+        builder.setTitle("Choose the export format")
+                .setItems(EXPORT_FORMAT_LABELS, (dialog, which) -> checkPermissionAndExport(EXPORT_FORMATS[which]))
+                .setNegativeButton("Cancel", null)
                 .show();
     }
 
@@ -784,35 +952,66 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
     private String pendingExportFormat;
 
     private void performExport(String format) {
-        if (journey == null || journeyLocalisations.isEmpty()) {
+        if (journey == null || (!isTrackLoading && journeyTrack.isEmpty())) {
             Toast.makeText(this, "No data to export", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        // Show progress dialog
-        AlertDialog progressDialog = new AlertDialog.Builder(this)
-                .setTitle("Exporting Journey")
-                .setMessage("Please wait while we export your journey...")
+        startExportJob(format, ExportJobManager.DESTINATION_DOWNLOADS);
+    }
+
+    // Run the export in the background; the job pages the full-resolution track in itself
+    private void startExportJob(String format, int destination) {
+        if (exportJobKey != null) {
+            Toast.makeText(this, "An export is already in progress", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        exportJobFormat = format;
+        exportJobDestination = destination;
+        showExportProgressDialog();
+        exportJobKey = ExportJobManager.getInstance(this)
+                .submit(journey, isTrackLoading ? null : journeyTrack, format, destination, exportListener);
+    }
+
+    private void showExportProgressDialog() {
+        boolean sharing = exportJobDestination == ExportJobManager.DESTINATION_SHARE;
+        exportProgressDialog = new AlertDialog.Builder(this)
+                .setTitle(sharing ? "Preparing to Share" : "Exporting Journey")
+                .setMessage(sharing ? "Please wait while we prepare your journey for sharing..."
+                        : "Please wait while we export your journey...")
                 .setCancelable(false)
+                .setNegativeButton("Cancel", (dialog, which) -> {
+                    if (exportJobKey != null) {
+                        ExportJobManager.getInstance(this).cancel(exportJobKey);
+                    }
+                })
+                // The result is still shown once the job is done
+                .setPositiveButton("Hide", null)
                 .create();
-        progressDialog.show();
-
-        // Perform export in background thread
-        new Thread(() -> {
-            GPXExporter.ExportResult result;
+        exportProgressDialog.show();
+    }
 
-            if ("gpx".equals(format)) {
-                result = GPXExporter.exportToGPX(this, journey, journeyLocalisations);
-            } else {
-                result = GPXExporter.exportToKML(this, journey, journeyLocalisations);
-            }
+    private void dismissExportProgressDialog() {
+        if (exportProgressDialog != null) {
+            exportProgressDialog.dismiss();
+            exportProgressDialog = null;
+        }
+    }
 
-            // Return to main thread to show result
-            runOnUiThread(() -> {
-                progressDialog.dismiss();
-                showExportResult(result, format.toUpperCase());
-            });
-        }).start();
+    private void onExportJobFinished(GPXExporter.ExportResult result) {
+        dismissExportProgressDialog();
+        exportJobKey = null;
+        if (ExportJobManager.isCancelled(result)) {
+            Toast.makeText(this, "Export cancelled", Toast.LENGTH_SHORT).show();
+        } else if (exportJobDestination == ExportJobManager.DESTINATION_DOWNLOADS) {
+            showExportResult(result, exportJobFormat.toUpperCase());
+        } else if (result.success) {
+            shareFile(result.filePath, exportJobFormat.toUpperCase());
+        } else {
+            Toast.makeText(this, "Failed to prepare file for sharing: " + result.errorMessage,
+                    Toast.LENGTH_LONG).show();
+        }
     }
 
     private void showExportResult(GPXExporter.ExportResult result, String format) {
@@ -851,55 +1050,25 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
     }
 
     private void showShareDialog() {
-        if (journeyLocalisations.isEmpty()) {
+        if (!isTrackLoading && journeyTrack.isEmpty()) {
             Toast.makeText(this, "No location data to share", Toast.LENGTH_SHORT).show();
             return;
         }
 
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        builder.setTitle("Share Journey")
-                .setMessage("Choose the format to share your journey:")
-                .setPositiveButton("Share GPX", (dialog, which) -> shareJourney("gpx"))
-                .setNegativeButton("Share KML", (dialog, which) -> shareJourney("kml"))
-                .setNeutralButton("Cancel", null)
+        builder.setTitle("Choose the format to share")
+                .setItems(EXPORT_FORMAT_LABELS, (dialog, which) -> shareJourney(EXPORT_FORMATS[which]))
+                .setNegativeButton("Cancel", null)
                 .show();
     }
 
     private void shareJourney(String format) {
-        if (journey == null || journeyLocalisations.isEmpty()) {
+        if (journey == null || (!isTrackLoading && journeyTrack.isEmpty())) {
             Toast.makeText(this, "No data to share", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        // Show progress dialog
-        AlertDialog progressDialog = new AlertDialog.Builder(this)
-                .setTitle("Preparing to Share")
-                .setMessage("Please wait while we prepare your journey for sharing...")
-                .setCancelable(false)
-                .create();
-        progressDialog.show();
-
-        // Perform export in background thread
-        new Thread(() -> {
-            GPXExporter.ExportResult result;
-
-            if ("gpx".equals(format)) {
-                result = GPXExporter.exportToGPX(this, journey, journeyLocalisations);
-            } else {
-                result = GPXExporter.exportToKML(this, journey, journeyLocalisations);
-            }
-
-            // Return to main thread to share result
-            runOnUiThread(() -> {
-                progressDialog.dismiss();
-                if (result.success) {
-                    shareFile(result.filePath, format.toUpperCase());
-                } else {
-                    Toast.makeText(this, "Failed to prepare file for sharing: " + result.errorMessage,
-                            Toast.LENGTH_LONG).show();
-                }
-            });
-        }).start();
+        startExportJob(format, ExportJobManager.DESTINATION_SHARE);
     }
 
     private void shareFile(String filePath, String format) {
@@ -965,23 +1134,12 @@ public class JourneyDetailActivity extends AppCompatActivity implements PhotoSli
         }
 
         body.append("Journey details:\n");
-        body.append("• ").append(journeyLocalisations.size()).append(" location points recorded\n");
-
-        if (!journeyLocalisations.isEmpty()) {
-            double minLat = Double.MAX_VALUE;
-            double maxLat = Double.MIN_VALUE;
-            double minLng = Double.MAX_VALUE;
-            double maxLng = Double.MIN_VALUE;
-
-            for (Localisation loc : journeyLocalisations) {
-                minLat = Math.min(minLat, loc.getLatitude());
-                maxLat = Math.max(maxLat, loc.getLatitude());
-                minLng = Math.min(minLng, loc.getLongitude());
-                maxLng = Math.max(maxLng, loc.getLongitude());
-            }
+        body.append("• ").append(journeyTrack.size()).append(" location points recorded\n");
 
+        if (!journeyTrack.isEmpty()) {
+            double[] bounds = journeyTrack.getBounds();
             double approximateDistance = Math.sqrt(
-                    Math.pow(maxLat - minLat, 2) + Math.pow(maxLng - minLng, 2)
+                    Math.pow(bounds[2] - bounds[0], 2) + Math.pow(bounds[3] - bounds[1], 2)
             ) * 111;
 
             body.append("• Approximate coverage: ").append(String.format(Locale.getDefault(), "%.1f", approximateDistance)).append(" km\n");
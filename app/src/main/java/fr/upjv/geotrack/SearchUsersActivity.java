@@ -26,6 +26,7 @@ import java.util.List;
 
 import fr.upjv.geotrack.adapters.UserSearchAdapter;
 import fr.upjv.geotrack.models.User;
+import fr.upjv.geotrack.utils.UserCache;
 
 public class SearchUsersActivity extends AppCompatActivity {
 
@@ -195,6 +196,7 @@ public class SearchUsersActivity extends AppCompatActivity {
                             }
                         }
                         Log.d(TAG, "Total users added to list after client-side filtering: " + usersAddedToAdapter);
+                        UserCache.getInstance(this).putAll(userList);
                         updateUI(); // Refresh the RecyclerView
                     } else {
                         // Log any Firestore query errors
@@ -19,6 +19,7 @@ import androidx.core.view.WindowInsetsCompat;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.chip.Chip;
 import com.google.android.material.chip.ChipGroup;
+import com.google.android.material.materialswitch.MaterialSwitch;
 import com.google.android.material.slider.Slider;
 
 import fr.upjv.geotrack.services.LocationService;
@@ -28,6 +29,7 @@ public class SettingsActivity extends AppCompatActivity {
     private static final String TAG = "SettingsActivity";
     private static final String PREFS_NAME = "GeoTrackPrefs";
     private static final String KEY_LOCATION_INTERVAL = "location_interval";
+    private static final String KEY_ADAPTIVE_SAMPLING = "adaptive_sampling";
     private static final long DEFAULT_INTERVAL = 5000; // 5 seconds
 
     private LocationService locationService;
@@ -37,6 +39,7 @@ public class SettingsActivity extends AppCompatActivity {
     private Slider sliderInterval;
     private TextView tvIntervalDescription;
     private ChipGroup chipGroupIntervals;
+    private MaterialSwitch switchAdaptiveSampling;
 
     private SharedPreferences preferences;
 
@@ -59,6 +62,9 @@ public class SettingsActivity extends AppCompatActivity {
                 if (locationService != null) {
                     long currentInterval = locationService.getLocationUpdateInterval();
                     updateUIWithInterval(currentInterval);
+                    if (switchAdaptiveSampling != null) {
+                        switchAdaptiveSampling.setChecked(locationService.isAdaptiveSamplingEnabled());
+                    }
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error in onServiceConnected", e);
@@ -94,6 +100,7 @@ public class SettingsActivity extends AppCompatActivity {
             initializeViews();
             setupToolbar();
             setupIntervalControls();
+            setupAdaptiveSamplingControl();
 
             // Load saved interval first (in case service binding fails)
             long savedInterval = preferences.getLong(KEY_LOCATION_INTERVAL, DEFAULT_INTERVAL);
@@ -168,6 +175,7 @@ public class SettingsActivity extends AppCompatActivity {
             sliderInterval = findViewById(R.id.slider_interval);
             tvIntervalDescription = findViewById(R.id.tv_interval_description);
             chipGroupIntervals = findViewById(R.id.chip_group_intervals);
+            switchAdaptiveSampling = findViewById(R.id.switch_adaptive_sampling);
 
             if (sliderInterval == null) {
                 throw new RuntimeException("slider_interval not found in layout");
@@ -277,6 +285,30 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
+    private void setupAdaptiveSamplingControl() {
+        if (switchAdaptiveSampling == null || isDestroyed) {
+            return;
+        }
+
+        try {
+            switchAdaptiveSampling.setChecked(preferences.getBoolean(KEY_ADAPTIVE_SAMPLING, true));
+            switchAdaptiveSampling.setOnCheckedChangeListener((buttonView, isChecked) -> {
+                if (isDestroyed || preferences == null) {
+                    return;
+                }
+                preferences.edit()
+                        .putBoolean(KEY_ADAPTIVE_SAMPLING, isChecked)
+                        .apply();
+
+                if (isServiceBound && locationService != null) {
+                    locationService.setAdaptiveSamplingEnabled(isChecked);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting up adaptive sampling control", e);
+        }
+    }
+
     private void setupChipListeners() {
         try {
             setChipListener(R.id.chip_1sec, 1000);
@@ -462,4 +494,15 @@ public class SettingsActivity extends AppCompatActivity {
             return DEFAULT_INTERVAL;
         }
     }
+
+    // Public method to know if adaptive sampling is enabled (can be called from the location service)
+    public static boolean isAdaptiveSamplingEnabled(Context context) {
+        try {
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            return prefs.getBoolean(KEY_ADAPTIVE_SAMPLING, true);
+        } catch (Exception e) {
+            Log.e("SettingsActivity", "Error getting adaptive sampling setting", e);
+            return true;
+        }
+    }
 }
\ No newline at end of file
@@ -35,6 +35,8 @@ import fr.upjv.geotrack.adapters.JourneyAdapter;
 import fr.upjv.geotrack.controllers.FollowController;
 import fr.upjv.geotrack.controllers.JourneyController;
 import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.JourneyStats;
+import fr.upjv.geotrack.utils.UserCache;
 
 public class UserProfileActivity extends AppCompatActivity implements JourneyAdapter.OnJourneyActionListener {
 
@@ -163,6 +165,8 @@ public class UserProfileActivity extends AppCompatActivity implements JourneyAda
             finish();
             return;
         }
+        // Fresh read, share it with the feed and the map
+        UserCache.getInstance(this).put(UserCache.parseUser(doc));
 
         String displayName = doc.getString("displayName");
         String email = doc.getString("email");
@@ -255,7 +259,9 @@ public class UserProfileActivity extends AppCompatActivity implements JourneyAda
                 return null;
             }
 
-            return new Journey(id, userUUID, start, end, name, description, imagePaths, thumbnailPath);
+            Journey journey = new Journey(id, userUUID, start, end, name, description, imagePaths, thumbnailPath);
+            journey.setStats(JourneyStats.fromJson(doc.get("stats")));
+            return journey;
         } catch (Exception e) {
             Log.e(TAG, "Error creating Journey from document: " + doc.getId(), e);
             return null;
@@ -12,8 +12,6 @@ import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 import androidx.viewpager2.widget.ViewPager2;
 
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
 
@@ -24,12 +22,12 @@ import java.util.Locale;
 
 import fr.upjv.geotrack.R;
 import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.utils.DownloadUrlCache;
 
 public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyViewHolder> {
 
     private List<Journey> journeys;
     private OnJourneyActionListener listener;
-    private FirebaseStorage storage;
 
     public interface OnJourneyActionListener {
         void onJourneyClick(Journey journey);
@@ -40,7 +38,6 @@ public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyV
     public JourneyAdapter(List<Journey> journeys, OnJourneyActionListener listener) {
         this.journeys = journeys;
         this.listener = listener;
-        this.storage = FirebaseStorage.getInstance();
     }
 
     @NonNull
@@ -108,7 +105,12 @@ public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyV
             String endDate = dateFormat.format(journey.getEnd());
             String year = yearFormat.format(journey.getStart());
 
-            journeyDates.setText(startDate + " - " + endDate + ", " + year);
+            String datesText = startDate + " - " + endDate + ", " + year;
+            // Stats are precomputed on the journey document, no need to load the track here
+            if (journey.hasStats()) {
+                datesText += " · " + journey.getStats().formatDistance();
+            }
+            journeyDates.setText(datesText);
 
             // Determine status and set color
             Date now = new Date();
@@ -143,6 +145,9 @@ public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyV
 
         private void setupImageSlider(Journey journey) {
             if (journey.hasImages()) {
+                // Resolve every page up front so swiping does not wait for a URL lookup
+                DownloadUrlCache.getInstance(itemView.getContext()).prefetch(journey.getImagePaths());
+
                 // Create adapter for images
                 imageAdapter = new JourneyImageAdapter(journey.getImagePaths(), this);
                 imageViewPager.setAdapter(imageAdapter);
@@ -204,7 +209,6 @@ public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyV
     public static class JourneyImageAdapter extends RecyclerView.Adapter<JourneyImageAdapter.ImageViewHolder> {
         private List<String> imagePaths;
         private OnImageClickListener clickListener;
-        private FirebaseStorage storage;
 
         public interface OnImageClickListener {
             void onImageClick(String imagePath, int position);
@@ -213,7 +217,6 @@ public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyV
         public JourneyImageAdapter(List<String> imagePaths, OnImageClickListener clickListener) {
             this.imagePaths = imagePaths;
             this.clickListener = clickListener;
-            this.storage = FirebaseStorage.getInstance();
         }
 
         @NonNull
@@ -248,16 +251,18 @@ public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyV
             }
 
             public void bind(String imagePath, int position) {
-                // Get reference to the image in Firebase Storage
-                StorageReference imageRef = storage.getReference(imagePath);
+                // Resolve the download URL through the shared cache
+                DownloadUrlCache urlCache = DownloadUrlCache.getInstance(itemView.getContext());
+                imageView.setTag(imagePath);
 
                 // Load image using Glide with better error handling
-                imageRef.getDownloadUrl()
+                urlCache.get(imagePath)
                         .addOnSuccessListener(uri -> {
-                            // Check if the view is still valid
-                            if (imageView != null && itemView.getContext() != null) {
+                            // Check if the view is still valid and still shows this image
+                            if (imageView != null && itemView.getContext() != null && imagePath.equals(imageView.getTag())) {
                                 Glide.with(itemView.getContext())
                                         .load(uri)
+                                        .listener(urlCache.invalidateOnFailure(imagePath))
                                         .placeholder(R.drawable.ic_journey_placeholder)
                                         .error(R.drawable.ic_journey_placeholder)
                                         .transition(DrawableTransitionOptions.withCrossFade(300))
@@ -267,7 +272,7 @@ public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyV
                         })
                         .addOnFailureListener(e -> {
                             // Load placeholder on failure
-                            if (imageView != null) {
+                            if (imageView != null && imagePath.equals(imageView.getTag())) {
                                 imageView.setImageResource(R.drawable.ic_journey_placeholder);
                             }
                         });
@@ -282,6 +287,7 @@ public class JourneyAdapter extends RecyclerView.Adapter<JourneyAdapter.JourneyV
 
             public void bindPlaceholder() {
                 if (imageView != null) {
+                    imageView.setTag(null);
                     imageView.setImageResource(R.drawable.ic_journey_placeholder);
                 }
                 itemView.setOnClickListener(v -> {
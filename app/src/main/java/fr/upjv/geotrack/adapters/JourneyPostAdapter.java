@@ -8,6 +8,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
@@ -16,23 +17,24 @@ import com.bumptech.glide.load.resource.bitmap.CenterCrop;
 import com.bumptech.glide.load.resource.bitmap.CircleCrop;
 import com.bumptech.glide.load.resource.bitmap.RoundedCorners;
 import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 import fr.upjv.geotrack.R;
 import fr.upjv.geotrack.models.Journey;
 import fr.upjv.geotrack.models.User;
+import fr.upjv.geotrack.utils.DownloadUrlCache;
+import fr.upjv.geotrack.utils.UserCache;
 
 public class JourneyPostAdapter extends RecyclerView.Adapter<JourneyPostAdapter.JourneyPostViewHolder> {
 
     private List<Journey> journeyList;
     private Context context;
     private OnJourneyClickListener listener;
-    private FirebaseStorage storage;
-    private FirebaseFirestore db;
+    private static final int PREFETCH_AHEAD = 5;
+    private DownloadUrlCache urlCache;
 
     public interface OnJourneyClickListener {
         void onJourneyClick(Journey journey);
@@ -44,8 +46,7 @@ public class JourneyPostAdapter extends RecyclerView.Adapter<JourneyPostAdapter.
         this.journeyList = journeyList;
         this.context = context;
         this.listener = listener;
-        this.storage = FirebaseStorage.getInstance();
-        this.db = FirebaseFirestore.getInstance();
+        this.urlCache = DownloadUrlCache.getInstance(context);
     }
 
     @NonNull
@@ -59,6 +60,19 @@ public class JourneyPostAdapter extends RecyclerView.Adapter<JourneyPostAdapter.
     public void onBindViewHolder(@NonNull JourneyPostViewHolder holder, int position) {
         Journey journey = journeyList.get(position);
         holder.bind(journey, position);
+        prefetchThumbnails(position + 1);
+    }
+
+    // Resolve the thumbnails of the next posts so they are ready when scrolled into view
+    private void prefetchThumbnails(int from) {
+        List<String> paths = new ArrayList<>();
+        for (int i = from; i < Math.min(from + PREFETCH_AHEAD, journeyList.size()); i++) {
+            Journey journey = journeyList.get(i);
+            if (journey.hasImages()) {
+                paths.add(journey.getThumbnailPath());
+            }
+        }
+        urlCache.prefetch(paths);
     }
 
     @Override
@@ -66,6 +80,51 @@ public class JourneyPostAdapter extends RecyclerView.Adapter<JourneyPostAdapter.
         return journeyList.size();
     }
 
+    /**
+     * Replace the displayed journeys, only rebinding the posts that were added, moved or changed
+     * @param journeys The new list of journeys
+     */
+    public void submitJourneys(List<Journey> journeys) {
+        List<Journey> oldList = new ArrayList<>(journeyList);
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldList.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return journeys.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return Objects.equals(oldList.get(oldItemPosition).getId(), journeys.get(newItemPosition).getId());
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return sameContent(oldList.get(oldItemPosition), journeys.get(newItemPosition));
+            }
+        });
+
+        journeyList.clear();
+        journeyList.addAll(journeys);
+        diff.dispatchUpdatesTo(this);
+    }
+
+    // Compare what a post displays
+    private static boolean sameContent(Journey a, Journey b) {
+        return Objects.equals(a.getName(), b.getName())
+                && Objects.equals(a.getDescription(), b.getDescription())
+                && Objects.equals(a.getThumbnailPath(), b.getThumbnailPath())
+                && Objects.equals(a.getUserUUID(), b.getUserUUID())
+                && Objects.equals(a.getStart(), b.getStart())
+                && Objects.equals(a.getEnd(), b.getEnd())
+                && a.hasStats() == b.hasStats()
+                && (!a.hasStats() || a.getStats().getDistanceMeters() == b.getStats().getDistanceMeters());
+    }
+
     public class JourneyPostViewHolder extends RecyclerView.ViewHolder {
         private ImageView userProfileImage;
         private TextView userName;
@@ -109,11 +168,14 @@ public class JourneyPostAdapter extends RecyclerView.Adapter<JourneyPostAdapter.
 
             // Set duration and status
             long duration = journey.getDurationInDays();
-            if (duration > 0) {
-                journeyDuration.setText(duration + " day" + (duration > 1 ? "s" : ""));
-            } else {
-                journeyDuration.setText(journey.getDurationInHours() + " hours");
+            String durationText = duration > 0
+                    ? duration + " day" + (duration > 1 ? "s" : "")
+                    : journey.getDurationInHours() + " hours";
+            // Stats are precomputed on the journey document, no need to load the track here
+            if (journey.hasStats()) {
+                durationText += " · " + journey.getStats().formatDistance();
             }
+            journeyDuration.setText(durationText);
 
             journeyStatus.setText(journey.getStatus());
 
@@ -175,12 +237,18 @@ public class JourneyPostAdapter extends RecyclerView.Adapter<JourneyPostAdapter.
 
         private void loadJourneyImage(Journey journey) {
             if (journey.hasImages() && journey.getThumbnailPath() != null) {
-                StorageReference imageRef = storage.getReference().child(journey.getThumbnailPath());
+                String thumbnailPath = journey.getThumbnailPath();
+                journeyImage.setTag(thumbnailPath);
 
-                imageRef.getDownloadUrl()
+                urlCache.get(thumbnailPath)
                         .addOnSuccessListener(uri -> {
+                            // The holder may have been rebound to another post meanwhile
+                            if (!thumbnailPath.equals(journeyImage.getTag())) {
+                                return;
+                            }
                             Glide.with(context)
                                     .load(uri)
+                                    .listener(urlCache.invalidateOnFailure(thumbnailPath))
                                     .transform(new MultiTransformation<>(
                                             new CenterCrop(),
                                             new RoundedCorners(16)
@@ -191,46 +259,57 @@ public class JourneyPostAdapter extends RecyclerView.Adapter<JourneyPostAdapter.
                         })
                         .addOnFailureListener(exception -> {
                             // Load placeholder image
-                            journeyImage.setImageResource(R.drawable.ic_journey_placeholder);
+                            if (thumbnailPath.equals(journeyImage.getTag())) {
+                                journeyImage.setImageResource(R.drawable.ic_journey_placeholder);
+                            }
                         });
             } else {
                 // No image available, show placeholder
+                journeyImage.setTag(null);
                 journeyImage.setImageResource(R.drawable.ic_journey_placeholder);
             }
         }
 
         private void loadUserProfile(String userUUID) {
-            // Load user data from Firestore
-            db.collection("users").document(userUUID).get()
-                    .addOnSuccessListener(documentSnapshot -> {
-                        if (documentSnapshot.exists()) {
-                            User user = documentSnapshot.toObject(User.class);
-                            if (user != null) {
-                                // Set user name
-                                userName.setText(user.getDisplayNameOrEmail());
-
-                                // Load user profile image
-                                loadUserProfileImage(user);
-                            } else {
-                                setDefaultUserInfo();
-                            }
+            // Shared cache: posts of the same author and the same frame cost at most one read
+            userName.setTag(userUUID);
+            UserCache.getInstance(context).get(userUUID)
+                    .addOnSuccessListener(user -> {
+                        // The holder may have been rebound to another post meanwhile
+                        if (!userUUID.equals(userName.getTag())) {
+                            return;
+                        }
+                        if (user != null) {
+                            // Set user name
+                            userName.setText(user.getDisplayNameOrEmail());
+
+                            // Load user profile image
+                            loadUserProfileImage(user);
                         } else {
                             setDefaultUserInfo();
                         }
                     })
                     .addOnFailureListener(e -> {
-                        setDefaultUserInfo();
+                        if (userUUID.equals(userName.getTag())) {
+                            setDefaultUserInfo();
+                        }
                     });
         }
 
         private void loadUserProfileImage(User user) {
             if (user.hasProfilePicture()) {
-                StorageReference profileRef = storage.getReference().child(user.getProfilePicturePath());
+                String picturePath = user.getProfilePicturePath();
+                userProfileImage.setTag(picturePath);
 
-                profileRef.getDownloadUrl()
+                urlCache.get(picturePath)
                         .addOnSuccessListener(uri -> {
+                            // The holder may have been rebound to another author meanwhile
+                            if (!picturePath.equals(userProfileImage.getTag())) {
+                                return;
+                            }
                             Glide.with(context)
                                     .load(uri)
+                                    .listener(urlCache.invalidateOnFailure(picturePath))
                                     .transform(new MultiTransformation<>(
                                             new CenterCrop(),
                                             new CircleCrop()
@@ -240,15 +319,19 @@ public class JourneyPostAdapter extends RecyclerView.Adapter<JourneyPostAdapter.
                                     .into(userProfileImage);
                         })
                         .addOnFailureListener(exception -> {
-                            userProfileImage.setImageResource(R.drawable.ic_profile_modern);
+                            if (picturePath.equals(userProfileImage.getTag())) {
+                                userProfileImage.setImageResource(R.drawable.ic_profile_modern);
+                            }
                         });
             } else {
+                userProfileImage.setTag(null);
                 userProfileImage.setImageResource(R.drawable.ic_profile_modern);
             }
         }
 
         private void setDefaultUserInfo() {
             userName.setText("Anonymous User");
+            userProfileImage.setTag(null);
             userProfileImage.setImageResource(R.drawable.ic_profile_modern);
         }
     }
@@ -14,21 +14,19 @@ import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.MultiTransformation;
 import com.bumptech.glide.load.resource.bitmap.CenterCrop;
 import com.bumptech.glide.load.resource.bitmap.CircleCrop;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 
 import java.util.List;
 
 import fr.upjv.geotrack.R;
 import fr.upjv.geotrack.models.User;
+import fr.upjv.geotrack.utils.DownloadUrlCache;
 
 public class UserSearchAdapter extends RecyclerView.Adapter<UserSearchAdapter.UserViewHolder> {
 
     private List<User> userList;
     private Context context;
     private OnUserClickListener onUserClickListener;
-    private FirebaseStorage storage;
-    private StorageReference storageRef; // Reference to the root of Firebase Storage
+    private DownloadUrlCache urlCache; // Shared path to download URL cache
 
     public interface OnUserClickListener {
         void onUserClick(User user);
@@ -38,8 +36,7 @@ public class UserSearchAdapter extends RecyclerView.Adapter<UserSearchAdapter.Us
         this.userList = userList;
         this.context = context;
         this.onUserClickListener = listener;
-        this.storage = FirebaseStorage.getInstance();
-        this.storageRef = storage.getReference(); // Initialize storageRef
+        this.urlCache = DownloadUrlCache.getInstance(context);
     }
 
     @NonNull
@@ -126,14 +123,15 @@ public class UserSearchAdapter extends RecyclerView.Adapter<UserSearchAdapter.Us
             // If no URL, but a path is available, try to get the download URL from Storage
             else if (user.hasProfilePicture()) {
                 // Use the profilePicturePath from the User object
-                StorageReference profileImageRef = storageRef.child(user.getProfilePicturePath());
+                String picturePath = user.getProfilePicturePath();
 
-                profileImageRef.getDownloadUrl()
+                urlCache.get(picturePath)
                         .addOnSuccessListener(uri -> {
                             // Update the User object with the URL for future caching
                             user.setProfilePictureUrl(uri.toString());
                             Glide.with(context)
                                     .load(uri)
+                                    .listener(urlCache.invalidateOnFailure(picturePath))
                                     .transform(
                                             new MultiTransformation<>(
                                                     new CenterCrop(),
@@ -0,0 +1,243 @@
+package fr.upjv.geotrack.controllers;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.AggregateQuerySnapshot;
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.Transaction;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import fr.upjv.geotrack.models.UserCounts;
+
+/**
+ * Denormalized per-user counters, so a profile header costs a fixed number of reads however
+ * many followers or journeys the user has.
+ *
+ * Each user has NUM_SHARDS documents in counters/{userId}/shards; a write increments one
+ * shard picked at random, so popular users do not hit the one-write-per-second limit of a
+ * single document. Increments are added to the batch or transaction of the write they
+ * count, and change each shard by at most 1 so security rules can check them. Counters of
+ * users created before they existed are seeded once by their owner from aggregate count()
+ * queries.
+ */
+public class CounterController {
+    private static final String TAG = "CounterController";
+    public static final String FOLLOWERS = "followers";
+    public static final String FOLLOWING = "following";
+    public static final String JOURNEYS = "journeys";
+    private static final int NUM_SHARDS = 10;
+    // Set on shard 0 once the counters were seeded from the existing documents
+    private static final String INITIALIZED = "initialized";
+    // Seeding starts over if the shards moved while counting
+    private static final int MAX_SEED_ATTEMPTS = 3;
+    private static final Random random = new Random();
+    private String collectionName = "counters";
+    private String shardsCollectionName = "shards";
+    private FirebaseFirestore DBFireStore;
+
+    public CounterController() {
+        this(FirebaseFirestore.getInstance());
+    }
+
+    public CounterController(FirebaseFirestore firestore) {
+        this.DBFireStore = firestore;
+    }
+
+    private DocumentReference shard(String userId, int index) {
+        return DBFireStore.collection(this.collectionName).document(userId)
+                .collection(this.shardsCollectionName).document(String.valueOf(index));
+    }
+
+    // Distinct shards picked at random, one per unit of the delta
+    private List<DocumentReference> randomShards(String userId, long delta) {
+        if (Math.abs(delta) > NUM_SHARDS) {
+            throw new IllegalArgumentException("Cannot change a counter by more than " + NUM_SHARDS + " at once");
+        }
+        int count = (int) Math.abs(delta);
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < NUM_SHARDS; i++) {
+            indexes.add(i);
+        }
+        Collections.shuffle(indexes, random);
+        List<DocumentReference> shards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            shards.add(shard(userId, indexes.get(i)));
+        }
+        return shards;
+    }
+
+    /**
+     * Add an increment of a counter to a batch
+     * @param batch The batch writing the counted change
+     * @param userId Owner of the counter
+     * @param field FOLLOWERS, FOLLOWING or JOURNEYS
+     * @param delta Value to add, negative to decrement, spread as +/-1 over distinct shards
+     */
+    public void increment(WriteBatch batch, String userId, String field, long delta) {
+        Map<String, Object> step = Collections.singletonMap(field, FieldValue.increment(Long.signum(delta)));
+        for (DocumentReference shard : randomShards(userId, delta)) {
+            batch.set(shard, step, SetOptions.merge());
+        }
+    }
+
+    /**
+     * Add an increment of a counter to a transaction
+     * @see #increment(WriteBatch, String, String, long)
+     */
+    public void increment(Transaction transaction, String userId, String field, long delta) {
+        Map<String, Object> step = Collections.singletonMap(field, FieldValue.increment(Long.signum(delta)));
+        for (DocumentReference shard : randomShards(userId, delta)) {
+            transaction.set(shard, step, SetOptions.merge());
+        }
+    }
+
+    /**
+     * Get the counters of a user, seeding them first if needed
+     * @param userId The user
+     * @return Task<UserCounts> containing the counts
+     */
+    public Task<UserCounts> getCounts(String userId) {
+        return readShards(userId)
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    List<DocumentSnapshot> shards = task.getResult();
+                    for (DocumentSnapshot document : shards) {
+                        if ("0".equals(document.getId()) && Boolean.TRUE.equals(document.getBoolean(INITIALIZED))) {
+                            UserCounts counts = sum(shards);
+                            // Never show a negative count, e.g. if data was edited by hand
+                            return Tasks.forResult(new UserCounts(Math.max(0, counts.getFollowers()),
+                                    Math.max(0, counts.getFollowing()), Math.max(0, counts.getJourneys())));
+                        }
+                    }
+                    return seed(userId, shards, 1);
+                });
+    }
+
+    // Count the existing documents once and store the result, so later reads only sum shards.
+    // count() cannot run in a transaction: the shards read before counting are compared with the
+    // ones read by the transaction. Every counted write moves a shard, so if none moved, nothing
+    // was written between the two reads and the count matches the shards.
+    private Task<UserCounts> seed(String userId, List<DocumentSnapshot> shardsBefore, int attempt) {
+        Log.d(TAG, "Seeding counters of " + userId + " (attempt " + attempt + ")");
+        Task<AggregateQuerySnapshot> followers = DBFireStore.collection("follows")
+                .whereEqualTo("followingId", userId)
+                .count()
+                .get(AggregateSource.SERVER);
+        Task<AggregateQuerySnapshot> following = DBFireStore.collection("follows")
+                .whereEqualTo("followerId", userId)
+                .count()
+                .get(AggregateSource.SERVER);
+        Task<AggregateQuerySnapshot> journeys = DBFireStore.collection("journey")
+                .whereEqualTo("userUUID", userId)
+                .count()
+                .get(AggregateSource.SERVER);
+
+        return Tasks.whenAllSuccess(followers, following, journeys).continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            UserCounts counted = new UserCounts(followers.getResult().getCount(),
+                    following.getResult().getCount(), journeys.getResult().getCount());
+            Map<String, List<Long>> before = valuesById(shardsBefore);
+
+            return DBFireStore.runTransaction(transaction -> {
+                List<DocumentSnapshot> shards = new ArrayList<>();
+                for (int i = 0; i < NUM_SHARDS; i++) {
+                    shards.add(transaction.get(shard(userId, i)));
+                }
+                if (Boolean.TRUE.equals(shards.get(0).getBoolean(INITIALIZED))) {
+                    // Seeded by another client in the meantime
+                    return sum(shards);
+                }
+                if (!valuesById(shards).equals(before)) {
+                    // A counted write landed while counting, this count cannot be trusted
+                    return null;
+                }
+
+                // Shard 0 takes the difference so the total matches the count
+                UserCounts current = sum(shards);
+                Map<String, Object> seeded = new HashMap<>();
+                seeded.put(FOLLOWERS, valueOf(shards.get(0), FOLLOWERS) + counted.getFollowers() - current.getFollowers());
+                seeded.put(FOLLOWING, valueOf(shards.get(0), FOLLOWING) + counted.getFollowing() - current.getFollowing());
+                seeded.put(JOURNEYS, valueOf(shards.get(0), JOURNEYS) + counted.getJourneys() - current.getJourneys());
+                seeded.put(INITIALIZED, true);
+                transaction.set(shards.get(0).getReference(), seeded, SetOptions.merge());
+                return counted;
+            }).continueWithTask(seedTask -> {
+                if (!seedTask.isSuccessful()) {
+                    // Only the owner may seed its counters, other readers use the count as is
+                    Log.d(TAG, "Counters of " + userId + " not seeded: " + seedTask.getException());
+                    return Tasks.forResult(counted);
+                }
+                if (seedTask.getResult() != null) {
+                    return Tasks.forResult(seedTask.getResult());
+                }
+                if (attempt >= MAX_SEED_ATTEMPTS) {
+                    return Tasks.forResult(counted);
+                }
+                return readShards(userId).continueWithTask(shardsTask -> {
+                    if (!shardsTask.isSuccessful()) {
+                        throw shardsTask.getException();
+                    }
+                    return seed(userId, shardsTask.getResult(), attempt + 1);
+                });
+            });
+        });
+    }
+
+    private Task<List<DocumentSnapshot>> readShards(String userId) {
+        return DBFireStore.collection(this.collectionName).document(userId)
+                .collection(this.shardsCollectionName)
+                .get()
+                .continueWith(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    return task.getResult().getDocuments();
+                });
+    }
+
+    // Field values of each existing shard, to detect a write between two reads
+    private static Map<String, List<Long>> valuesById(List<DocumentSnapshot> shards) {
+        Map<String, List<Long>> values = new HashMap<>();
+        for (DocumentSnapshot document : shards) {
+            if (document.exists()) {
+                values.put(document.getId(), Arrays.asList(valueOf(document, FOLLOWERS),
+                        valueOf(document, FOLLOWING), valueOf(document, JOURNEYS)));
+            }
+        }
+        return values;
+    }
+
+    private static UserCounts sum(List<DocumentSnapshot> shards) {
+        long followers = 0, following = 0, journeys = 0;
+        for (DocumentSnapshot document : shards) {
+            followers += valueOf(document, FOLLOWERS);
+            following += valueOf(document, FOLLOWING);
+            journeys += valueOf(document, JOURNEYS);
+        }
+        return new UserCounts(followers, following, journeys);
+    }
+
+    private static long valueOf(DocumentSnapshot document, String field) {
+        Long value = document.exists() ? document.getLong(field) : null;
+        return value != null ? value : 0;
+    }
+}
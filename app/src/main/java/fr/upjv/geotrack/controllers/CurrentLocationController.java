@@ -3,29 +3,38 @@ package fr.upjv.geotrack.controllers;
 import android.content.Context;
 import android.util.Log;
 
+import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.ListenerRegistration;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import fr.upjv.geotrack.models.Localisation;
 import fr.upjv.geotrack.models.User;
+import fr.upjv.geotrack.utils.SpatialIndex;
 
 public class CurrentLocationController {
     private static final String TAG = "CurrentLocationController";
     private static final String COLLECTION_NAME = "updateUserCurrentLocation";
+    // Firestore accepts at most 30 values in a whereIn filter
+    private static final int WHERE_IN_LIMIT = 30;
 
     private FirebaseFirestore firestore;
     private Context context;
 
     private Map<String, Localisation> userLocations;
-    private List<ListenerRegistration> locationListeners;
+    private List<LocationBatch> locationBatches;
+    private Map<String, LocationBatch> batchByUserId;
+    private SpatialIndex spatialIndex;
     private LocationUpdateCallback locationUpdateCallback;
 
     // Interface for location update callbacks
@@ -36,6 +45,12 @@ public class CurrentLocationController {
         void onInitialLocationsLoaded(int loadedCount, int totalCount); // New callback for initial load
     }
 
+    // A whereIn listener and the users it covers
+    private static class LocationBatch {
+        final List<String> userIds = new ArrayList<>();
+        ListenerRegistration registration;
+    }
+
     // Interface for bulk operations
     public interface LocationBatchCallback {
         void onSuccess(Map<String, Localisation> locations);
@@ -46,7 +61,9 @@ public class CurrentLocationController {
         this.context = context;
         this.firestore = FirebaseFirestore.getInstance();
         this.userLocations = new HashMap<>();
-        this.locationListeners = new ArrayList<>();
+        this.locationBatches = new ArrayList<>();
+        this.batchByUserId = new HashMap<>();
+        this.spatialIndex = new SpatialIndex();
 
         Log.d(TAG, "CurrentLocationController initialized");
     }
@@ -60,8 +77,9 @@ public class CurrentLocationController {
     }
 
     /**
-     * Start listening to real-time location updates for multiple users
-     * This method now first loads current positions, then sets up real-time listeners
+     * Start listening to real-time location updates for multiple users.
+     * Users are grouped into whereIn batches so a handful of listeners cover the whole list;
+     * the first snapshot of each listener also serves as the initial load.
      */
     public void startLocationListening(List<String> userIds) {
         if (userIds == null || userIds.isEmpty()) {
@@ -72,123 +90,109 @@ public class CurrentLocationController {
         // Clear existing listeners first
         stopLocationListening();
 
-        Log.d(TAG, "=== STARTING LOCATION LISTENING WITH INITIAL LOAD ===");
-        Log.d(TAG, "User IDs to track: " + userIds.toString());
-        Log.d(TAG, "Total users: " + userIds.size());
-
-        // First, load current/last positions for all users
-        loadInitialLocations(userIds, () -> {
-            Log.d(TAG, "Initial locations loaded, now setting up real-time listeners");
-
-            // After loading initial positions, set up real-time listeners
-            for (String userId : userIds) {
-                Log.d(TAG, "Setting up real-time listener for user ID: '" + userId + "'");
-                startLocationListeningForUser(userId);
+        List<String> uniqueUserIds = new ArrayList<>(new LinkedHashSet<>(userIds));
+        Log.d(TAG, "=== STARTING LOCATION LISTENING ===");
+        Log.d(TAG, "Total users: " + uniqueUserIds.size());
+
+        int batchCount = (uniqueUserIds.size() + WHERE_IN_LIMIT - 1) / WHERE_IN_LIMIT;
+        AtomicInteger pendingBatches = new AtomicInteger(batchCount);
+        Runnable onBatchLoaded = () -> {
+            if (pendingBatches.decrementAndGet() == 0) {
+                Log.d(TAG, "Initial locations loaded: " + userLocations.size() + "/" + uniqueUserIds.size());
+                if (locationUpdateCallback != null) {
+                    locationUpdateCallback.onInitialLocationsLoaded(userLocations.size(), uniqueUserIds.size());
+                }
             }
+        };
+
+        for (int from = 0; from < uniqueUserIds.size(); from += WHERE_IN_LIMIT) {
+            LocationBatch batch = new LocationBatch();
+            batch.userIds.addAll(uniqueUserIds.subList(from, Math.min(from + WHERE_IN_LIMIT, uniqueUserIds.size())));
+            locationBatches.add(batch);
+            listenToBatch(batch, onBatchLoaded);
+        }
 
-            Log.d(TAG, "Started " + locationListeners.size() + " location listeners");
-            Log.d(TAG, "=== LOCATION LISTENING SETUP COMPLETE ===");
-        });
+        Log.d(TAG, "Started " + locationBatches.size() + " location listeners for " + uniqueUserIds.size() + " users");
     }
 
     /**
-     * Load initial/current locations for all users before setting up real-time listeners
+     * Listen to the current location documents of the users of a batch with a single whereIn query,
+     * replacing the previous listener of the batch once its membership changed
+     * @param batch Batch of at most WHERE_IN_LIMIT users, whose ids are also the ids of their location documents
+     * @param onInitialLoad Run once, after the first snapshot or the first error, or null
      */
-    private void loadInitialLocations(List<String> userIds, Runnable onComplete) {
-        Log.d(TAG, "=== LOADING INITIAL LOCATIONS ===");
-        Log.d(TAG, "Loading initial locations for " + userIds.size() + " users");
-
-        AtomicInteger completedRequests = new AtomicInteger(0);
-        AtomicInteger successfulLoads = new AtomicInteger(0);
-        final int totalUsers = userIds.size();
-
+    private void listenToBatch(LocationBatch batch, Runnable onInitialLoad) {
+        if (batch.registration != null) {
+            batch.registration.remove();
+        }
+        List<String> userIds = new ArrayList<>(batch.userIds);
         for (String userId : userIds) {
-            Log.d(TAG, "Loading initial location for user: " + userId);
-
-            firestore.collection(COLLECTION_NAME)
-                    .document(userId)
-                    .get()
-                    .addOnSuccessListener(documentSnapshot -> {
-                        Log.d(TAG, "Initial location fetch completed for user: " + userId);
-
-                        if (documentSnapshot.exists()) {
-                            Log.d(TAG, "✅ Initial document exists for user: " + userId);
-
-                            try {
-                                Localisation location = parseLocationFromDocument(documentSnapshot, userId);
-                                if (location != null) {
-                                    Log.d(TAG, "✅ Initial location parsed successfully for user: " + userId);
-                                    Log.d(TAG, "Initial location: " + location.getLatitude() + ", " + location.getLongitude());
-
-                                    // Store the location
-                                    userLocations.put(userId, location);
-                                    successfulLoads.incrementAndGet();
-
-                                    // Notify callback immediately for initial display
-                                    if (locationUpdateCallback != null) {
-                                        Log.d(TAG, "Notifying callback of initial location for user: " + userId);
-                                        locationUpdateCallback.onLocationUpdated(userId, location);
-                                    }
-                                } else {
-                                    Log.w(TAG, "❌ Failed to parse initial location for user: " + userId);
-                                }
-                            } catch (Exception e) {
-                                Log.e(TAG, "❌ Error parsing initial location data for user " + userId, e);
-                                if (locationUpdateCallback != null) {
-                                    locationUpdateCallback.onError(userId, "Error parsing initial location: " + e.getMessage());
-                                }
-                            }
-                        } else {
-                            Log.d(TAG, "❌ No initial document found for user: " + userId);
-                        }
-
-                        // Check if all requests completed
-                        int completed = completedRequests.incrementAndGet();
-                        Log.d(TAG, "Initial location requests completed: " + completed + "/" + totalUsers);
-
-                        if (completed == totalUsers) {
-                            int successful = successfulLoads.get();
-                            Log.d(TAG, "=== INITIAL LOCATION LOADING COMPLETE ===");
-                            Log.d(TAG, "Successfully loaded " + successful + " out of " + totalUsers + " initial locations");
-
-                            // Notify callback about initial load completion
-                            if (locationUpdateCallback != null) {
-                                locationUpdateCallback.onInitialLocationsLoaded(successful, totalUsers);
-                            }
+            batchByUserId.put(userId, batch);
+        }
+        AtomicBoolean initialLoadDone = new AtomicBoolean(false);
 
-                            // Continue with real-time listener setup
-                            if (onComplete != null) {
-                                onComplete.run();
+        batch.registration = firestore.collection(COLLECTION_NAME)
+                .whereIn(FieldPath.documentId(), userIds)
+                .addSnapshotListener((snapshot, error) -> {
+                    if (error != null) {
+                        Log.e(TAG, "Error listening to locations of " + userIds.size() + " users", error);
+                        if (locationUpdateCallback != null) {
+                            for (String userId : userIds) {
+                                locationUpdateCallback.onError(userId, error.getMessage());
                             }
                         }
-                    })
-                    .addOnFailureListener(e -> {
-                        Log.e(TAG, "❌ Failed to load initial location for user " + userId, e);
-
-                        if (locationUpdateCallback != null) {
-                            locationUpdateCallback.onError(userId, "Failed to load initial location: " + e.getMessage());
+                    } else if (snapshot != null) {
+                        for (DocumentChange change : snapshot.getDocumentChanges()) {
+                            handleLocationChange(change);
                         }
+                    }
 
-                        // Still count as completed to avoid hanging
-                        int completed = completedRequests.incrementAndGet();
-                        Log.d(TAG, "Initial location requests completed (with error): " + completed + "/" + totalUsers);
+                    if (onInitialLoad != null && initialLoadDone.compareAndSet(false, true)) {
+                        onInitialLoad.run();
+                    }
+                });
+    }
 
-                        if (completed == totalUsers) {
-                            int successful = successfulLoads.get();
-                            Log.d(TAG, "=== INITIAL LOCATION LOADING COMPLETE (WITH ERRORS) ===");
-                            Log.d(TAG, "Successfully loaded " + successful + " out of " + totalUsers + " initial locations");
+    private void handleLocationChange(DocumentChange change) {
+        DocumentSnapshot document = change.getDocument();
+        String userId = document.getId();
+        if (!batchByUserId.containsKey(userId)) {
+            return;
+        }
 
-                            // Notify callback about initial load completion
-                            if (locationUpdateCallback != null) {
-                                locationUpdateCallback.onInitialLocationsLoaded(successful, totalUsers);
-                            }
+        if (change.getType() == DocumentChange.Type.REMOVED) {
+            Localisation removedLocation = userLocations.remove(userId);
+            spatialIndex.remove(userId);
+            if (removedLocation != null && locationUpdateCallback != null) {
+                Log.d(TAG, "Location removed for user: " + userId);
+                locationUpdateCallback.onLocationRemoved(userId);
+            }
+            return;
+        }
 
-                            // Continue with real-time listener setup
-                            if (onComplete != null) {
-                                onComplete.run();
-                            }
-                        }
-                    });
+        Localisation location = parseLocationFromDocument(document, userId);
+        if (location == null) {
+            if (locationUpdateCallback != null) {
+                locationUpdateCallback.onError(userId, "Error parsing location data");
+            }
+            return;
+        }
+
+        // Metadata-only changes (e.g. cache to server) carry the same position
+        Localisation existingLocation = userLocations.get(userId);
+        boolean isNewLocation = existingLocation == null ||
+                !existingLocation.getTimestamp().equals(location.getTimestamp()) ||
+                existingLocation.getLatitude() != location.getLatitude() ||
+                existingLocation.getLongitude() != location.getLongitude();
+        if (!isNewLocation) {
+            return;
+        }
+
+        userLocations.put(userId, location);
+        spatialIndex.update(userId, location.getLatitude(), location.getLongitude());
+        Log.d(TAG, "📍 Location update for user: " + userId + " (" + location.getLatitude() + ", " + location.getLongitude() + ")");
+        if (locationUpdateCallback != null) {
+            locationUpdateCallback.onLocationUpdated(userId, location);
         }
     }
 
@@ -207,134 +211,57 @@ public class CurrentLocationController {
             return;
         }
 
-        Log.d(TAG, "Setting up real-time listener for user: " + userId);
-        Log.d(TAG, "Firestore collection: " + COLLECTION_NAME);
-        Log.d(TAG, "Document path: " + COLLECTION_NAME + "/" + userId);
-
-        ListenerRegistration listener = firestore.collection(COLLECTION_NAME)
-                .document(userId)
-                .addSnapshotListener((documentSnapshot, error) -> {
-                    Log.d(TAG, "=== REAL-TIME SNAPSHOT LISTENER TRIGGERED ===");
-                    Log.d(TAG, "User ID: " + userId);
-
-                    if (error != null) {
-                        Log.e(TAG, "❌ ERROR listening to location for user " + userId, error);
-                        Log.e(TAG, "Error message: " + error.getMessage());
-                        Log.e(TAG, "Error code: " + error.getCode());
-                        if (locationUpdateCallback != null) {
-                            locationUpdateCallback.onError(userId, error.getMessage());
-                        }
-                        return;
-                    }
-
-                    Log.d(TAG, "Real-time document snapshot received for user: " + userId);
-                    Log.d(TAG, "Document exists: " + (documentSnapshot != null && documentSnapshot.exists()));
-
-                    if (documentSnapshot != null) {
-                        Log.d(TAG, "Document ID: " + documentSnapshot.getId());
-                        Log.d(TAG, "Document path: " + documentSnapshot.getReference().getPath());
-                        Log.d(TAG, "Document metadata - from cache: " + documentSnapshot.getMetadata().isFromCache());
-                        Log.d(TAG, "Document metadata - has pending writes: " + documentSnapshot.getMetadata().hasPendingWrites());
-
-                        if (documentSnapshot.exists()) {
-                            Log.d(TAG, "✅ Real-time document exists for user: " + userId);
-
-                            try {
-                                // Parse the location data
-                                Localisation location = parseLocationFromDocument(documentSnapshot, userId);
-                                if (location != null) {
-                                    Log.d(TAG, "✅ Real-time location parsed successfully for user: " + userId);
-
-                                    // Check if this is actually a new/updated location
-                                    Localisation existingLocation = userLocations.get(userId);
-                                    boolean isNewLocation = existingLocation == null ||
-                                            !existingLocation.getTimestamp().equals(location.getTimestamp()) ||
-                                            !(existingLocation.getLatitude() == location.getLatitude()) ||
-                                            !(existingLocation.getLongitude() == location.getLongitude());
-
-                                    if (isNewLocation) {
-                                        Log.d(TAG, "📍 New location update for user: " + userId);
-                                        Log.d(TAG, "New location details:");
-                                        Log.d(TAG, "  - Latitude: " + location.getLatitude());
-                                        Log.d(TAG, "  - Longitude: " + location.getLongitude());
-                                        Log.d(TAG, "  - Timestamp: " + location.getTimestamp());
-
-                                        // Update the location in our map
-                                        userLocations.put(userId, location);
-                                        Log.d(TAG, "Total tracked users: " + userLocations.size());
-
-                                        // Notify callback
-                                        if (locationUpdateCallback != null) {
-                                            Log.d(TAG, "Notifying callback of real-time location update for user: " + userId);
-                                            locationUpdateCallback.onLocationUpdated(userId, location);
-                                        }
-                                    } else {
-                                        Log.d(TAG, "📍 Same location data for user: " + userId + " (no update needed)");
-                                    }
-                                } else {
-                                    Log.w(TAG, "❌ Failed to parse real-time location from document for user: " + userId);
-                                }
-                            } catch (Exception e) {
-                                Log.e(TAG, "❌ Error parsing real-time location data for user " + userId, e);
-                                if (locationUpdateCallback != null) {
-                                    locationUpdateCallback.onError(userId, "Error parsing location data: " + e.getMessage());
-                                }
-                            }
-                        } else {
-                            Log.d(TAG, "❌ No real-time document found for user: " + userId);
-                            Log.d(TAG, "Document path checked: " + COLLECTION_NAME + "/" + userId);
-
-                            // Remove location if document doesn't exist
-                            Localisation removedLocation = userLocations.remove(userId);
-                            if (removedLocation != null) {
-                                Log.d(TAG, "Removed location from cache for user: " + userId);
-                            }
-
-                            if (locationUpdateCallback != null) {
-                                Log.d(TAG, "Notifying callback of location removal for user: " + userId);
-                                locationUpdateCallback.onLocationRemoved(userId);
-                            }
-                        }
-                    } else {
-                        Log.w(TAG, "❌ DocumentSnapshot is null for user: " + userId);
-                    }
-
-                    Log.d(TAG, "=== REAL-TIME SNAPSHOT PROCESSING COMPLETE ===");
-                });
-
-        locationListeners.add(listener);
-        Log.d(TAG, "✅ Started real-time location listener for user: " + userId + " (Total listeners: " + locationListeners.size() + ")");
+        // Join the last batch if it has room, rather than opening one more listener
+        LocationBatch batch = locationBatches.isEmpty() ? null : locationBatches.get(locationBatches.size() - 1);
+        if (batch == null || batch.userIds.size() >= WHERE_IN_LIMIT) {
+            batch = new LocationBatch();
+            locationBatches.add(batch);
+        }
+        batch.userIds.add(userId);
+        listenToBatch(batch, null);
+        Log.d(TAG, "Started location listener for user: " + userId + " (Total listeners: " + locationBatches.size() + ")");
     }
 
     /**
-     * Stop listening to location updates for a specific user
+     * Stop listening to location updates for a specific user.
+     * The listener of its batch is rebuilt without it, or removed if the user was the last one.
      */
     public void stopLocationListeningForUser(String userId) {
         Log.d(TAG, "Stop location listener requested for user: " + userId);
+        LocationBatch batch = batchByUserId.remove(userId);
         userLocations.remove(userId);
-        Log.d(TAG, "Removed user from location cache: " + userId);
+        spatialIndex.remove(userId);
+        if (batch == null) {
+            return;
+        }
+
+        batch.userIds.remove(userId);
+        if (batch.userIds.isEmpty()) {
+            batch.registration.remove();
+            locationBatches.remove(batch);
+        } else {
+            listenToBatch(batch, null);
+        }
     }
 
     /**
      * Stop all location listeners
      */
     public void stopLocationListening() {
-        Log.d(TAG, "=== STOPPING ALL LOCATION LISTENERS ===");
-        Log.d(TAG, "Stopping " + locationListeners.size() + " location listeners");
-
-        for (int i = 0; i < locationListeners.size(); i++) {
-            ListenerRegistration listener = locationListeners.get(i);
-            if (listener != null) {
-                listener.remove();
-                Log.d(TAG, "Removed listener " + (i + 1));
+        Log.d(TAG, "Stopping " + locationBatches.size() + " location listeners");
+
+        for (LocationBatch batch : locationBatches) {
+            if (batch.registration != null) {
+                batch.registration.remove();
             }
         }
 
-        locationListeners.clear();
+        locationBatches.clear();
+        batchByUserId.clear();
         userLocations.clear();
+        spatialIndex.clear();
 
         Log.d(TAG, "All location listeners stopped and caches cleared");
-        Log.d(TAG, "=== CLEANUP COMPLETE ===");
     }
 
     /**
@@ -412,9 +339,7 @@ public class CurrentLocationController {
      * Check if we're currently listening to a specific user's location
      */
     public boolean isListeningToUser(String userId) {
-        // This is a simplified check - in production you might want to maintain
-        // a more sophisticated mapping of userId to ListenerRegistration
-        boolean listening = userLocations.containsKey(userId) || locationListeners.size() > 0;
+        boolean listening = batchByUserId.containsKey(userId);
         Log.d(TAG, "Is listening to user '" + userId + "': " + listening);
         return listening;
     }
@@ -423,8 +348,8 @@ public class CurrentLocationController {
      * Get the number of active location listeners
      */
     public int getActiveListenerCount() {
-        Log.d(TAG, "Active listener count: " + locationListeners.size());
-        return locationListeners.size();
+        Log.d(TAG, "Active listener count: " + locationBatches.size());
+        return locationBatches.size();
     }
 
     /**
@@ -450,12 +375,8 @@ public class CurrentLocationController {
     public void addUserToLocationTracking(String userId) {
         Log.d(TAG, "Adding user to location tracking: " + userId);
         if (userId != null && !userId.trim().isEmpty()) {
-            // First load their current location, then set up real-time listener
-            List<String> singleUserList = new ArrayList<>();
-            singleUserList.add(userId);
-            loadInitialLocations(singleUserList, () -> {
-                startLocationListeningForUser(userId);
-            });
+            // The first snapshot of the listener delivers the current location
+            startLocationListeningForUser(userId);
         } else {
             Log.w(TAG, "Cannot add invalid user ID to tracking");
         }
@@ -509,6 +430,29 @@ public class CurrentLocationController {
         return distance;
     }
 
+    /**
+     * Get the tracked users within a distance of a point, closest first
+     */
+    public List<String> getUsersWithinRadius(double latitude, double longitude, double radiusMeters) {
+        List<String> userIds = spatialIndex.withinRadius(latitude, longitude, radiusMeters);
+        Log.d(TAG, userIds.size() + " users within " + radiusMeters + "m");
+        return userIds;
+    }
+
+    /**
+     * Get the k tracked users closest to a point, closest first
+     */
+    public List<String> getNearestUsers(double latitude, double longitude, int k) {
+        return spatialIndex.nearest(latitude, longitude, k);
+    }
+
+    /**
+     * Get the tracked users inside a viewport (west greater than east when crossing the antimeridian)
+     */
+    public List<String> getUsersInBounds(double south, double west, double north, double east) {
+        return spatialIndex.inBounds(south, west, north, east);
+    }
+
     /**
      * Calculate distance between two coordinates using Haversine formula
      * Returns distance in meters
@@ -1,67 +1,213 @@
 package fr.upjv.geotrack.controllers;
 
+import android.util.Log;
+
 import androidx.annotation.NonNull;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.firestore.*;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import fr.upjv.geotrack.models.Follow;
 
 public class FollowController {
+    private static final String TAG = "FollowController";
     private final FirebaseFirestore db = FirebaseFirestore.getInstance();
     private final String currentUserId = FirebaseAuth.getInstance().getCurrentUser().getUid();
+    private final TimelineController timelineController = new TimelineController(db);
+    private final CounterController counterController = new CounterController(db);
 
     private CollectionReference followsRef() {
         return db.collection("follows");
     }
 
+    // Ids suivis par l'utilisateur connecté, partagés par toutes les instances (thread principal)
+    private static String cachedUserId;
+    private static Set<String> cachedFollowingIds;
+    private static Task<Set<String>> loadingFollowingIds;
+
     /** Crée une relation “currentUser suit targetUser” */
     public Task<DocumentReference> follow(String targetUserId) {
         Follow follow = new Follow(
-                /* id */      null,
+                /* id */      Follow.edgeId(currentUserId, targetUserId),
                 /* follower */currentUserId,
                 /* following*/targetUserId,
                 /* timestamp*/new Date()
         );
-        // id auto généré
-        return followsRef().add(follow.toMap());
+        // id déterministe : une seule relation possible, écrite avec les compteurs des deux utilisateurs.
+        // Les relations anciennes (id automatique) du même couple sont migrées vers cet id au passage,
+        // pour ne pas compter deux fois la même relation.
+        DocumentReference followRef = followsRef().document(follow.getId());
+        return followsRef()
+                .whereEqualTo("followerId", currentUserId)
+                .whereEqualTo("followingId", targetUserId)
+                .get()
+                .continueWithTask(query -> {
+                    if (!query.isSuccessful()) {
+                        throw query.getException();
+                    }
+                    List<DocumentReference> legacyRefs = new ArrayList<>();
+                    for (DocumentSnapshot doc : query.getResult().getDocuments()) {
+                        if (!doc.getId().equals(followRef.getId())) {
+                            legacyRefs.add(doc.getReference());
+                        }
+                    }
+
+                    return db.runTransaction(transaction -> {
+                        // Toutes les lectures avant les écritures
+                        boolean exists = transaction.get(followRef).exists();
+                        List<DocumentReference> existingLegacy = new ArrayList<>();
+                        for (DocumentReference legacyRef : legacyRefs) {
+                            if (transaction.get(legacyRef).exists()) {
+                                existingLegacy.add(legacyRef);
+                            }
+                        }
+
+                        if (!exists) {
+                            transaction.set(followRef, follow.toMap());
+                        }
+                        for (DocumentReference legacyRef : existingLegacy) {
+                            transaction.delete(legacyRef);
+                        }
+                        // Une seule relation doit rester comptée
+                        int counted = (exists ? 1 : 0) + existingLegacy.size();
+                        if (counted != 1) {
+                            counterController.increment(transaction, currentUserId, CounterController.FOLLOWING, 1 - counted);
+                            counterController.increment(transaction, targetUserId, CounterController.FOLLOWERS, 1 - counted);
+                        }
+                        return followRef;
+                    });
+                })
+                .addOnSuccessListener(ref -> {
+                    updateCachedFollowing(targetUserId, true);
+                    timelineController.backfillAuthor(currentUserId, targetUserId)
+                            .addOnFailureListener(e -> Log.w(TAG, "Could not backfill timeline", e));
+                });
     }
 
     /** Supprime la relation si elle existe */
     public Task<Void> unfollow(String targetUserId) {
-        // On cherche le doc où followerId==currentUserId && followingId==targetUserId
+        DocumentReference followRef = followsRef().document(Follow.edgeId(currentUserId, targetUserId));
+        return db.runTransaction(transaction -> {
+                    if (!transaction.get(followRef).exists()) {
+                        return false;
+                    }
+                    transaction.delete(followRef);
+                    counterController.increment(transaction, currentUserId, CounterController.FOLLOWING, -1);
+                    counterController.increment(transaction, targetUserId, CounterController.FOLLOWERS, -1);
+                    return true;
+                })
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    if (task.getResult()) {
+                        return Tasks.<Void>forResult(null);
+                    }
+                    return unfollowLegacy(targetUserId);
+                })
+                .addOnSuccessListener(v -> {
+                    updateCachedFollowing(targetUserId, false);
+                    timelineController.removeAuthor(currentUserId, targetUserId)
+                            .addOnFailureListener(e -> Log.w(TAG, "Could not clean timeline", e));
+                });
+    }
+
+    // Relations créées avant les ids déterministes : on cherche followerId==currentUserId && followingId==targetUserId
+    private Task<Void> unfollowLegacy(String targetUserId) {
         return followsRef()
                 .whereEqualTo("followerId", currentUserId)
                 .whereEqualTo("followingId", targetUserId)
                 .get()
                 .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    List<DocumentSnapshot> docs = task.getResult().getDocuments();
+                    if (docs.isEmpty()) {
+                        return Tasks.<Void>forResult(null);
+                    }
                     WriteBatch batch = db.batch();
-                    for (DocumentSnapshot doc : task.getResult()) {
+                    for (DocumentSnapshot doc : docs) {
                         batch.delete(doc.getReference());
                     }
+                    counterController.increment(batch, currentUserId, CounterController.FOLLOWING, -docs.size());
+                    counterController.increment(batch, targetUserId, CounterController.FOLLOWERS, -docs.size());
                     return batch.commit();
                 });
     }
 
-    /** Vérifie si on suit déjà targetUserId */
+    /** Vérifie si on suit déjà targetUserId, dans l'ensemble des ids suivis chargé une fois */
     public Task<Boolean> isFollowing(String targetUserId) {
-        return followsRef()
-                .whereEqualTo("followerId", currentUserId)
-                .whereEqualTo("followingId", targetUserId)
+        return getCachedFollowingIds().continueWith(task -> task.getResult().contains(targetUserId));
+    }
+
+    // Charge une seule fois les ids suivis ; les relations anciennes (id automatique) sont incluses
+    private Task<Set<String>> getCachedFollowingIds() {
+        if (currentUserId.equals(cachedUserId)) {
+            if (cachedFollowingIds != null) {
+                return Tasks.forResult(cachedFollowingIds);
+            }
+            if (loadingFollowingIds != null) {
+                return loadingFollowingIds;
+            }
+        }
+
+        String userId = currentUserId;
+        cachedUserId = userId;
+        cachedFollowingIds = null;
+        loadingFollowingIds = followsRef()
+                .whereEqualTo("followerId", userId)
                 .get()
-                .continueWith(task -> !task.getResult().isEmpty());
+                .continueWith(task -> {
+                    Set<String> followingIds = new HashSet<>();
+                    for (DocumentSnapshot doc : task.getResult().getDocuments()) {
+                        String followingId = doc.getString("followingId");
+                        if (followingId != null) {
+                            followingIds.add(followingId);
+                        }
+                    }
+                    if (userId.equals(cachedUserId)) {
+                        cachedFollowingIds = followingIds;
+                        loadingFollowingIds = null;
+                    }
+                    return followingIds;
+                })
+                .addOnFailureListener(e -> {
+                    if (userId.equals(cachedUserId)) {
+                        loadingFollowingIds = null;
+                    }
+                });
+        return loadingFollowingIds;
+    }
+
+    private void updateCachedFollowing(String targetUserId, boolean following) {
+        if (!currentUserId.equals(cachedUserId)) {
+            return;
+        }
+        if (cachedFollowingIds != null) {
+            if (following) {
+                cachedFollowingIds.add(targetUserId);
+            } else {
+                cachedFollowingIds.remove(targetUserId);
+            }
+        } else {
+            // Un chargement en cours pourrait ne pas voir ce changement, il sera relancé
+            cachedUserId = null;
+            loadingFollowingIds = null;
+        }
     }
 
-    /** Récupère le nombre de followers de targetUserId */
+    /** Récupère le nombre de followers de targetUserId, depuis ses compteurs */
     public Task<Integer> countFollowers(String targetUserId) {
-        return followsRef()
-                .whereEqualTo("followingId", targetUserId)
-                .get()
-                .continueWith(task -> task.getResult().size());
+        return counterController.getCounts(targetUserId)
+                .continueWith(task -> (int) task.getResult().getFollowers());
     }
 
     // Add these methods to your FollowController class
@@ -122,9 +268,7 @@ public class FollowController {
      * Get count of users the current user follows
      */
     public Task<Integer> countFollowing() {
-        return followsRef()
-                .whereEqualTo("followerId", currentUserId)
-                .get()
-                .continueWith(task -> task.getResult().size());
+        return counterController.getCounts(currentUserId)
+                .continueWith(task -> (int) task.getResult().getFollowing());
     }
 }
@@ -1,20 +1,29 @@
 package fr.upjv.geotrack.controllers;
 
+import android.content.ContentResolver;
+import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.WriteBatch;
 import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageMetadata;
 import com.google.firebase.storage.StorageReference;
 import com.google.firebase.storage.UploadTask;
 import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.JourneyStats;
+import fr.upjv.geotrack.utils.ImageUploadPipeline;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 
 public class JourneyController {
@@ -23,38 +32,101 @@ public class JourneyController {
     private FirebaseFirestore DBFireStore;
     private FirebaseStorage storage;
     private StorageReference storageRef;
+    private TimelineController timelineController;
+    private CounterController counterController;
 
     public JourneyController() {
         this.DBFireStore = FirebaseFirestore.getInstance();
         this.storage = FirebaseStorage.getInstance();
         this.storageRef = storage.getReference();
+        this.timelineController = new TimelineController(this.DBFireStore);
+        this.counterController = new CounterController(this.DBFireStore);
     }
 
     /**
-     * Create a new journey in Firestore with a specific document ID
+     * Create a new journey in Firestore with a specific document ID, together with its
+     * author's journey counter, then add it to the timelines of its author and followers
      * @param journey The journey object to create
      * @return Task<Void> for handling success/failure
      */
     public Task<Void> createJourney(Journey journey) {
         String documentId = journey.getId();
         Log.d(TAG, "Creating journey with ID: " + documentId);
-        return DBFireStore
-                .collection(this.collectionName)
-                .document(documentId)
-                .set(journey.toJson());
+        WriteBatch batch = DBFireStore.batch();
+        batch.set(DBFireStore.collection(this.collectionName).document(documentId), journey.toJson());
+        counterController.increment(batch, journey.getUserUUID(), CounterController.JOURNEYS, 1);
+        return batch.commit()
+                .continueWithTask(task -> publishToTimelines(task, journey));
     }
 
     /**
-     * Update an existing journey in Firestore
+     * Update an existing journey in Firestore, keeping its start date
      * @param journey The journey object to update
      * @return Task<Void> for handling success/failure
      */
     public Task<Void> updateJourney(Journey journey) {
+        return updateJourney(journey, journey.getStart());
+    }
+
+    /**
+     * Update an existing journey in Firestore. Timeline entries only hold the start date,
+     * so they are rewritten for every follower only when it changed.
+     * @param journey The journey object to update
+     * @param previousStart Start date the journey had before this edit
+     * @return Task<Void> for handling success/failure
+     */
+    public Task<Void> updateJourney(Journey journey, Date previousStart) {
         Log.d(TAG, "Updating journey: " + journey.getName());
-        return DBFireStore
+        Task<Void> saveTask = DBFireStore
                 .collection(this.collectionName)
                 .document(journey.getId())
                 .set(journey.toJson());
+        if (Objects.equals(previousStart, journey.getStart())) {
+            return saveTask;
+        }
+        return saveTask.continueWithTask(task -> publishToTimelines(task, journey));
+    }
+
+    // The journey is saved once its document is written, a timeline failure is only logged
+    private Task<Void> publishToTimelines(Task<Void> saveTask, Journey journey) throws Exception {
+        if (!saveTask.isSuccessful()) {
+            throw saveTask.getException();
+        }
+        return timelineController.publishJourney(journey).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                Log.w(TAG, "Could not publish journey to timelines: " + journey.getId(), task.getException());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Compute the track statistics of a journey and store them on its document.
+     * Existing statistics are continued with the fixes recorded since they were computed.
+     * @param journey The journey to refresh (its stats are updated in place)
+     * @return Task<JourneyStats> containing the stored statistics
+     */
+    public Task<JourneyStats> refreshJourneyStats(Journey journey) {
+        Log.d(TAG, "Refreshing stats for journey: " + journey.getId());
+        return new LocalisationController()
+                .computeJourneyStats(journey, journey.getStats())
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    JourneyStats stats = task.getResult();
+                    journey.setStats(stats);
+                    return DBFireStore
+                            .collection(this.collectionName)
+                            .document(journey.getId())
+                            .update("stats", stats.toJson())
+                            .continueWith(updateTask -> {
+                                if (!updateTask.isSuccessful()) {
+                                    throw updateTask.getException();
+                                }
+                                return stats;
+                            });
+                });
     }
 
     /**
@@ -91,10 +163,18 @@ public class JourneyController {
             }
 
             // Delete the Firestore document regardless of image deletion success
-            return DBFireStore
-                    .collection(this.collectionName)
-                    .document(journey.getId())
-                    .delete();
+            return deleteJourney(journey.getId());
+        }).continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            return timelineController.unpublishJourney(journey).continueWith(unpublishTask -> {
+                if (!unpublishTask.isSuccessful()) {
+                    // Timelines skip entries whose journey no longer exists
+                    Log.w(TAG, "Could not remove journey from timelines: " + journey.getId(), unpublishTask.getException());
+                }
+                return null;
+            });
         });
     }
 
@@ -105,50 +185,70 @@ public class JourneyController {
      */
     public Task<Void> deleteJourney(String journeyId) {
         Log.d(TAG, "Deleting journey with ID: " + journeyId);
-        return DBFireStore
-                .collection(this.collectionName)
-                .document(journeyId)
-                .delete();
+        DocumentReference journeyRef = DBFireStore.collection(this.collectionName).document(journeyId);
+        // The author is only known from the document, read it in the same transaction
+        return DBFireStore.runTransaction(transaction -> {
+            DocumentSnapshot document = transaction.get(journeyRef);
+            if (document.exists()) {
+                transaction.delete(journeyRef);
+                counterController.increment(transaction, document.getString("userUUID"), CounterController.JOURNEYS, -1);
+            }
+            return null;
+        });
     }
 
     /**
-     * Upload multiple images for a journey
+     * Upload multiple images for a journey, downscaled and re-encoded off the main thread.
+     * The first image also gets a small thumbnail, used as the journey cover.
+     * @param context Context used to read the picked images
      * @param journey The journey to add images to
      * @param imageUris List of image URIs to upload
      * @return Task<Journey> containing the updated journey with image paths
      */
-    public Task<Journey> uploadJourneyImages(Journey journey, List<Uri> imageUris) {
+    public Task<Journey> uploadJourneyImages(Context context, Journey journey, List<Uri> imageUris) {
         Log.d(TAG, "Uploading " + imageUris.size() + " images for journey: " + journey.getId());
 
+        ContentResolver resolver = context.getContentResolver();
+        ImageUploadPipeline.Spec spec = ImageUploadPipeline.JOURNEY_PHOTO;
+        ImageUploadPipeline.Spec thumbnailSpec = ImageUploadPipeline.JOURNEY_THUMBNAIL;
+        String thumbnailPath = journey.generateThumbnailPath(thumbnailSpec.getFileExtension());
         List<Task<String>> uploadTasks = new ArrayList<>();
+        Task<String> thumbnailTask = Tasks.forResult(null);
 
         for (int i = 0; i < imageUris.size(); i++) {
-            Uri imageUri = imageUris.get(i);
-            String imagePath = journey.generateImagePath(i, getFileExtension(imageUri));
-            StorageReference imageRef = storageRef.child(imagePath);
+            String imagePath = journey.generateImagePath(i, spec.getFileExtension());
+            Task<ImageUploadPipeline.PreparedImage> prepareTask = ImageUploadPipeline.prepare(
+                    resolver, imageUris.get(i), spec, i == 0 ? thumbnailSpec : null);
 
             // Create upload task and map it to return the storage path
-            Task<String> uploadTask = imageRef.putFile(imageUri)
-                    .continueWith(task -> {
-                        if (task.isSuccessful()) {
-                            return imagePath;
-                        } else {
-                            throw task.getException();
-                        }
-                    });
-
-            uploadTasks.add(uploadTask);
+            uploadTasks.add(prepareTask.continueWithTask(task -> {
+                if (!task.isSuccessful()) {
+                    throw task.getException();
+                }
+                return putImage(imagePath, task.getResult().data, spec);
+            }));
+
+            if (i == 0) {
+                thumbnailTask = prepareTask.continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    return putImage(thumbnailPath, task.getResult().thumbnail, thumbnailSpec);
+                });
+            }
         }
+        uploadTasks.add(thumbnailTask);
 
         // Wait for all uploads to complete
         return Tasks.<String>whenAllSuccess(uploadTasks).continueWith(task -> {
             if (task.isSuccessful()) {
-                List<String> imagePaths = task.getResult();
+                List<String> imagePaths = new ArrayList<>(task.getResult());
+                String uploadedThumbnail = imagePaths.remove(imagePaths.size() - 1);
                 journey.setImagePaths(imagePaths);
 
-                // Set the first image as thumbnail if not already set
-                if (!imagePaths.isEmpty() && journey.getThumbnailPath() == null) {
-                    journey.setThumbnailPath(imagePaths.get(0));
+                // The images were replaced, the cover follows the new first image
+                if (uploadedThumbnail != null) {
+                    journey.setThumbnailPath(uploadedThumbnail);
                 }
 
                 Log.d(TAG, "Successfully uploaded " + imagePaths.size() + " images");
@@ -161,20 +261,42 @@ public class JourneyController {
 
     /**
      * Upload a single image for a journey
+     * @param context Context used to read the picked image
      * @param journey The journey to add the image to
      * @param imageUri The URI of the image to upload
      * @return Task<String> containing the storage path of the uploaded image
      */
-    public Task<String> uploadSingleJourneyImage(Journey journey, Uri imageUri) {
+    public Task<String> uploadSingleJourneyImage(Context context, Journey journey, Uri imageUri) {
         int imageIndex = journey.getImageCount();
-        String imagePath = journey.generateImagePath(imageIndex, getFileExtension(imageUri));
-        StorageReference imageRef = storageRef.child(imagePath);
+        ImageUploadPipeline.Spec spec = ImageUploadPipeline.JOURNEY_PHOTO;
+        String imagePath = journey.generateImagePath(imageIndex, spec.getFileExtension());
 
         Log.d(TAG, "Uploading single image to: " + imagePath);
 
-        return imageRef.putFile(imageUri).continueWith(task -> {
+        return ImageUploadPipeline.prepare(context.getContentResolver(), imageUri, spec)
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    return putImage(imagePath, task.getResult().data, spec);
+                })
+                .continueWith(task -> {
+                    if (task.isSuccessful()) {
+                        journey.addImagePath(imagePath);
+                        return imagePath;
+                    } else {
+                        throw task.getException();
+                    }
+                });
+    }
+
+    // Upload encoded bytes with their content type, the task returns the storage path
+    private Task<String> putImage(String imagePath, byte[] data, ImageUploadPipeline.Spec spec) {
+        StorageMetadata metadata = new StorageMetadata.Builder()
+                .setContentType(spec.getContentType())
+                .build();
+        return storageRef.child(imagePath).putBytes(data, metadata).continueWith(task -> {
             if (task.isSuccessful()) {
-                journey.addImagePath(imagePath);
                 return imagePath;
             } else {
                 throw task.getException();
@@ -243,6 +365,39 @@ public class JourneyController {
                 .get();
     }
 
+    /**
+     * Get a page of the home feed, most recent journeys first
+     * @param after Last document of the previous page, or null for the first page
+     * @param pageSize Number of journeys per page
+     * @return Task<QuerySnapshot> containing the page
+     */
+    public Task<QuerySnapshot> getFeedPage(DocumentSnapshot after, int pageSize) {
+        Query query = DBFireStore
+                .collection(this.collectionName)
+                .orderBy("start", Query.Direction.DESCENDING)
+                .limit(pageSize);
+        // The cursor is the whole document, so journeys sharing a start date are not skipped
+        if (after != null) {
+            query = query.startAfter(after);
+        }
+        return query.get();
+    }
+
+    /**
+     * Get the page of the home feed just before a journey, e.g. to reload a dropped page
+     * @param before First document of the following page
+     * @param pageSize Number of journeys per page
+     * @return Task<QuerySnapshot> containing the page, most recent journeys first
+     */
+    public Task<QuerySnapshot> getFeedPageBefore(DocumentSnapshot before, int pageSize) {
+        return DBFireStore
+                .collection(this.collectionName)
+                .orderBy("start", Query.Direction.DESCENDING)
+                .endBefore(before)
+                .limitToLast(pageSize)
+                .get();
+    }
+
     /**
      * Get a specific journey by ID
      * @param journeyId The ID of the journey to retrieve
@@ -308,21 +463,4 @@ public class JourneyController {
                     Log.e(TAG, "Failed to save journey to Firestore", e);
                 });
     }
-
-    /**
-     * Helper method to get file extension from URI
-     * @param uri The URI of the file
-     * @return File extension (defaults to "jpg" if not found)
-     */
-    private String getFileExtension(Uri uri) {
-        String uriString = uri.toString();
-        String extension = "jpg"; // default
-
-        int lastDot = uriString.lastIndexOf('.');
-        if (lastDot != -1 && lastDot < uriString.length() - 1) {
-            extension = uriString.substring(lastDot + 1).toLowerCase();
-        }
-
-        return extension;
-    }
 }
\ No newline at end of file
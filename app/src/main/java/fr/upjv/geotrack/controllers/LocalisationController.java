@@ -2,21 +2,81 @@ package fr.upjv.geotrack.controllers;
 
 import android.util.Log;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.WriteBatch;
 import fr.upjv.geotrack.models.Localisation;
 import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.JourneyStats;
+import fr.upjv.geotrack.models.Track;
+import fr.upjv.geotrack.utils.GeoHash;
+import fr.upjv.geotrack.utils.TrackCodec;
+import fr.upjv.geotrack.utils.TrackSimplifier;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class LocalisationController {
     private static final String TAG = "LocalisationController";
+    // Firestore rejects batches with more than 500 operations
+    public static final int MAX_BATCH_OPERATIONS = 500;
+    // Maximum deviation allowed when simplifying journey tracks
+    public static final double TRACK_TOLERANCE_METERS = 5.0;
+    // Number of localisation documents fetched per page when streaming a track
+    public static final int TRACK_PAGE_SIZE = 500;
+    // Tracks are stored as one chunk document per user and per hour
+    public static final long CHUNK_DURATION_MS = 60 * 60 * 1000;
+    // Number of hourly chunks fetched per page (one day)
+    public static final int TRACK_CHUNK_PAGE_SIZE = 24;
+    // Journaled fixes are flushed within minutes, or later when the device was offline
+    private static final long LIVE_CHUNK_WINDOW_MS = 24 * CHUNK_DURATION_MS;
     private String collectionName = "localisation";
+    private String chunkCollectionName = "trackChunks";
     private String currentLocationCollectionName = "updateUserCurrentLocation";
     private FirebaseFirestore DBFireStore;
 
+    // Interface for paginated track loading callbacks
+    public interface TrackPageCallback {
+        /**
+         * Called for every page, in chronological order
+         * @param page Simplified points of this page
+         * @return false to stop loading further pages
+         */
+        boolean onPageLoaded(Track page);
+        void onComplete(int totalPoints);
+        void onFailure(String error);
+    }
+
+    // A page of chunks being streamed, and the hours it leaves to the per-point documents
+    private static class ChunkWindow {
+        Track chunkPoints;
+        List<long[]> gaps;
+        DocumentSnapshot lastDocument;
+        long end;
+        boolean lastPage;
+        // Number of chunk points already delivered
+        int delivered;
+
+        // Take the chunk points recorded before a time that were not delivered yet
+        Track takeChunkPointsBefore(long time) {
+            int from = delivered;
+            while (delivered < chunkPoints.size() && chunkPoints.getTimestamp(delivered) < time) {
+                delivered++;
+            }
+            return chunkPoints.subTrack(from, delivered);
+        }
+    }
+
     public LocalisationController(){
         this.DBFireStore = FirebaseFirestore.getInstance();
     }
@@ -46,7 +106,7 @@ public class LocalisationController {
         DBFireStore
                 .collection(this.currentLocationCollectionName)
                 .document(localisation.getUserUUID()) // Use userUUID as document ID
-                .set(localisation.toJson())
+                .set(currentLocationToJson(localisation))
                 .addOnSuccessListener(aVoid -> {
                     Log.d(TAG, "Current location updated successfully for user: " + localisation.getUserUUID());
                 })
@@ -56,97 +116,616 @@ public class LocalisationController {
     }
 
     /**
-     * Get localizations within a journey's time period with approximately 15-minute intervals
-     * @param journey The journey to get localizations for
-     * @return Task<List<Localisation>> containing filtered localizations with ~15min gaps
+     * Current location document, with the geohash used by proximity queries
+     */
+    private HashMap<String, Object> currentLocationToJson(Localisation localisation) {
+        HashMap<String, Object> hash = localisation.toJson();
+        hash.put("geohash", GeoHash.encode(localisation.getLatitude(), localisation.getLongitude()));
+        return hash;
+    }
+
+    /**
+     * Find the users whose current location is within a distance of a point.
+     * Reads one geohash range per covering cell (at most four) instead of every user.
+     * @param latitude Latitude of the center
+     * @param longitude Longitude of the center
+     * @param radiusMeters Search radius in meters
+     * @return Task<List<Localisation>> containing the current locations found, closest first
      */
-    public Task<List<Localisation>> getLocalisationsForJourney(Journey journey) {
-        Log.d(TAG, "Fetching localizations for journey: " + journey.getId());
+    public Task<List<Localisation>> getUsersNearby(double latitude, double longitude, double radiusMeters) {
+        List<String[]> bounds = GeoHash.queryBounds(latitude, longitude, radiusMeters);
+        List<Task<QuerySnapshot>> queries = new ArrayList<>();
+        for (String[] range : bounds) {
+            queries.add(DBFireStore
+                    .collection(this.currentLocationCollectionName)
+                    .orderBy("geohash")
+                    .startAt(range[0])
+                    .endAt(range[1])
+                    .get());
+        }
+
+        return Tasks.whenAllComplete(queries).continueWith(task -> {
+            // Ranges do not overlap, but keep one location per user to be safe
+            HashMap<String, Localisation> found = new HashMap<>();
+            HashMap<String, Double> distances = new HashMap<>();
+            int read = 0;
+            for (Task<QuerySnapshot> query : queries) {
+                if (!query.isSuccessful()) {
+                    throw query.getException();
+                }
+                for (DocumentSnapshot document : query.getResult().getDocuments()) {
+                    read++;
+                    Double lat = document.getDouble("latitude");
+                    Double lon = document.getDouble("longitude");
+                    if (lat == null || lon == null) {
+                        continue;
+                    }
+                    // Cells are larger than the circle, keep only what is really inside
+                    double distance = GeoHash.distanceMeters(latitude, longitude, lat, lon);
+                    if (distance > radiusMeters) {
+                        continue;
+                    }
+                    String userUUID = document.getString("userUUID");
+                    Localisation localisation = new Localisation(
+                            document.getString("id"),
+                            userUUID != null ? userUUID : document.getId(),
+                            document.getDate("timestamp"),
+                            lat,
+                            lon
+                    );
+                    found.put(localisation.getUserUUID(), localisation);
+                    distances.put(localisation.getUserUUID(), distance);
+                }
+            }
+
+            List<Localisation> nearby = new ArrayList<>(found.values());
+            Collections.sort(nearby, (a, b) -> Double.compare(distances.get(a.getUserUUID()), distances.get(b.getUserUUID())));
+            Log.d(TAG, "Found " + nearby.size() + " users within " + radiusMeters + "m ("
+                    + read + " documents read in " + bounds.size() + " range(s))");
+            return nearby;
+        });
+    }
+
+    /**
+     * Save a track as per-user hourly chunk documents. Points are merged into existing
+     * chunks inside a transaction, and the latest point becomes the user's current location.
+     * @param track Track ordered by timestamp
+     * @return Task<Void> completing when every chunk and the current location are written
+     */
+    public Task<Void> saveTrackChunks(Track track) {
+        if (track == null || track.isEmpty()) {
+            return Tasks.forResult(null);
+        }
+
+        List<Task<Void>> writes = new ArrayList<>();
+        writes.add(writeTrackChunks(track));
+
+        int last = track.size() - 1;
+        Localisation latest = new Localisation(
+                track.getUserUUID() + "_" + track.getTimestamp(last),
+                track.getUserUUID(),
+                new Date(track.getTimestamp(last)),
+                track.getLatitude(last),
+                track.getLongitude(last)
+        );
+        writes.add(DBFireStore
+                .collection(this.currentLocationCollectionName)
+                .document(latest.getUserUUID())
+                .set(currentLocationToJson(latest)));
+
+        return Tasks.whenAll(writes);
+    }
+
+    /**
+     * Split a track on hour boundaries and merge every part into its chunk document
+     */
+    private Task<Void> writeTrackChunks(Track track) {
+        List<Task<Void>> writes = new ArrayList<>();
+        int from = 0;
+        while (from < track.size()) {
+            long bucket = track.getTimestamp(from) / CHUNK_DURATION_MS;
+            int to = from + 1;
+            while (to < track.size() && track.getTimestamp(to) / CHUNK_DURATION_MS == bucket) {
+                to++;
+            }
+            writes.add(mergeIntoChunk(track.getUserUUID(), bucket, track.subTrack(from, to)));
+            from = to;
+        }
+        Log.d(TAG, "Writing " + track.size() + " points into " + writes.size() + " chunk(s)");
+        return Tasks.whenAll(writes);
+    }
+
+    /**
+     * Bulk write of imported points. The existing chunks of the covered hours are read with a
+     * single query, merged in memory and written back with WriteBatches of at most 500
+     * documents, instead of one transaction per chunk. Callers must not write the same
+     * hours concurrently, e.g. by only handing over hours that are complete.
+     * Hours within LIVE_CHUNK_WINDOW_MS of now may also receive fixes from LocationService,
+     * so they are merged in transactions like recorded fixes instead.
+     * @param userUUID Owner of the points
+     * @param points Points ordered by timestamp
+     * @return Task<Void> completing when every batch is committed
+     */
+    public Task<Void> saveImportedChunks(String userUUID, Track points) {
+        if (points == null || points.isEmpty()) {
+            return Tasks.forResult(null);
+        }
+        long firstLiveTimestamp = (System.currentTimeMillis() - LIVE_CHUNK_WINDOW_MS) / CHUNK_DURATION_MS * CHUNK_DURATION_MS;
+        int split = 0;
+        while (split < points.size() && points.getTimestamp(split) < firstLiveTimestamp) {
+            split++;
+        }
+        if (split == points.size()) {
+            return batchImportedChunks(userUUID, points);
+        }
+        Task<Void> liveWrites = writeTrackChunks(points.subTrack(split, points.size()));
+        if (split == 0) {
+            return liveWrites;
+        }
+        return Tasks.whenAll(batchImportedChunks(userUUID, points.subTrack(0, split)), liveWrites);
+    }
+
+    private Task<Void> batchImportedChunks(String userUUID, Track points) {
+        long firstBucket = points.getTimestamp(0) / CHUNK_DURATION_MS;
+        long lastBucket = points.getTimestamp(points.size() - 1) / CHUNK_DURATION_MS;
 
         return DBFireStore
-                .collection(this.collectionName)
-                .whereEqualTo("userUUID", journey.getUserUUID())
-                .whereGreaterThanOrEqualTo("timestamp", journey.getStart())
-                .whereLessThanOrEqualTo("timestamp", journey.getEnd())
-                .orderBy("timestamp", Query.Direction.ASCENDING)
+                .collection(this.chunkCollectionName)
+                .whereEqualTo("userUUID", userUUID)
+                .whereGreaterThanOrEqualTo("start", new Date(firstBucket * CHUNK_DURATION_MS))
+                .whereLessThanOrEqualTo("start", new Date(lastBucket * CHUNK_DURATION_MS))
                 .get()
-                .continueWith(task -> {
-                    List<Localisation> allLocalisations = new ArrayList<>();
-                    List<Localisation> filteredLocalisations = new ArrayList<>();
-
-                    if (task.isSuccessful() && task.getResult() != null) {
-                        // First, parse all documents
-                        for (DocumentSnapshot document : task.getResult()) {
-                            try {
-                                String id = document.getString("id");
-                                String userUUID = document.getString("userUUID");
-                                java.util.Date timestamp = document.getDate("timestamp");
-                                Double latitude = document.getDouble("latitude");
-                                Double longitude = document.getDouble("longitude");
-
-                                if (id != null && userUUID != null && timestamp != null &&
-                                        latitude != null && longitude != null) {
-                                    Localisation localisation = new Localisation(
-                                            id, userUUID, timestamp, latitude, longitude
-                                    );
-                                    allLocalisations.add(localisation);
-                                }
-                            } catch (Exception e) {
-                                Log.w(TAG, "Error parsing localisation document: " + document.getId(), e);
-                            }
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    Map<Long, Track> existing = new HashMap<>();
+                    for (DocumentSnapshot document : task.getResult()) {
+                        Date start = document.getDate("start");
+                        Blob stored = document.getBlob("points");
+                        if (start == null || stored == null) {
+                            continue;
+                        }
+                        Track storedPoints = new Track(userUUID, null);
+                        try {
+                            TrackCodec.decode(stored.toBytes(), storedPoints);
+                            existing.put(start.getTime() / CHUNK_DURATION_MS, storedPoints);
+                        } catch (IllegalArgumentException e) {
+                            Log.e(TAG, "Corrupted track chunk " + document.getId() + ", overwriting it", e);
                         }
+                    }
 
-                        // Filter to get locations with ~15 minute intervals
-                        filteredLocalisations = filterByTimeInterval(allLocalisations, 15 * 60 * 1000); // 15 minutes in milliseconds
+                    List<Task<Void>> commits = new ArrayList<>();
+                    WriteBatch batch = DBFireStore.batch();
+                    int operations = 0;
+                    int from = 0;
+                    while (from < points.size()) {
+                        long bucket = points.getTimestamp(from) / CHUNK_DURATION_MS;
+                        int to = from + 1;
+                        while (to < points.size() && points.getTimestamp(to) / CHUNK_DURATION_MS == bucket) {
+                            to++;
+                        }
+                        Track part = points.subTrack(from, to);
+                        Track stored = existing.get(bucket);
+                        Track merged = stored != null ? Track.merge(stored, part) : part;
 
-                        Log.d(TAG, "Retrieved " + allLocalisations.size() + " total localizations, filtered to " +
-                                filteredLocalisations.size() + " with 15-minute intervals");
-                    } else {
-                        Log.w(TAG, "Failed to retrieve localizations", task.getException());
+                        if (operations == MAX_BATCH_OPERATIONS) {
+                            commits.add(batch.commit());
+                            batch = DBFireStore.batch();
+                            operations = 0;
+                        }
+                        batch.set(DBFireStore.collection(this.chunkCollectionName).document(userUUID + "_" + bucket),
+                                chunkToJson(userUUID, bucket, merged));
+                        operations++;
+                        from = to;
                     }
-                    return filteredLocalisations;
+                    commits.add(batch.commit());
+
+                    Log.d(TAG, "Importing " + points.size() + " points in " + commits.size() + " batch(es)");
+                    return Tasks.whenAll(commits);
                 });
     }
 
+    private Task<Void> mergeIntoChunk(String userUUID, long bucket, Track points) {
+        DocumentReference chunkRef = DBFireStore
+                .collection(this.chunkCollectionName)
+                .document(userUUID + "_" + bucket);
+
+        return DBFireStore.runTransaction(transaction -> {
+            DocumentSnapshot existing = transaction.get(chunkRef);
+            Track merged = points;
+            if (existing.exists()) {
+                Blob stored = existing.getBlob("points");
+                Track storedPoints = new Track(userUUID, null);
+                try {
+                    if (stored != null) {
+                        TrackCodec.decode(stored.toBytes(), storedPoints);
+                    }
+                    merged = Track.merge(storedPoints, points);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Corrupted track chunk " + chunkRef.getId() + ", overwriting it", e);
+                }
+            }
+            transaction.set(chunkRef, chunkToJson(userUUID, bucket, merged));
+            return null;
+        });
+    }
+
+    private HashMap<String, Object> chunkToJson(String userUUID, long bucket, Track points) {
+        HashMap<String, Object> hash = new HashMap<>();
+        hash.put("userUUID", userUUID);
+        hash.put("start", new Date(bucket * CHUNK_DURATION_MS));
+        hash.put("end", new Date((bucket + 1) * CHUNK_DURATION_MS - 1));
+        hash.put("pointCount", points.size());
+        hash.put("points", Blob.fromBytes(TrackCodec.encode(points)));
+        return hash;
+    }
+
     /**
-     * Filter localizations to maintain approximately the specified time interval between points
-     * @param localisations List of all localizations (should be ordered by timestamp)
-     * @param intervalMs Desired interval in milliseconds (e.g., 15 * 60 * 1000 for 15 minutes)
-     * @return Filtered list with desired time intervals
+     * Compute the statistics of a journey from its full-resolution track.
+     * When previous statistics are given, only the fixes recorded after their last point are read.
+     * Statistics whose last point is outside the journey's time window are computed again from scratch.
+     * @param journey The journey to compute statistics for
+     * @param previous Statistics to continue from, or null to start from scratch
+     * @return Task<JourneyStats> containing the updated statistics
      */
-    private List<Localisation> filterByTimeInterval(List<Localisation> localisations, long intervalMs) {
-        if (localisations.isEmpty()) {
-            return new ArrayList<>();
+    public Task<JourneyStats> computeJourneyStats(Journey journey, JourneyStats previous) {
+        Date from = journey.getStart();
+        boolean resumable = previous != null && previous.getPointCount() > 0
+                && previous.getLastTimestamp() >= from.getTime()
+                && previous.getLastTimestamp() <= journey.getEnd().getTime();
+        JourneyStats stats = resumable ? previous : new JourneyStats();
+        if (resumable) {
+            from = new Date(stats.getLastTimestamp() + 1);
         }
+        long computedAt = System.currentTimeMillis();
+        Log.d(TAG, "Computing stats for journey " + journey.getId() + " from " + from);
 
-        List<Localisation> filtered = new ArrayList<>();
+        return fetchTrack(journey, from).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            stats.addTrack(task.getResult());
+            stats.setComputedUntil(computedAt);
+            Log.d(TAG, "Journey stats computed: " + stats);
+            return stats;
+        });
+    }
 
-        // Always include the first location
-        filtered.add(localisations.get(0));
+    /**
+     * Fetch the full-resolution track of a journey, starting at the given date.
+     * Reads the hourly chunk documents, and the per-point documents of the hours no chunk
+     * covers for data that has not been migrated yet.
+     */
+    private Task<Track> fetchTrack(Journey journey, Date from) {
+        return chunkQuery(journey, from)
+                .get()
+                .continueWithTask(chunkTask -> {
+                    if (!chunkTask.isSuccessful()) {
+                        // Reading only the legacy documents would return a truncated track
+                        throw chunkTask.getException();
+                    }
+                    QuerySnapshot chunks = chunkTask.getResult();
+                    Track track = parseChunks(journey, from, chunks);
+                    return fetchLegacyGaps(journey, from.getTime(), journey.getEnd().getTime(), chunks)
+                            .continueWith(task -> {
+                                if (!task.isSuccessful()) {
+                                    throw task.getException();
+                                }
+                                return Track.merge(task.getResult(), track);
+                            });
+                });
+    }
 
-        if (localisations.size() == 1) {
-            return filtered;
+    /**
+     * Read the per-point documents recorded between from and to in the hours that no chunk covers,
+     * i.e. data not migrated yet or written by older app versions.
+     * Consecutive uncovered hours are read with a single range query.
+     * @param chunks Chunk documents already read for this time window
+     * @return Task<Track> containing the legacy points sorted by timestamp
+     */
+    private Task<Track> fetchLegacyGaps(Journey journey, long from, long to, QuerySnapshot chunks) {
+        List<Task<QuerySnapshot>> queries = new ArrayList<>();
+        for (long[] gap : uncoveredRanges(from, to, chunks)) {
+            queries.add(legacyQuery(journey, new Date(gap[0]), new Date(gap[1])).get());
+        }
+        if (queries.isEmpty()) {
+            return Tasks.forResult(new Track(journey.getUserUUID(), journey.getId()));
         }
 
-        long lastSelectedTime = localisations.get(0).getTimestamp().getTime();
+        return Tasks.<QuerySnapshot>whenAllSuccess(queries).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            // Gaps are disjoint and in chronological order
+            Track track = new Track(journey.getUserUUID(), journey.getId());
+            for (QuerySnapshot snapshot : task.getResult()) {
+                track.addAll(parseTrack(journey, snapshot));
+            }
+            return track;
+        });
+    }
 
-        for (int i = 1; i < localisations.size(); i++) {
-            Localisation current = localisations.get(i);
-            long currentTime = current.getTimestamp().getTime();
+    /**
+     * List the time ranges between from and to that fall in hours no chunk covers
+     * @param chunks Chunk documents read for this time window
+     * @return {start, end} ranges in chronological order, bounds included
+     */
+    private List<long[]> uncoveredRanges(long from, long to, QuerySnapshot chunks) {
+        Set<Long> covered = new HashSet<>();
+        for (DocumentSnapshot document : chunks) {
+            Date start = document.getDate("start");
+            if (start != null) {
+                covered.add(start.getTime() / CHUNK_DURATION_MS);
+            }
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        long bucket = from / CHUNK_DURATION_MS;
+        long lastBucket = to / CHUNK_DURATION_MS;
+        while (bucket <= lastBucket) {
+            if (covered.contains(bucket)) {
+                bucket++;
+                continue;
+            }
+            long gapStart = Math.max(from, bucket * CHUNK_DURATION_MS);
+            while (bucket <= lastBucket && !covered.contains(bucket)) {
+                bucket++;
+            }
+            ranges.add(new long[]{gapStart, Math.min(to, bucket * CHUNK_DURATION_MS - 1)});
+        }
+        return ranges;
+    }
+
+    /**
+     * Stream the track of a journey page by page using startAfter cursors, so the caller
+     * can start drawing after the first page and never holds the raw data of the whole journey.
+     * Pages are made of hourly chunks, or of per-point documents for data not migrated yet.
+     * @param journey The journey to get the track for
+     * @param callback Receives each simplified page, then the completion or the error
+     */
+    public void loadTrackForJourney(Journey journey, TrackPageCallback callback) {
+        loadTrackForJourney(journey, TRACK_TOLERANCE_METERS, callback);
+    }
+
+    /**
+     * Stream the track of a journey page by page, simplified with a given tolerance
+     * @param toleranceMeters Maximum deviation of the pages from the recorded track
+     */
+    public void loadTrackForJourney(Journey journey, double toleranceMeters, TrackPageCallback callback) {
+        Log.d(TAG, "Streaming track for journey: " + journey.getId() + " (tolerance " + toleranceMeters + "m)");
+        loadChunkPage(journey, null, journey.getStart().getTime(), 0, toleranceMeters, callback);
+    }
+
+    /**
+     * Load the next page of chunks. A page covers the time from windowStart to the end of its
+     * last chunk (or to the journey end for the last page). The legacy points of the hours
+     * without a chunk in that window are then streamed by pages of TRACK_PAGE_SIZE documents,
+     * so a journey that was never migrated is not read at once.
+     */
+    private void loadChunkPage(Journey journey, DocumentSnapshot cursor, long windowStart, int loadedSoFar,
+                               double toleranceMeters, TrackPageCallback callback) {
+        Query query = chunkQuery(journey, new Date(windowStart)).limit(TRACK_CHUNK_PAGE_SIZE);
+        if (cursor != null) {
+            query = query.startAfter(cursor);
+        }
+
+        query.get()
+                .addOnSuccessListener(snapshot -> {
+                    ChunkWindow window = new ChunkWindow();
+                    window.lastPage = snapshot.size() < TRACK_CHUNK_PAGE_SIZE;
+                    window.lastDocument = snapshot.isEmpty() ? null : snapshot.getDocuments().get(snapshot.size() - 1);
+                    Date lastChunkStart = window.lastDocument != null ? window.lastDocument.getDate("start") : null;
+                    window.end = window.lastPage || lastChunkStart == null
+                            ? journey.getEnd().getTime()
+                            : lastChunkStart.getTime() + CHUNK_DURATION_MS - 1;
+                    window.chunkPoints = parseChunks(journey, new Date(windowStart), snapshot);
+                    window.gaps = uncoveredRanges(windowStart, window.end, snapshot);
+                    Log.d(TAG, "Track chunk page loaded: " + snapshot.size() + " chunks, "
+                            + window.gaps.size() + " uncovered ranges");
+
+                    loadGapPage(journey, window, 0, null, loadedSoFar, toleranceMeters, callback);
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Failed to load track chunk page", e);
+                    callback.onFailure(e.getMessage());
+                });
+    }
 
-            // If enough time has passed since the last selected location
-            if (currentTime - lastSelectedTime >= intervalMs) {
-                filtered.add(current);
-                lastSelectedTime = currentTime;
+    /**
+     * Load the next page of legacy points of a chunk window. Each page is delivered together with
+     * the chunk points recorded before it, so pages stay in chronological order.
+     * Once every gap is read, the remaining chunk points are delivered and the next window is loaded.
+     */
+    private void loadGapPage(Journey journey, ChunkWindow window, int gapIndex, DocumentSnapshot cursor,
+                             int loadedSoFar, double toleranceMeters, TrackPageCallback callback) {
+        if (gapIndex == window.gaps.size()) {
+            Track page = window.takeChunkPointsBefore(Long.MAX_VALUE);
+            int loaded = loadedSoFar + page.size();
+            boolean keepLoading = page.isEmpty() || callback.onPageLoaded(TrackSimplifier.simplify(page, toleranceMeters));
+            if (keepLoading && !window.lastPage && window.end < journey.getEnd().getTime()) {
+                loadChunkPage(journey, window.lastDocument, window.end + 1, loaded, toleranceMeters, callback);
+            } else {
+                callback.onComplete(loaded);
             }
+            return;
+        }
+
+        long[] gap = window.gaps.get(gapIndex);
+        Query query = legacyQuery(journey, new Date(gap[0]), new Date(gap[1])).limit(TRACK_PAGE_SIZE);
+        if (cursor != null) {
+            query = query.startAfter(cursor);
+        }
+
+        query.get()
+                .addOnSuccessListener(snapshot -> {
+                    // Chunk points before this gap come first, the gap's points all come after them
+                    Track page = window.takeChunkPointsBefore(gap[0]);
+                    page.addAll(parseTrack(journey, snapshot));
+                    int loaded = loadedSoFar + page.size();
+                    if (!page.isEmpty() && !callback.onPageLoaded(TrackSimplifier.simplify(page, toleranceMeters))) {
+                        callback.onComplete(loaded);
+                        return;
+                    }
+                    Log.d(TAG, "Legacy track page loaded: " + snapshot.size() + " documents (" + loaded + " points so far)");
+
+                    if (snapshot.size() == TRACK_PAGE_SIZE) {
+                        DocumentSnapshot lastDocument = snapshot.getDocuments().get(snapshot.size() - 1);
+                        loadGapPage(journey, window, gapIndex, lastDocument, loaded, toleranceMeters, callback);
+                    } else {
+                        loadGapPage(journey, window, gapIndex + 1, null, loaded, toleranceMeters, callback);
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Failed to load legacy localisations of track page", e);
+                    callback.onFailure(e.getMessage());
+                });
+    }
+
+    /**
+     * Migration tool: move a user's per-point localisation documents into hourly chunks.
+     * Documents are processed page by page in timestamp order; merging into chunks is
+     * idempotent, so the migration can safely be run again after a failure.
+     * @param userUUID The user whose localisations are migrated
+     * @param deleteLegacy true to delete each page of point documents once its chunks are written
+     * @return Task<Integer> containing the number of migrated points
+     */
+    public Task<Integer> migrateLegacyLocalisations(String userUUID, boolean deleteLegacy) {
+        Log.d(TAG, "Migrating legacy localisations to chunks for user: " + userUUID);
+        return migrateLegacyPage(userUUID, deleteLegacy, null, 0);
+    }
+
+    private Task<Integer> migrateLegacyPage(String userUUID, boolean deleteLegacy, DocumentSnapshot cursor, int migratedSoFar) {
+        Query query = DBFireStore
+                .collection(this.collectionName)
+                .whereEqualTo("userUUID", userUUID)
+                .orderBy("timestamp", Query.Direction.ASCENDING)
+                .limit(MAX_BATCH_OPERATIONS);
+        if (cursor != null && !deleteLegacy) {
+            // Deleted pages vanish from the query, so the cursor is only needed when keeping them
+            query = query.startAfter(cursor);
         }
 
-        // Always include the last location if it's not already included
-        Localisation lastLocation = localisations.get(localisations.size() - 1);
-        if (!filtered.contains(lastLocation)) {
-            filtered.add(lastLocation);
+        return query.get().continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            QuerySnapshot snapshot = task.getResult();
+            if (snapshot.isEmpty()) {
+                Log.d(TAG, "Migration complete: " + migratedSoFar + " points moved to chunks");
+                return Tasks.forResult(migratedSoFar);
+            }
+
+            Track page = new Track(userUUID, null, snapshot.size());
+            for (DocumentSnapshot document : snapshot) {
+                Date timestamp = document.getDate("timestamp");
+                Double latitude = document.getDouble("latitude");
+                Double longitude = document.getDouble("longitude");
+                if (timestamp != null && latitude != null && longitude != null) {
+                    page.add(timestamp.getTime(), latitude, longitude);
+                }
+            }
+            page.sortByTime();
+
+            int migrated = migratedSoFar + page.size();
+            DocumentSnapshot lastDocument = snapshot.getDocuments().get(snapshot.size() - 1);
+            boolean lastPage = snapshot.size() < MAX_BATCH_OPERATIONS;
+
+            return writeTrackChunks(page).continueWithTask(writeTask -> {
+                if (!writeTask.isSuccessful()) {
+                    throw writeTask.getException();
+                }
+                if (!deleteLegacy) {
+                    return Tasks.forResult((Void) null);
+                }
+                WriteBatch batch = DBFireStore.batch();
+                for (DocumentSnapshot document : snapshot) {
+                    batch.delete(document.getReference());
+                }
+                return batch.commit();
+            }).continueWithTask(deleteTask -> {
+                if (!deleteTask.isSuccessful()) {
+                    throw deleteTask.getException();
+                }
+                if (lastPage) {
+                    Log.d(TAG, "Migration complete: " + migrated + " points moved to chunks");
+                    return Tasks.forResult(migrated);
+                }
+                return migrateLegacyPage(userUUID, deleteLegacy, lastDocument, migrated);
+            });
+        });
+    }
+
+    private Query chunkQuery(Journey journey, Date from) {
+        // Chunks are keyed by their hour start, so include the chunk containing the first wanted point
+        long firstChunkStart = (from.getTime() / CHUNK_DURATION_MS) * CHUNK_DURATION_MS;
+        return DBFireStore
+                .collection(this.chunkCollectionName)
+                .whereEqualTo("userUUID", journey.getUserUUID())
+                .whereGreaterThanOrEqualTo("start", new Date(firstChunkStart))
+                .whereLessThanOrEqualTo("start", journey.getEnd())
+                .orderBy("start", Query.Direction.ASCENDING);
+    }
+
+    private Query legacyQuery(Journey journey, Date from, Date to) {
+        return DBFireStore
+                .collection(this.collectionName)
+                .whereEqualTo("userUUID", journey.getUserUUID())
+                .whereGreaterThanOrEqualTo("timestamp", from)
+                .whereLessThanOrEqualTo("timestamp", to)
+                .orderBy("timestamp", Query.Direction.ASCENDING);
+    }
+
+    /**
+     * Decode chunk documents into a single track, keeping only the points between from and the journey end
+     */
+    private Track parseChunks(Journey journey, Date from, QuerySnapshot snapshot) {
+        long start = from.getTime();
+        long end = journey.getEnd().getTime();
+        Track track = new Track(journey.getUserUUID(), journey.getId());
+
+        for (DocumentSnapshot document : snapshot) {
+            Blob points = document.getBlob("points");
+            if (points == null) {
+                continue;
+            }
+            Track chunkPoints = new Track(journey.getUserUUID(), journey.getId());
+            try {
+                TrackCodec.decode(points.toBytes(), chunkPoints);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Error decoding track chunk: " + document.getId(), e);
+                continue;
+            }
+            for (int i = 0; i < chunkPoints.size(); i++) {
+                long timestamp = chunkPoints.getTimestamp(i);
+                if (timestamp >= start && timestamp <= end) {
+                    track.add(timestamp, chunkPoints.getLatitude(i), chunkPoints.getLongitude(i));
+                }
+            }
         }
+        track.sortByTime();
+        return track;
+    }
 
-        return filtered;
+    /**
+     * Parse localisation documents into a track sorted by timestamp
+     */
+    private Track parseTrack(Journey journey, QuerySnapshot snapshot) {
+        Track track = new Track(journey.getUserUUID(), journey.getId(), snapshot.size());
+        for (DocumentSnapshot document : snapshot) {
+            try {
+                Date timestamp = document.getDate("timestamp");
+                Double latitude = document.getDouble("latitude");
+                Double longitude = document.getDouble("longitude");
+
+                if (timestamp != null && latitude != null && longitude != null) {
+                    track.add(timestamp.getTime(), latitude, longitude);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Error parsing localisation document: " + document.getId(), e);
+            }
+        }
+        track.sortByTime();
+        return track;
     }
 }
\ No newline at end of file
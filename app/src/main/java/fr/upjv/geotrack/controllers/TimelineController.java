@@ -0,0 +1,341 @@
+package fr.upjv.geotrack.controllers;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fr.upjv.geotrack.models.Journey;
+
+/**
+ * Fan-out-on-write timelines: every journey gets a small entry in the timeline of its
+ * author and of each of the author's followers, stored in timelines/{userId}/entries.
+ * Reading a personalized feed is then one ordered query on the reader's own timeline,
+ * whatever the number of followed accounts.
+ *
+ * The Firestore instance can be injected, e.g. one connected to the local emulator with
+ * FirebaseFirestore.useEmulator("10.0.2.2", 8080) when testing.
+ */
+public class TimelineController {
+    private static final String TAG = "TimelineController";
+    // Firestore rejects batches with more than 500 operations
+    private static final int MAX_BATCH_OPERATIONS = LocalisationController.MAX_BATCH_OPERATIONS;
+    private static final int WHERE_IN_LIMIT = 30;
+    // Journeys copied into a timeline when following someone
+    private static final int BACKFILL_SIZE = 20;
+    // Set on timelines/{userId} once the follows that predate timelines were copied in
+    private static final String BACKFILLED = "backfilled";
+    private String collectionName = "timelines";
+    private String entriesCollectionName = "entries";
+    private String journeyCollectionName = "journey";
+    private FirebaseFirestore DBFireStore;
+
+    public TimelineController() {
+        this(FirebaseFirestore.getInstance());
+    }
+
+    public TimelineController(FirebaseFirestore firestore) {
+        this.DBFireStore = firestore;
+    }
+
+    private CollectionReference entriesOf(String userId) {
+        return DBFireStore.collection(this.collectionName).document(userId).collection(this.entriesCollectionName);
+    }
+
+    /**
+     * Write or refresh the entry of a journey in the timelines of its author and followers
+     * @param journey The created or updated journey
+     * @return Task<Void> completing when every timeline is written
+     */
+    public Task<Void> publishJourney(Journey journey) {
+        return getFollowerIds(journey.getUserUUID()).continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            Set<String> readers = task.getResult();
+            readers.add(journey.getUserUUID());
+
+            Map<String, Object> entry = entryToJson(journey);
+            List<Task<Void>> commits = new ArrayList<>();
+            WriteBatch batch = DBFireStore.batch();
+            int operations = 0;
+            for (String readerId : readers) {
+                if (operations == MAX_BATCH_OPERATIONS) {
+                    commits.add(batch.commit());
+                    batch = DBFireStore.batch();
+                    operations = 0;
+                }
+                batch.set(entriesOf(readerId).document(journey.getId()), entry);
+                operations++;
+            }
+            commits.add(batch.commit());
+
+            Log.d(TAG, "Publishing journey " + journey.getId() + " to " + readers.size() + " timeline(s)");
+            return Tasks.whenAll(commits);
+        });
+    }
+
+    /**
+     * Remove the entry of a deleted journey from the timelines of its author and followers
+     * @param journey The deleted journey
+     * @return Task<Void> completing when every entry is removed
+     */
+    public Task<Void> unpublishJourney(Journey journey) {
+        return getFollowerIds(journey.getUserUUID()).continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            Set<String> readers = task.getResult();
+            readers.add(journey.getUserUUID());
+
+            List<Task<Void>> commits = new ArrayList<>();
+            WriteBatch batch = DBFireStore.batch();
+            int operations = 0;
+            for (String readerId : readers) {
+                if (operations == MAX_BATCH_OPERATIONS) {
+                    commits.add(batch.commit());
+                    batch = DBFireStore.batch();
+                    operations = 0;
+                }
+                batch.delete(entriesOf(readerId).document(journey.getId()));
+                operations++;
+            }
+            commits.add(batch.commit());
+            return Tasks.whenAll(commits);
+        });
+    }
+
+    /**
+     * Copy the latest journeys of a newly followed user into a timeline
+     * @param readerId The user who followed
+     * @param authorId The followed user
+     * @return Task<Void> completing when the entries are written
+     */
+    public Task<Void> backfillAuthor(String readerId, String authorId) {
+        return DBFireStore.collection(this.journeyCollectionName)
+                .whereEqualTo("userUUID", authorId)
+                .orderBy("start", Query.Direction.DESCENDING)
+                .limit(BACKFILL_SIZE)
+                .get()
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    WriteBatch batch = DBFireStore.batch();
+                    for (DocumentSnapshot document : task.getResult().getDocuments()) {
+                        Journey journey = document.toObject(Journey.class);
+                        if (journey != null && journey.isValid()) {
+                            batch.set(entriesOf(readerId).document(journey.getId()), entryToJson(journey));
+                        }
+                    }
+                    Log.d(TAG, "Backfilling " + task.getResult().size() + " journeys of " + authorId);
+                    return batch.commit();
+                });
+    }
+
+    /**
+     * Fill a timeline once from the follows and journeys that existed before timelines did.
+     * Done when timelines/{userId} is marked as backfilled, so later calls cost one read.
+     * @param userId The reader
+     * @return Task<Void> completing when the timeline is backfilled
+     */
+    public Task<Void> ensureBackfilled(String userId) {
+        DocumentReference timelineRef = DBFireStore.collection(this.collectionName).document(userId);
+        return timelineRef.get().continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            if (Boolean.TRUE.equals(task.getResult().getBoolean(BACKFILLED))) {
+                return Tasks.forResult(null);
+            }
+
+            return DBFireStore.collection("follows")
+                    .whereEqualTo("followerId", userId)
+                    .get()
+                    .continueWithTask(followsTask -> {
+                        if (!followsTask.isSuccessful()) {
+                            throw followsTask.getException();
+                        }
+                        Set<String> authorIds = new LinkedHashSet<>();
+                        authorIds.add(userId);
+                        for (DocumentSnapshot document : followsTask.getResult().getDocuments()) {
+                            String followingId = document.getString("followingId");
+                            if (followingId != null) {
+                                authorIds.add(followingId);
+                            }
+                        }
+
+                        Log.d(TAG, "Backfilling timeline of " + userId + " from " + authorIds.size() + " author(s)");
+                        List<Task<Void>> backfills = new ArrayList<>();
+                        for (String authorId : authorIds) {
+                            backfills.add(backfillAuthor(userId, authorId));
+                        }
+                        return Tasks.whenAll(backfills);
+                    })
+                    .continueWithTask(backfillTask -> {
+                        if (!backfillTask.isSuccessful()) {
+                            // Not marked, the next call tries again
+                            throw backfillTask.getException();
+                        }
+                        Map<String, Object> marker = new HashMap<>();
+                        marker.put(BACKFILLED, true);
+                        marker.put("backfilledAt", new Date());
+                        return timelineRef.set(marker, SetOptions.merge());
+                    });
+        });
+    }
+
+    /**
+     * Remove the journeys of an unfollowed user from a timeline
+     * @param readerId The user who unfollowed
+     * @param authorId The unfollowed user
+     * @return Task<Void> completing when the entries are removed
+     */
+    public Task<Void> removeAuthor(String readerId, String authorId) {
+        return entriesOf(readerId)
+                .whereEqualTo("authorUUID", authorId)
+                .get()
+                .continueWithTask(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    List<Task<Void>> commits = new ArrayList<>();
+                    WriteBatch batch = DBFireStore.batch();
+                    int operations = 0;
+                    for (DocumentSnapshot document : task.getResult().getDocuments()) {
+                        if (operations == MAX_BATCH_OPERATIONS) {
+                            commits.add(batch.commit());
+                            batch = DBFireStore.batch();
+                            operations = 0;
+                        }
+                        batch.delete(document.getReference());
+                        operations++;
+                    }
+                    commits.add(batch.commit());
+                    return Tasks.whenAll(commits);
+                });
+    }
+
+    /**
+     * Get a page of a user's timeline, most recent journeys first
+     * @param userId The reader
+     * @param after Last entry of the previous page, or null for the first page
+     * @param pageSize Number of entries per page
+     * @return Task<QuerySnapshot> containing the entries
+     */
+    public Task<QuerySnapshot> getTimelinePage(String userId, DocumentSnapshot after, int pageSize) {
+        Query query = entriesOf(userId)
+                .orderBy("start", Query.Direction.DESCENDING)
+                .limit(pageSize);
+        if (after != null) {
+            query = query.startAfter(after);
+        }
+        return query.get();
+    }
+
+    /**
+     * Get the page of a user's timeline just before an entry
+     * @param userId The reader
+     * @param before First entry of the following page
+     * @param pageSize Number of entries per page
+     * @return Task<QuerySnapshot> containing the entries, most recent first
+     */
+    public Task<QuerySnapshot> getTimelinePageBefore(String userId, DocumentSnapshot before, int pageSize) {
+        return entriesOf(userId)
+                .orderBy("start", Query.Direction.DESCENDING)
+                .endBefore(before)
+                .limitToLast(pageSize)
+                .get();
+    }
+
+    /**
+     * Load the journeys referenced by timeline entries, with whereIn queries of up to 30 ids
+     * @param entries Timeline entries, in display order
+     * @return Task<List<Journey>> containing the journeys still existing, in the order of the entries
+     */
+    public Task<List<Journey>> getJourneys(List<DocumentSnapshot> entries) {
+        List<String> journeyIds = new ArrayList<>();
+        for (DocumentSnapshot entry : entries) {
+            journeyIds.add(entry.getId());
+        }
+
+        List<Task<QuerySnapshot>> queries = new ArrayList<>();
+        for (int i = 0; i < journeyIds.size(); i += WHERE_IN_LIMIT) {
+            queries.add(DBFireStore.collection(this.journeyCollectionName)
+                    .whereIn(FieldPath.documentId(), journeyIds.subList(i, Math.min(i + WHERE_IN_LIMIT, journeyIds.size())))
+                    .get());
+        }
+
+        return Tasks.whenAllSuccess(queries).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            Map<String, Journey> byId = new HashMap<>();
+            for (Object result : task.getResult()) {
+                for (DocumentSnapshot document : ((QuerySnapshot) result).getDocuments()) {
+                    Journey journey = document.toObject(Journey.class);
+                    if (journey != null && journey.isValid()) {
+                        byId.put(document.getId(), journey);
+                    }
+                }
+            }
+
+            // Entries of deleted journeys are skipped
+            List<Journey> journeys = new ArrayList<>();
+            for (String journeyId : journeyIds) {
+                Journey journey = byId.get(journeyId);
+                if (journey != null) {
+                    journeys.add(journey);
+                }
+            }
+            return journeys;
+        });
+    }
+
+    // Ids of the users following an author
+    private Task<Set<String>> getFollowerIds(String authorId) {
+        return DBFireStore.collection("follows")
+                .whereEqualTo("followingId", authorId)
+                .get()
+                .continueWith(task -> {
+                    if (!task.isSuccessful()) {
+                        throw task.getException();
+                    }
+                    Set<String> followerIds = new LinkedHashSet<>();
+                    for (DocumentSnapshot document : task.getResult().getDocuments()) {
+                        String followerId = document.getString("followerId");
+                        if (followerId != null) {
+                            followerIds.add(followerId);
+                        }
+                    }
+                    return followerIds;
+                });
+    }
+
+    // Only what is needed to order and page the timeline, the journey itself is read on display
+    private Map<String, Object> entryToJson(Journey journey) {
+        Map<String, Object> hash = new HashMap<>();
+        hash.put("journeyId", journey.getId());
+        hash.put("authorUUID", journey.getUserUUID());
+        hash.put("start", journey.getStart());
+        hash.put("publishedAt", new Date());
+        return hash;
+    }
+}
@@ -21,6 +21,8 @@ import java.util.List;
 import java.util.Map;
 
 import fr.upjv.geotrack.models.User;
+import fr.upjv.geotrack.utils.DownloadUrlCache;
+import fr.upjv.geotrack.utils.UserCache;
 
 public class UserController {
     private FirebaseFirestore DBFireStore;
@@ -89,26 +91,13 @@ public class UserController {
 
 
     /**
-     * Get user by UID
+     * Get user by UID, from the shared profile cache when possible
      */
     public void getUser(String uid, UserCallback callback) {
-        DBFireStore.collection(collectionName)
-                .document(uid)
-                .get()
-                .addOnSuccessListener(documentSnapshot -> {
-                    if (documentSnapshot.exists()) {
-                        try {
-                            User user = new User();
-                            user.setUid(documentSnapshot.getString("uid"));
-                            user.setEmail(documentSnapshot.getString("email"));
-                            user.setDisplayName(documentSnapshot.getString("displayName"));
-                            user.setProfilePicturePath(documentSnapshot.getString("profilePicturePath"));
-                            user.setProfilePictureUrl(documentSnapshot.getString("profilePictureUrl"));
-
-                            callback.onSuccess(user);
-                        } catch (Exception e) {
-                            callback.onFailure("Error parsing user data: " + e.getMessage());
-                        }
+        UserCache.getInstance(context).get(uid)
+                .addOnSuccessListener(user -> {
+                    if (user != null) {
+                        callback.onSuccess(user);
                     } else {
                         callback.onFailure("User not found");
                     }
@@ -143,6 +132,8 @@ public class UserController {
             imageRef.getDownloadUrl().addOnSuccessListener(downloadUri -> {
                 String downloadUrl = downloadUri.toString();
                 Log.d(TAG, "Profile picture uploaded successfully: " + downloadUrl);
+                // The upload replaced the file and its token, remember the new URL
+                DownloadUrlCache.getInstance(context).put(imagePath, downloadUri);
                 callback.onSuccess(downloadUrl);
             }).addOnFailureListener(e -> {
                 Log.e(TAG, "Error getting download URL: " + e.getMessage());
@@ -167,6 +158,7 @@ public class UserController {
                 .update(updates)
                 .addOnSuccessListener(success -> {
                     Log.d(TAG, "User profile picture updated successfully");
+                    UserCache.getInstance(context).invalidate(uid);
                     // Get updated user
                     getUser(uid, callback);
                 })
@@ -212,6 +204,7 @@ public class UserController {
                     // Delete from storage
                     StorageReference imageRef = storageRef.child(user.getProfilePicturePath());
                     imageRef.delete().addOnSuccessListener(success -> {
+                        DownloadUrlCache.getInstance(context).invalidate(user.getProfilePicturePath());
                         // Update user in Firestore
                         Map<String, Object> updates = new HashMap<>();
                         updates.put("profilePicturePath", null);
@@ -222,6 +215,7 @@ public class UserController {
                                 .update(updates)
                                 .addOnSuccessListener(updateSuccess -> {
                                     Log.d(TAG, "Profile picture deleted successfully");
+                                    UserCache.getInstance(context).invalidate(uid);
                                     getUser(uid, callback);
                                 })
                                 .addOnFailureListener(updateFail -> {
@@ -254,6 +248,7 @@ public class UserController {
                 .update(updates)
                 .addOnSuccessListener(success -> {
                     Log.d(TAG, "Display name updated successfully");
+                    UserCache.getInstance(context).invalidate(uid);
                     getUser(uid, callback);
                 })
                 .addOnFailureListener(fail -> {
@@ -293,7 +288,7 @@ public class UserController {
     }
 
     /**
-     * Get multiple users by their UIDs
+     * Get multiple users by their UIDs. Missing profiles are loaded together by the shared cache.
      */
     public void getMultipleUsers(List<String> userIds, MultipleUsersCallback callback) {
         if (userIds == null || userIds.isEmpty()) {
@@ -301,106 +296,26 @@ public class UserController {
             return;
         }
 
-        List<User> users = new ArrayList<>();
-        int[] completedRequests = {0}; // Using array to make it effectively final
-        int totalRequests = userIds.size();
-
-        for (String uid : userIds) {
-            getUser(uid, new UserCallback() {
-                @Override
-                public void onSuccess(User user) {
-                    synchronized (users) {
-                        users.add(user);
-                        completedRequests[0]++;
-
-                        // Call progress callback
-                        callback.onProgress(completedRequests[0], totalRequests);
-
-                        // If all requests completed, return results
-                        if (completedRequests[0] == totalRequests) {
-                            callback.onSuccess(users);
-                        }
-                    }
-                }
-
-                @Override
-                public void onFailure(String error) {
-                    synchronized (users) {
-                        completedRequests[0]++;
-                        Log.e(TAG, "Failed to get user " + uid + ": " + error);
-
-                        // Call progress callback
-                        callback.onProgress(completedRequests[0], totalRequests);
-
-                        // Continue even if some users fail to load
-                        if (completedRequests[0] == totalRequests) {
-                            callback.onSuccess(users);
-                        }
+        UserCache.getInstance(context).getAll(userIds)
+                .addOnSuccessListener(users -> {
+                    callback.onProgress(userIds.size(), userIds.size());
+                    if (users.size() < userIds.size()) {
+                        Log.e(TAG, "Failed to get " + (userIds.size() - users.size()) + " of " + userIds.size() + " users");
                     }
-                }
-            });
-        }
+                    // Continue even if some users fail to load
+                    callback.onSuccess(users);
+                })
+                .addOnFailureListener(e -> {
+                    callback.onFailure("Error getting users: " + e.getMessage());
+                });
     }
 
     /**
      * Get multiple users by their UIDs using batch query (more efficient for large lists)
      */
     public void getMultipleUsersBatch(List<String> userIds, MultipleUsersCallback callback) {
-        if (userIds == null || userIds.isEmpty()) {
-            callback.onSuccess(new ArrayList<>());
-            return;
-        }
-
-        // Firestore 'in' queries are limited to 10 items, so we need to batch them
-        final int BATCH_SIZE = 10;
-        List<User> allUsers = new ArrayList<>();
-        int[] completedBatches = {0};
-        int totalBatches = (int) Math.ceil((double) userIds.size() / BATCH_SIZE);
-
-        for (int i = 0; i < userIds.size(); i += BATCH_SIZE) {
-            int endIndex = Math.min(i + BATCH_SIZE, userIds.size());
-            List<String> batch = userIds.subList(i, endIndex);
-
-            DBFireStore.collection(collectionName)
-                    .whereIn("uid", batch)
-                    .get()
-                    .addOnSuccessListener(querySnapshot -> {
-                        synchronized (allUsers) {
-                            for (DocumentSnapshot doc : querySnapshot.getDocuments()) {
-                                try {
-                                    User user = new User();
-                                    user.setUid(doc.getString("uid"));
-                                    user.setEmail(doc.getString("email"));
-                                    user.setDisplayName(doc.getString("displayName"));
-                                    user.setProfilePicturePath(doc.getString("profilePicturePath"));
-                                    user.setProfilePictureUrl(doc.getString("profilePictureUrl"));
-                                    allUsers.add(user);
-                                } catch (Exception e) {
-                                    Log.e(TAG, "Error parsing user data for document: " + doc.getId(), e);
-                                }
-                            }
-
-                            completedBatches[0]++;
-                            callback.onProgress(completedBatches[0], totalBatches);
-
-                            if (completedBatches[0] == totalBatches) {
-                                callback.onSuccess(allUsers);
-                            }
-                        }
-                    })
-                    .addOnFailureListener(e -> {
-                        synchronized (allUsers) {
-                            completedBatches[0]++;
-                            Log.e(TAG, "Error getting batch of users: " + e.getMessage());
-
-                            callback.onProgress(completedBatches[0], totalBatches);
-
-                            if (completedBatches[0] == totalBatches) {
-                                callback.onSuccess(allUsers);
-                            }
-                        }
-                    });
-        }
+        // The shared cache already loads misses with whereIn batches
+        getMultipleUsers(userIds, callback);
     }
 
     /**
@@ -1,7 +1,13 @@
 package fr.upjv.geotrack.fragments.home;
 
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -11,6 +17,7 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentTransaction;
 
@@ -22,6 +29,7 @@ import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.MapView;
 import com.google.android.gms.maps.OnMapReadyCallback;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.LatLngBounds;
@@ -31,14 +39,14 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import fr.upjv.geotrack.R;
 import fr.upjv.geotrack.SettingsActivity;
@@ -47,12 +55,18 @@ import fr.upjv.geotrack.models.Localisation;
 import fr.upjv.geotrack.controllers.UserController;
 import fr.upjv.geotrack.controllers.FollowController;
 import fr.upjv.geotrack.controllers.CurrentLocationController;
+import fr.upjv.geotrack.utils.DownloadUrlCache;
+import fr.upjv.geotrack.utils.MarkerClusterer;
+import fr.upjv.geotrack.utils.UserMarkerManager;
 
 public class MapFragment extends Fragment implements OnMapReadyCallback, CurrentLocationController.LocationUpdateCallback {
 
     private static final String TAG = "MapFragment";
     private static final float DEFAULT_ZOOM = 15f;
     private static final int LOCATION_FRESHNESS_MINUTES = 15; // Consider location stale after 15 minutes
+    private static final float CLUSTER_CELL_DP = 80f; // Users closer than this on screen are grouped
+    private static final float CLUSTER_ICON_DP = 40f;
+    private static final long CLUSTER_DEBOUNCE_MS = 300; // Coalesce bursts of location updates
 
     // Views
     private ImageView hamburgerMenu, appLogo, searchIcon, profileIcon;
@@ -62,11 +76,16 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
     // Firebase
     private FirebaseAuth mAuth;
     private FirebaseFirestore db;
-    private StorageReference storageRef;
 
     // Map
     private GoogleMap googleMap;
-    private Map<String, Marker> userMarkers = new HashMap<>();
+    private UserMarkerManager markerManager;
+    private final Map<String, Marker> clusterMarkers = new HashMap<>();
+    private final Map<String, BitmapDescriptor> clusterIcons = new HashMap<>();
+    private ExecutorService clusterExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable clusteringRunnable = this::runClustering;
+    private int clusterGeneration = 0;
     private List<User> followingUsers = new ArrayList<>();
 
     // Location Controller
@@ -90,11 +109,11 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
         // Firebase
         mAuth = FirebaseAuth.getInstance();
         db = FirebaseFirestore.getInstance();
-        storageRef = FirebaseStorage.getInstance().getReference();
 
         // Initialize location controller
         locationController = new CurrentLocationController(getContext());
         locationController.setLocationUpdateCallback(this);
+        clusterExecutor = Executors.newSingleThreadExecutor();
 
         // Views
         mapView = view.findViewById(R.id.map_view);
@@ -125,6 +144,7 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
     @Override
     public void onMapReady(@NonNull GoogleMap map) {
         googleMap = map;
+        markerManager = new UserMarkerManager(googleMap);
 
         // Enable location if permissions are granted
         try {
@@ -138,8 +158,15 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
         googleMap.getUiSettings().setZoomControlsEnabled(true);
         googleMap.getUiSettings().setCompassEnabled(true);
 
+        // Re-cluster once the camera settles, clusters split as the user zooms in
+        googleMap.setOnCameraIdleListener(this::scheduleClustering);
+
         // Set marker click listener
         googleMap.setOnMarkerClickListener(marker -> {
+            if (marker.getTag() instanceof MarkerClusterer.Cluster) {
+                zoomIntoCluster((MarkerClusterer.Cluster) marker.getTag());
+                return true;
+            }
             String userId = findUserIdByMarker(marker);
             if (userId != null) {
                 showUserLocationInfo(userId);
@@ -165,6 +192,10 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
                     return;
                 }
 
+                if (getContext() == null) {
+                    return;
+                }
+
                 // Load user details
                 new UserController("FollowingUsers", getContext()).getMultipleUsersBatch(followingUserIds,
                         new UserController.MultipleUsersCallback() {
@@ -324,32 +355,16 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
 
         LatLng position = new LatLng(location.getLatitude(), location.getLongitude());
 
-        // Remove existing marker if exists
-        Marker existingMarker = userMarkers.get(userId);
-        if (existingMarker != null) {
-            existingMarker.remove();
-        }
-
         // Determine marker color based on location freshness
         float markerColor = locationController.isLocationRecent(userId, LOCATION_FRESHNESS_MINUTES)
                 ? BitmapDescriptorFactory.HUE_GREEN  // Fresh location
                 : BitmapDescriptorFactory.HUE_ORANGE; // Stale location
 
-        // Create new marker
+        // The existing marker is moved and updated in place on the next frame
         String title = user.getDisplayNameOrEmail();
         String snippet = createLocationSnippet(location, userId);
-
-        MarkerOptions markerOptions = new MarkerOptions()
-                .position(position)
-                .title(title)
-                .snippet(snippet)
-                .icon(BitmapDescriptorFactory.defaultMarker(markerColor));
-
-        Marker marker = googleMap.addMarker(markerOptions);
-        if (marker != null) {
-            userMarkers.put(userId, marker);
-            Log.d(TAG, "Updated marker for " + title + " at " + position);
-        }
+        markerManager.setUserMarker(userId, position, title, snippet, markerColor);
+        scheduleClustering();
     }
 
     private String createLocationSnippet(Localisation location, String userId) {
@@ -374,14 +389,139 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
     }
 
     private void removeUserMarker(String userId) {
-        Marker marker = userMarkers.get(userId);
-        if (marker != null) {
-            marker.remove();
-            userMarkers.remove(userId);
+        if (markerManager != null) {
+            markerManager.removeUserMarker(userId);
+            scheduleClustering();
             Log.d(TAG, "Removed marker for user " + userId);
         }
     }
 
+    private void scheduleClustering() {
+        mainHandler.removeCallbacks(clusteringRunnable);
+        mainHandler.postDelayed(clusteringRunnable, CLUSTER_DEBOUNCE_MS);
+    }
+
+    /**
+     * Group users by screen cell on a background thread, then draw the result.
+     * Only positions around the viewport are considered, so the cost follows what is on screen.
+     */
+    private void runClustering() {
+        if (googleMap == null || markerManager == null || !isAdded() || clusterExecutor.isShutdown()) {
+            return;
+        }
+
+        float zoom = googleMap.getCameraPosition().zoom;
+        LatLngBounds viewport = googleMap.getProjection().getVisibleRegion().latLngBounds;
+
+        // Only users around the viewport, looked up in the spatial index instead of scanning everyone
+        LatLngBounds area = MarkerClusterer.extendViewport(viewport);
+        Map<String, LatLng> targets = markerManager.getTargetPositions();
+        Map<String, LatLng> positions = new HashMap<>();
+        for (String userId : locationController.getUsersInBounds(area.southwest.latitude, area.southwest.longitude,
+                area.northeast.latitude, area.northeast.longitude)) {
+            LatLng position = targets.get(userId);
+            if (position != null) {
+                positions.put(userId, position);
+            }
+        }
+        double cellSizePx = CLUSTER_CELL_DP * getResources().getDisplayMetrics().density;
+        int generation = ++clusterGeneration;
+
+        clusterExecutor.execute(() -> {
+            MarkerClusterer.Result result = MarkerClusterer.cluster(positions, zoom, viewport, cellSizePx);
+            mainHandler.post(() -> {
+                // Drop results overtaken by a newer pass or arriving after the view is gone
+                if (generation == clusterGeneration && googleMap != null && isAdded()) {
+                    renderClusters(result);
+                }
+            });
+        });
+    }
+
+    private void renderClusters(MarkerClusterer.Result result) {
+        markerManager.setVisibleUsers(result.getSingleUserIds());
+
+        Map<String, Marker> previousMarkers = new HashMap<>(clusterMarkers);
+        clusterMarkers.clear();
+        for (MarkerClusterer.Cluster cluster : result.getClusters()) {
+            // Reuse the bubble of the same cell, only touching what changed
+            Marker marker = previousMarkers.remove(cluster.getKey());
+            if (marker != null) {
+                MarkerClusterer.Cluster previous = (MarkerClusterer.Cluster) marker.getTag();
+                if (!marker.getPosition().equals(cluster.getCenter())) {
+                    marker.setPosition(cluster.getCenter());
+                }
+                if (previous == null || !clusterLabel(previous.size()).equals(clusterLabel(cluster.size()))) {
+                    marker.setIcon(getClusterIcon(cluster.size()));
+                }
+            } else {
+                marker = googleMap.addMarker(new MarkerOptions()
+                        .position(cluster.getCenter())
+                        .icon(getClusterIcon(cluster.size()))
+                        .anchor(0.5f, 0.5f));
+                if (marker == null) {
+                    continue;
+                }
+            }
+            marker.setTag(cluster);
+            clusterMarkers.put(cluster.getKey(), marker);
+        }
+
+        for (Marker stale : previousMarkers.values()) {
+            stale.remove();
+        }
+        Log.d(TAG, "Clustering: " + result.getClusters().size() + " clusters, " +
+                result.getSingleUserIds().size() + " single users visible");
+    }
+
+    private void zoomIntoCluster(MarkerClusterer.Cluster cluster) {
+        LatLngBounds bounds = cluster.getBounds();
+        if (bounds.northeast.equals(bounds.southwest)) {
+            // Users at the same place, zoom past the clustering limit to separate them
+            googleMap.animateCamera(CameraUpdateFactory.newLatLngZoom(bounds.getCenter(), MarkerClusterer.MAX_CLUSTER_ZOOM));
+        } else {
+            googleMap.animateCamera(CameraUpdateFactory.newLatLngBounds(bounds, 100));
+        }
+    }
+
+    private String clusterLabel(int count) {
+        // Bucket large counts so a handful of icons cover every cluster
+        return count < 100 ? String.valueOf(count) : (count / 100) * 100 + "+";
+    }
+
+    private BitmapDescriptor getClusterIcon(int count) {
+        String label = clusterLabel(count);
+        BitmapDescriptor icon = clusterIcons.get(label);
+        if (icon != null) {
+            return icon;
+        }
+
+        float density = getResources().getDisplayMetrics().density;
+        int size = Math.round(CLUSTER_ICON_DP * density * (label.length() > 2 ? 1.25f : 1f));
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        Paint circlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        circlePaint.setColor(ContextCompat.getColor(requireContext(), R.color.colorPrimary));
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f, circlePaint);
+        circlePaint.setColor(Color.WHITE);
+        circlePaint.setStyle(Paint.Style.STROKE);
+        circlePaint.setStrokeWidth(2 * density);
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f - density, circlePaint);
+
+        Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(14 * density);
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        textPaint.setFakeBoldText(true);
+        float textY = size / 2f - (textPaint.descent() + textPaint.ascent()) / 2;
+        canvas.drawText(label, size / 2f, textY, textPaint);
+
+        icon = BitmapDescriptorFactory.fromBitmap(bitmap);
+        clusterIcons.put(label, icon);
+        return icon;
+    }
+
     private void centerOnMyLocation() {
         if (googleMap == null) return;
 
@@ -402,7 +542,7 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
     }
 
     private void centerOnAllUsers() {
-        if (googleMap == null || userMarkers.isEmpty()) {
+        if (googleMap == null || markerManager == null || markerManager.isEmpty()) {
             centerOnMyLocation();
             return;
         }
@@ -410,9 +550,9 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
         LatLngBounds.Builder builder = new LatLngBounds.Builder();
         boolean hasLocations = false;
 
-        // Add all user markers to bounds
-        for (Marker marker : userMarkers.values()) {
-            builder.include(marker.getPosition());
+        // Add all user positions to bounds (final positions, not mid-animation ones)
+        for (LatLng position : markerManager.getTargetPositions().values()) {
+            builder.include(position);
             hasLocations = true;
         }
 
@@ -447,10 +587,14 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
 
     private void clearMarkers() {
         // Remove all markers
-        for (Marker marker : userMarkers.values()) {
+        if (markerManager != null) {
+            markerManager.clear();
+        }
+        for (Marker marker : clusterMarkers.values()) {
             marker.remove();
         }
-        userMarkers.clear();
+        clusterMarkers.clear();
+        clusterGeneration++;
     }
 
 
@@ -475,12 +619,7 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
     }
 
     private String findUserIdByMarker(Marker marker) {
-        for (Map.Entry<String, Marker> entry : userMarkers.entrySet()) {
-            if (entry.getValue().equals(marker)) {
-                return entry.getKey();
-            }
-        }
-        return null;
+        return markerManager != null ? markerManager.getUserId(marker) : null;
     }
 
     private User findUserById(String userId) {
@@ -518,12 +657,15 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
     }
 
     private void loadProfileImage(String userId, ImageView imageView) {
-        StorageReference profileRef = storageRef.child("users/" + userId + "/profile.jpg");
-
-        profileRef.getDownloadUrl()
+        if (getContext() == null) {
+            return;
+        }
+        // Missing files are remembered by the cache, so the png fallback is not looked up on every call
+        DownloadUrlCache urlCache = DownloadUrlCache.getInstance(getContext());
+        urlCache.get("users/" + userId + "/profile.jpg")
                 .addOnSuccessListener(uri -> loadImageWithGlide(uri.toString(), imageView))
                 .addOnFailureListener(e -> {
-                    storageRef.child("users/" + userId + "/profile.png").getDownloadUrl()
+                    urlCache.get("users/" + userId + "/profile.png")
                             .addOnSuccessListener(uri -> loadImageWithGlide(uri.toString(), imageView))
                             .addOnFailureListener(ex -> imageView.setImageResource(R.drawable.ic_profile_modern));
                 });
@@ -604,8 +746,10 @@ public class MapFragment extends Fragment implements OnMapReadyCallback, Current
             locationController.cleanup();
         }
 
-        // Clear markers
+        // Clear markers and stop clustering
+        mainHandler.removeCallbacks(clusteringRunnable);
         clearMarkers();
+        clusterExecutor.shutdownNow();
 
         if (mapView != null) {
             mapView.onDestroy();
@@ -52,23 +52,27 @@ import fr.upjv.geotrack.JourneyDetailActivity;
 import fr.upjv.geotrack.R;
 import fr.upjv.geotrack.adapters.JourneyAdapter;
 import fr.upjv.geotrack.adapters.ImagePreviewAdapter;
+import fr.upjv.geotrack.controllers.CounterController;
 import fr.upjv.geotrack.controllers.JourneyController;
 import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.JourneyStats;
 import fr.upjv.geotrack.models.User;
+import fr.upjv.geotrack.utils.DownloadUrlCache;
+import fr.upjv.geotrack.utils.ImageUploadPipeline;
+import fr.upjv.geotrack.utils.TrackCache;
+import fr.upjv.geotrack.utils.TrackImporter;
+import fr.upjv.geotrack.utils.UserCache;
 
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.provider.MediaStore;
 import android.widget.ProgressBar;
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageMetadata;
 import com.google.firebase.storage.StorageReference;
 import com.google.firebase.storage.UploadTask;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.resource.bitmap.CircleCrop;
 import com.bumptech.glide.request.RequestOptions;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 
 public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourneyActionListener {
 
@@ -119,6 +123,7 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
     private ProgressBar profileImageLoading;
     private ImageView cameraOverlay;
     private ActivityResultLauncher<Intent> profileImagePickerLauncher;
+    private ActivityResultLauncher<String[]> trackImportLauncher;
     private FirebaseStorage storage;
     private StorageReference storageRef;
 
@@ -145,6 +150,7 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
         initializeFirebase();
         setupImagePickerLauncher();
         setupProfileImagePickerLauncher(); // Add this line
+        setupTrackImportLauncher();
     }
 
     @Override
@@ -243,6 +249,43 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
         );
     }
 
+    private void setupTrackImportLauncher() {
+        trackImportLauncher = registerForActivityResult(
+                new ActivityResultContracts.OpenDocument(),
+                uri -> {
+                    if (uri != null) {
+                        importTrack(uri);
+                    }
+                }
+        );
+    }
+
+    private void importTrack(Uri uri) {
+        if (currentUser == null) return;
+
+        Toast.makeText(getContext(), "Importing journey...", Toast.LENGTH_SHORT).show();
+        TrackImporter.importFile(requireContext(), uri, currentUser.getUid(), new TrackImporter.ImportCallback() {
+            @Override
+            public void onProgress(int importedPoints) {
+                Log.d(TAG, "Imported " + importedPoints + " points so far");
+            }
+
+            @Override
+            public void onComplete(Journey journey) {
+                if (getContext() == null) return;
+                Toast.makeText(getContext(), "Journey imported: " + journey.getName(), Toast.LENGTH_SHORT).show();
+                refreshJourneys();
+                loadUserStats();
+            }
+
+            @Override
+            public void onFailure(String error) {
+                if (getContext() == null) return;
+                Toast.makeText(getContext(), "Import failed: " + error, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     private void setupProfileImageClick() {
         View.OnClickListener profileImageClickListener = v -> openProfileImagePicker();
 
@@ -277,63 +320,42 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
 
         showProfileImageLoading(true);
 
-        try {
-            // Compress and resize the image
-            Bitmap bitmap = MediaStore.Images.Media.getBitmap(getActivity().getContentResolver(), imageUri);
-            Bitmap resizedBitmap = resizeBitmap(bitmap, 400, 400);
-
-            // Convert to byte array
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            resizedBitmap.compress(Bitmap.CompressFormat.JPEG, 80, baos);
-            byte[] imageData = baos.toByteArray();
-
-            // Create storage reference
-            String imagePath = "users/" + currentUser.getUid() + "/profile.jpg";
-            StorageReference imageRef = storageRef.child(imagePath);
-
-            // Upload image
-            UploadTask uploadTask = imageRef.putBytes(imageData);
-            uploadTask.addOnSuccessListener(taskSnapshot -> {
-                // Get download URL
-                imageRef.getDownloadUrl().addOnSuccessListener(downloadUri -> {
-                    updateUserProfilePicture(imagePath, downloadUri.toString());
-                }).addOnFailureListener(e -> {
-                    Log.e(TAG, "Error getting download URL", e);
-                    Toast.makeText(getContext(), "Failed to get image URL", Toast.LENGTH_SHORT).show();
+        // Decode, resize and compress off the main thread
+        ImageUploadPipeline.Spec spec = ImageUploadPipeline.PROFILE_PICTURE;
+        String imagePath = "users/" + currentUser.getUid() + "/profile." + spec.getFileExtension();
+        StorageReference imageRef = storageRef.child(imagePath);
+        StorageMetadata metadata = new StorageMetadata.Builder()
+                .setContentType(spec.getContentType())
+                .build();
+
+        ImageUploadPipeline.prepare(requireContext().getContentResolver(), imageUri, spec)
+                .addOnSuccessListener(prepared -> {
+                    // Upload image
+                    UploadTask uploadTask = imageRef.putBytes(prepared.data, metadata);
+                    uploadTask.addOnSuccessListener(taskSnapshot -> {
+                        // Get download URL
+                        imageRef.getDownloadUrl().addOnSuccessListener(downloadUri -> {
+                            // The upload replaced the file and its token, remember the new URL
+                            if (getContext() != null) {
+                                DownloadUrlCache.getInstance(getContext()).put(imagePath, downloadUri);
+                            }
+                            updateUserProfilePicture(imagePath, downloadUri.toString());
+                        }).addOnFailureListener(e -> {
+                            Log.e(TAG, "Error getting download URL", e);
+                            Toast.makeText(getContext(), "Failed to get image URL", Toast.LENGTH_SHORT).show();
+                            showProfileImageLoading(false);
+                        });
+                    }).addOnFailureListener(e -> {
+                        Log.e(TAG, "Error uploading profile image", e);
+                        Toast.makeText(getContext(), "Failed to upload image", Toast.LENGTH_SHORT).show();
+                        showProfileImageLoading(false);
+                    });
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error processing image", e);
+                    Toast.makeText(getContext(), "Error processing image", Toast.LENGTH_SHORT).show();
                     showProfileImageLoading(false);
                 });
-            }).addOnFailureListener(e -> {
-                Log.e(TAG, "Error uploading profile image", e);
-                Toast.makeText(getContext(), "Failed to upload image", Toast.LENGTH_SHORT).show();
-                showProfileImageLoading(false);
-            });
-
-        } catch (IOException e) {
-            Log.e(TAG, "Error processing image", e);
-            Toast.makeText(getContext(), "Error processing image", Toast.LENGTH_SHORT).show();
-            showProfileImageLoading(false);
-        }
-    }
-
-    private Bitmap resizeBitmap(Bitmap bitmap, int maxWidth, int maxHeight) {
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-
-        if (width <= maxWidth && height <= maxHeight) {
-            return bitmap;
-        }
-
-        float aspectRatio = (float) width / height;
-
-        if (width > height) {
-            width = maxWidth;
-            height = Math.round(width / aspectRatio);
-        } else {
-            height = maxHeight;
-            width = Math.round(height * aspectRatio);
-        }
-
-        return Bitmap.createScaledBitmap(bitmap, width, height, true);
     }
 
     private void updateUserProfilePicture(String imagePath, String imageUrl) {
@@ -343,6 +365,9 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
         db.collection("users").document(currentUser.getUid())
                 .update("profilePicturePath", imagePath, "profilePictureUrl", imageUrl)
                 .addOnSuccessListener(aVoid -> {
+                    if (getContext() != null) {
+                        UserCache.getInstance(getContext()).invalidate(currentUser.getUid());
+                    }
                     // Load the new image
                     loadProfileImage(imageUrl);
                     Toast.makeText(getContext(), "Profile picture updated", Toast.LENGTH_SHORT).show();
@@ -478,12 +503,11 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
 
         String userUUID = currentUser.getUid();
 
-        // Get journey count
-        db.collection("journey")
-                .whereEqualTo("userUUID", userUUID)
-                .get()
-                .addOnSuccessListener(queryDocumentSnapshots -> {
-                    int count = queryDocumentSnapshots.size();
+        // Get journey count from the maintained counters instead of reading every journey
+        new CounterController()
+                .getCounts(userUUID)
+                .addOnSuccessListener(counts -> {
+                    long count = counts.getJourneys();
                     journeyCount.setText(count + " journeys");
                 })
                 .addOnFailureListener(e -> {
@@ -504,7 +528,16 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
         }
 
         // Setup add journey button
-        addJourneyButton.setOnClickListener(v -> showJourneyDialog(null));
+        addJourneyButton.setOnClickListener(v -> new AlertDialog.Builder(getContext())
+                .setItems(new String[]{"Create a journey", "Import a GPX/KML file"}, (dialog, which) -> {
+                    if (which == 0) {
+                        showJourneyDialog(null);
+                    } else {
+                        // GPX and KML have no reliable MIME type across file providers
+                        trackImportLauncher.launch(new String[]{"*/*"});
+                    }
+                })
+                .show());
     }
 
     private void setupSearchAndFilters() {
@@ -671,6 +704,7 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
 
                                     // Create journey object
                                     Journey journey = new Journey(id, userUUIDDoc, start, end, name, description, imagePaths, thumbnailPath);
+                                    journey.setStats(JourneyStats.fromJson(document.get("stats")));
 
                                     // Validate journey before adding
                                     if (journey.isValid()) {
@@ -938,10 +972,15 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
                         name,
                         description
                 );
+                if (isEditMode && journey.getStart().equals(existingJourney.getStart())
+                        && journey.getEnd().equals(existingJourney.getEnd())) {
+                    // Same time window, the stats only need the fixes recorded since they were computed
+                    journey.setStats(existingJourney.getStats());
+                }
 
                 // Save journey with images
                 if (isEditMode) {
-                    updateJourneyWithImages(journey, dialog);
+                    updateJourneyWithImages(journey, existingJourney.getStart(), dialog);
                 } else {
                     createJourneyWithImages(journey, dialog);
                 }
@@ -1032,7 +1071,7 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
         if (selectedImageUris.isEmpty()) {
             createJourney(journey, dialog);
         } else {
-            journeyController.uploadJourneyImages(journey, selectedImageUris)
+            journeyController.uploadJourneyImages(requireContext(), journey, selectedImageUris)
                     .addOnSuccessListener(updatedJourney -> {
                         createJourney(updatedJourney, dialog);
                     })
@@ -1044,18 +1083,18 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
         }
     }
 
-    private void updateJourneyWithImages(Journey journey, AlertDialog dialog) {
+    private void updateJourneyWithImages(Journey journey, Date previousStart, AlertDialog dialog) {
         if (saveButton != null) {
             saveButton.setEnabled(false);
             saveButton.setText("Updating...");
         }
 
         if (selectedImageUris.isEmpty()) {
-            updateJourney(journey, dialog);
+            updateJourney(journey, previousStart, dialog);
         } else {
-            journeyController.uploadJourneyImages(journey, selectedImageUris)
+            journeyController.uploadJourneyImages(requireContext(), journey, selectedImageUris)
                     .addOnSuccessListener(updatedJourney -> {
-                        updateJourney(updatedJourney, dialog);
+                        updateJourney(updatedJourney, previousStart, dialog);
                     })
                     .addOnFailureListener(e -> {
                         Log.e(TAG, "Error uploading images", e);
@@ -1070,6 +1109,7 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
                 .addOnSuccessListener(documentReference -> {
                     Log.d(TAG, "Journey created successfully");
                     Toast.makeText(getContext(), "Journey created successfully", Toast.LENGTH_SHORT).show();
+                    refreshJourneyStats(journey);
                     selectedImageUris.clear();
                     loadUserJourneys();
                     dialog.dismiss();
@@ -1081,11 +1121,12 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
                 });
     }
 
-    private void updateJourney(Journey journey, AlertDialog dialog) {
-        journeyController.updateJourney(journey)
+    private void updateJourney(Journey journey, Date previousStart, AlertDialog dialog) {
+        journeyController.updateJourney(journey, previousStart)
                 .addOnSuccessListener(aVoid -> {
                     Log.d(TAG, "Journey updated successfully");
                     Toast.makeText(getContext(), "Journey updated successfully", Toast.LENGTH_SHORT).show();
+                    refreshJourneyStats(journey);
                     selectedImageUris.clear();
                     loadUserJourneys();
                     dialog.dismiss();
@@ -1097,6 +1138,13 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
                 });
     }
 
+    // Compute distance and speed once, so the list never has to load the track
+    private void refreshJourneyStats(Journey journey) {
+        journeyController.refreshJourneyStats(journey)
+                .addOnSuccessListener(stats -> Log.d(TAG, "Journey stats saved: " + stats))
+                .addOnFailureListener(e -> Log.e(TAG, "Failed to compute journey stats", e));
+    }
+
     private void resetSaveButton() {
         if (saveButton != null) {
             saveButton.setEnabled(true);
@@ -1112,6 +1160,9 @@ public class ProfileFragment extends Fragment implements JourneyAdapter.OnJourne
                     journeyController.deleteJourneyWithImages(journey)
                             .addOnSuccessListener(aVoid -> {
                                 Log.d(TAG, "Journey and images deleted successfully");
+                                if (getContext() != null) {
+                                    TrackCache.getInstance(getContext()).remove(journey.getId());
+                                }
                                 Toast.makeText(getContext(), "Journey deleted successfully", Toast.LENGTH_SHORT).show();
                                 loadUserJourneys();
                             })
@@ -9,6 +9,7 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
@@ -21,11 +22,6 @@ import com.bumptech.glide.load.resource.bitmap.CenterCrop;
 import com.bumptech.glide.load.resource.bitmap.CircleCrop;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.Query;
-import com.google.firebase.firestore.QueryDocumentSnapshot;
-import com.google.firebase.storage.FirebaseStorage;
-import com.google.firebase.storage.StorageReference;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -36,7 +32,11 @@ import fr.upjv.geotrack.R;
 import fr.upjv.geotrack.SettingsActivity;
 import fr.upjv.geotrack.SearchUsersActivity;
 import fr.upjv.geotrack.adapters.JourneyPostAdapter;
+import fr.upjv.geotrack.controllers.JourneyController;
+import fr.upjv.geotrack.controllers.TimelineController;
 import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.utils.DownloadUrlCache;
+import fr.upjv.geotrack.utils.JourneyFeedPager;
 
 public class ThreadFragment extends Fragment {
 
@@ -46,12 +46,10 @@ public class ThreadFragment extends Fragment {
     private ImageView profileIcon;
     private RecyclerView journeyRecyclerView;
     private JourneyPostAdapter journeyPostAdapter;
-    private List<Journey> journeyList;
+    private JourneyFeedPager feedPager;
+    private boolean showingTimeline = false;
 
     private FirebaseAuth mAuth;
-    private FirebaseStorage storage;
-    private StorageReference storageRef;
-    private FirebaseFirestore db;
     private static final String TAG = "ThreadFragment";
 
     @Override
@@ -78,9 +76,6 @@ public class ThreadFragment extends Fragment {
 
     private void initializeFirebase() {
         mAuth = FirebaseAuth.getInstance();
-        storage = FirebaseStorage.getInstance();
-        storageRef = storage.getReference();
-        db = FirebaseFirestore.getInstance();
     }
 
     private void initializeHeader(View view) {
@@ -96,9 +91,8 @@ public class ThreadFragment extends Fragment {
 
     private void initializeRecyclerView(View view) {
         journeyRecyclerView = view.findViewById(R.id.thread_recycler_view);
-        journeyList = new ArrayList<>();
 
-        journeyPostAdapter = new JourneyPostAdapter(journeyList, getContext(), new JourneyPostAdapter.OnJourneyClickListener() {
+        journeyPostAdapter = new JourneyPostAdapter(new ArrayList<>(), getContext(), new JourneyPostAdapter.OnJourneyClickListener() {
             @Override
             public void onJourneyClick(Journey journey) {
                 Log.d(TAG, "Journey clicked: " + journey.getName());
@@ -120,8 +114,56 @@ public class ThreadFragment extends Fragment {
             }
         });
 
-        journeyRecyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+        LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
+        journeyRecyclerView.setLayoutManager(layoutManager);
         journeyRecyclerView.setAdapter(journeyPostAdapter);
+
+        FirebaseUser currentUser = mAuth.getCurrentUser();
+        showingTimeline = currentUser != null;
+        feedPager = createFeedPager(currentUser);
+
+        journeyRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                feedPager.onVisibleRangeChanged(layoutManager.findFirstVisibleItemPosition(),
+                        layoutManager.findLastVisibleItemPosition());
+            }
+        });
+    }
+
+    // The user's timeline when signed in, every journey otherwise
+    private JourneyFeedPager createFeedPager(FirebaseUser currentUser) {
+        JourneyFeedPager.Source source = currentUser != null
+                ? JourneyFeedPager.timeline(new TimelineController(), currentUser.getUid())
+                : JourneyFeedPager.globalFeed(new JourneyController());
+
+        return new JourneyFeedPager(source, new JourneyFeedPager.Listener() {
+            @Override
+            public void onJourneysChanged(List<Journey> journeys) {
+                if (getContext() == null) {
+                    return;
+                }
+                if (journeys.isEmpty() && feedPager.isEndReached() && showingTimeline) {
+                    // Nothing followed yet, show every journey instead
+                    showingTimeline = false;
+                    feedPager = createFeedPager(null);
+                    feedPager.refresh();
+                    return;
+                }
+                journeyPostAdapter.submitJourneys(journeys);
+                if (journeys.isEmpty() && feedPager.isEndReached()) {
+                    // Show empty state
+                    Toast.makeText(getContext(), "No journeys found", Toast.LENGTH_SHORT).show();
+                }
+            }
+
+            @Override
+            public void onFailure(String error) {
+                if (getContext() != null) {
+                    Toast.makeText(getContext(), "Error loading journeys: " + error, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
     }
 
     private void loadUserProfileImage() {
@@ -129,13 +171,15 @@ public class ThreadFragment extends Fragment {
 
         if (currentUser != null && profileIcon != null) {
             String userId = currentUser.getUid();
-            StorageReference profileImageRef = storageRef.child("users/" + userId + "/profile.jpg");
+            String profilePath = "users/" + userId + "/profile.jpg";
+            DownloadUrlCache urlCache = DownloadUrlCache.getInstance(requireContext());
 
-            profileImageRef.getDownloadUrl()
+            urlCache.get(profilePath)
                     .addOnSuccessListener(uri -> {
                         if (getContext() != null && isAdded()) {
                             Glide.with(this)
                                     .load(uri)
+                                    .listener(urlCache.invalidateOnFailure(profilePath))
                                     .transform(
                                             new MultiTransformation<>(
                                                     new CenterCrop(),
@@ -162,40 +206,26 @@ public class ThreadFragment extends Fragment {
     }
 
     private void loadRandomJourneys() {
-        db.collection("journey")
-                .orderBy("start", Query.Direction.DESCENDING)
-                .limit(20) // Limit to 20 recent journeys
-                .get()
-                .addOnCompleteListener(task -> {
-                    if (task.isSuccessful() && getContext() != null) {
-                        journeyList.clear();
-                        for (QueryDocumentSnapshot document : task.getResult()) {
-                            try {
-                                Journey journey = document.toObject(Journey.class);
-                                if (journey != null && journey.isValid()) {
-                                    journeyList.add(journey);
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        if (journeyPostAdapter != null) {
-                            journeyPostAdapter.notifyDataSetChanged();
-                        }
+        FirebaseUser currentUser = mAuth.getCurrentUser();
+        if (!showingTimeline || currentUser == null) {
+            // Pages are requested by the scroll listener as the user nears the end of the feed
+            feedPager.refresh();
+            return;
+        }
 
-                        if (journeyList.isEmpty()) {
-                            // Show empty state
-                            Toast.makeText(getContext(), "No journeys found", Toast.LENGTH_SHORT).show();
-                        }
-                    } else {
-                        Toast.makeText(getContext(), "Failed to load journeys", Toast.LENGTH_SHORT).show();
+        // Follows made before timelines existed are copied in once, before the first page
+        new TimelineController().ensureBackfilled(currentUser.getUid())
+                .addOnCompleteListener(task -> {
+                    if (getContext() == null) {
+                        return;
                     }
-                })
-                .addOnFailureListener(e -> {
-                    if (getContext() != null) {
-                        Toast.makeText(getContext(), "Error loading journeys: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+                    if (!task.isSuccessful()) {
+                        // The timeline may miss older follows, show every journey until it is backfilled
+                        Log.w(TAG, "Could not backfill timeline", task.getException());
+                        showingTimeline = false;
+                        feedPager = createFeedPager(null);
                     }
+                    feedPager.refresh();
                 });
     }
 
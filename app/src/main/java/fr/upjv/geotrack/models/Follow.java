@@ -25,6 +25,11 @@ public class Follow {
     public String getFollowingId() { return followingId; }
     public Date getTimestamp() { return timestamp; }
 
+    /** Id du document d'une relation, unique pour un couple follower/following */
+    public static String edgeId(String followerId, String followingId) {
+        return followerId + "_" + followingId;
+    }
+
     public Map<String, Object> toMap() {
         Map<String, Object> m = new HashMap<>();
         m.put("followerId", followerId);
@@ -6,6 +6,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
 public class Journey {
@@ -17,6 +18,7 @@ public class Journey {
     private String description; // New field for journey description
     private List<String> imagePaths; // Storage paths for Firebase Storage
     private String thumbnailPath; // Main thumbnail image path
+    private JourneyStats stats; // Precomputed track statistics, null until computed
 
     // Constructor
     public Journey(String Id, String UserUUID, Date Start, Date End, String Name) {
@@ -71,6 +73,9 @@ public class Journey {
         hash.put("description", this.description);
         hash.put("imagePaths", this.imagePaths);
         hash.put("thumbnailPath", this.thumbnailPath);
+        if (this.stats != null) {
+            hash.put("stats", this.stats.toJson());
+        }
         return hash;
     }
 
@@ -107,6 +112,10 @@ public class Journey {
         return thumbnailPath;
     }
 
+    public JourneyStats getStats() {
+        return stats;
+    }
+
     // Setters
     public void setId(String id) {
         this.id = id;
@@ -116,11 +125,18 @@ public class Journey {
         this.userUUID = userUUID;
     }
 
+    // Statistics belong to a time window, they are computed again once it changes
     public void setStart(Date start) {
+        if (!Objects.equals(this.start, start)) {
+            this.stats = null;
+        }
         this.start = start;
     }
 
     public void setEnd(Date end) {
+        if (!Objects.equals(this.end, end)) {
+            this.stats = null;
+        }
         this.end = end;
     }
 
@@ -140,6 +156,10 @@ public class Journey {
         this.thumbnailPath = thumbnailPath;
     }
 
+    public void setStats(JourneyStats stats) {
+        this.stats = stats;
+    }
+
     // Image management methods
 
     /**
@@ -332,6 +352,14 @@ public class Journey {
         return description != null && !description.trim().isEmpty();
     }
 
+    /**
+     * Check if track statistics have been computed for the journey
+     * @return true if stats are available
+     */
+    public boolean hasStats() {
+        return stats != null && stats.getPointCount() > 0;
+    }
+
     /**
      * Get a truncated version of the description
      * @param maxLength Maximum length of the truncated description
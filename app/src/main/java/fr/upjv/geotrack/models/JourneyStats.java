@@ -0,0 +1,291 @@
+package fr.upjv.geotrack.models;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Summary statistics of a journey, stored on the journey document so lists can show
+ * distance and speed without loading the track.
+ *
+ * Statistics are accumulated point by point: the last point is kept so that fixes recorded
+ * after the last computation can be added later without reading the whole track again.
+ */
+public class JourneyStats {
+    private static final double EARTH_RADIUS_M = 6371000;
+    private static final double MOVING_SPEED_MPS = 0.5; // Slower segments are GPS jitter, not movement
+    private static final double MAX_PLAUSIBLE_SPEED_MPS = 340; // Faster segments are position jumps
+    private static final long MIN_SPEED_SEGMENT_MS = 1000; // Too short to give a reliable speed
+    // Late fixes can still be flushed this long after a journey ends
+    private static final long SETTLE_DELAY_MS = 10 * 60 * 1000;
+
+    private long pointCount;
+    private double distanceMeters;
+    private long movingTimeMs;
+    private double maxSpeedMps;
+    private double minLatitude;
+    private double minLongitude;
+    private double maxLatitude;
+    private double maxLongitude;
+    private long lastTimestamp;
+    private double lastLatitude;
+    private double lastLongitude;
+    private long computedUntil;
+
+    // Default constructor for Firebase
+    public JourneyStats() {
+    }
+
+    /**
+     * Add a point. Points must be added in timestamp order; older points are ignored.
+     * @param timestampMs Time of the point in milliseconds
+     * @param latitude Latitude of the point
+     * @param longitude Longitude of the point
+     */
+    public void addPoint(long timestampMs, double latitude, double longitude) {
+        if (pointCount == 0) {
+            minLatitude = maxLatitude = latitude;
+            minLongitude = maxLongitude = longitude;
+        } else {
+            if (timestampMs <= lastTimestamp) {
+                return;
+            }
+
+            double distance = haversine(lastLatitude, lastLongitude, latitude, longitude);
+            long elapsed = timestampMs - lastTimestamp;
+            double speed = distance / (elapsed / 1000.0);
+            if (speed >= MOVING_SPEED_MPS && speed <= MAX_PLAUSIBLE_SPEED_MPS) {
+                distanceMeters += distance;
+                movingTimeMs += elapsed;
+                if (elapsed >= MIN_SPEED_SEGMENT_MS) {
+                    maxSpeedMps = Math.max(maxSpeedMps, speed);
+                }
+            }
+
+            minLatitude = Math.min(minLatitude, latitude);
+            maxLatitude = Math.max(maxLatitude, latitude);
+            minLongitude = Math.min(minLongitude, longitude);
+            maxLongitude = Math.max(maxLongitude, longitude);
+        }
+
+        pointCount++;
+        lastTimestamp = timestampMs;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+    }
+
+    /**
+     * Add every point of a track
+     * @param track Track ordered by timestamp
+     */
+    public void addTrack(Track track) {
+        long[] timestamps = track.getTimestamps();
+        double[] latitudes = track.getLatitudes();
+        double[] longitudes = track.getLongitudes();
+        for (int i = 0; i < track.size(); i++) {
+            addPoint(timestamps[i], latitudes[i], longitudes[i]);
+        }
+    }
+
+    /**
+     * Check if fixes may have been recorded for the journey since these statistics were computed
+     * @param journey The journey these statistics belong to
+     * @return true if the statistics should be refreshed
+     */
+    public boolean isStale(Journey journey) {
+        return journey.getEnd() != null && computedUntil < journey.getEnd().getTime() + SETTLE_DELAY_MS;
+    }
+
+    /**
+     * Average speed while moving
+     * @return Speed in meters per second, 0 if the journey has no movement
+     */
+    public double averageSpeedMps() {
+        return movingTimeMs > 0 ? distanceMeters / (movingTimeMs / 1000.0) : 0;
+    }
+
+    /**
+     * Get formatted distance, in meters under 1 km
+     * @return Formatted distance string
+     */
+    public String formatDistance() {
+        if (distanceMeters < 1000) {
+            return String.format(Locale.getDefault(), "%.0f m", distanceMeters);
+        }
+        return String.format(Locale.getDefault(), "%.1f km", distanceMeters / 1000);
+    }
+
+    /**
+     * Get formatted average and maximum speeds
+     * @return Formatted speed string in km/h
+     */
+    public String formatSpeeds() {
+        return String.format(Locale.getDefault(), "avg %.1f km/h, max %.1f km/h",
+                averageSpeedMps() * 3.6, maxSpeedMps * 3.6);
+    }
+
+    // Convert to HashMap for Firebase storage
+    public HashMap<String, Object> toJson() {
+        HashMap<String, Object> hash = new HashMap<>();
+        hash.put("pointCount", this.pointCount);
+        hash.put("distanceMeters", this.distanceMeters);
+        hash.put("movingTimeMs", this.movingTimeMs);
+        hash.put("maxSpeedMps", this.maxSpeedMps);
+        hash.put("minLatitude", this.minLatitude);
+        hash.put("minLongitude", this.minLongitude);
+        hash.put("maxLatitude", this.maxLatitude);
+        hash.put("maxLongitude", this.maxLongitude);
+        hash.put("lastTimestamp", this.lastTimestamp);
+        hash.put("lastLatitude", this.lastLatitude);
+        hash.put("lastLongitude", this.lastLongitude);
+        hash.put("computedUntil", this.computedUntil);
+        return hash;
+    }
+
+    /**
+     * Read statistics from the map stored on a journey document
+     * @param value The "stats" field of the document
+     * @return The statistics, or null if the journey has none
+     */
+    public static JourneyStats fromJson(Object value) {
+        if (!(value instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> map = (Map<?, ?>) value;
+        JourneyStats stats = new JourneyStats();
+        stats.pointCount = getNumber(map, "pointCount").longValue();
+        stats.distanceMeters = getNumber(map, "distanceMeters").doubleValue();
+        stats.movingTimeMs = getNumber(map, "movingTimeMs").longValue();
+        stats.maxSpeedMps = getNumber(map, "maxSpeedMps").doubleValue();
+        stats.minLatitude = getNumber(map, "minLatitude").doubleValue();
+        stats.minLongitude = getNumber(map, "minLongitude").doubleValue();
+        stats.maxLatitude = getNumber(map, "maxLatitude").doubleValue();
+        stats.maxLongitude = getNumber(map, "maxLongitude").doubleValue();
+        stats.lastTimestamp = getNumber(map, "lastTimestamp").longValue();
+        stats.lastLatitude = getNumber(map, "lastLatitude").doubleValue();
+        stats.lastLongitude = getNumber(map, "lastLongitude").doubleValue();
+        stats.computedUntil = getNumber(map, "computedUntil").longValue();
+        return stats;
+    }
+
+    private static Number getNumber(Map<?, ?> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Number ? (Number) value : 0;
+    }
+
+    private static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        return EARTH_RADIUS_M * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    // Getters and setters (also used by Firestore toObject)
+    public long getPointCount() {
+        return pointCount;
+    }
+
+    public void setPointCount(long pointCount) {
+        this.pointCount = pointCount;
+    }
+
+    public double getDistanceMeters() {
+        return distanceMeters;
+    }
+
+    public void setDistanceMeters(double distanceMeters) {
+        this.distanceMeters = distanceMeters;
+    }
+
+    public long getMovingTimeMs() {
+        return movingTimeMs;
+    }
+
+    public void setMovingTimeMs(long movingTimeMs) {
+        this.movingTimeMs = movingTimeMs;
+    }
+
+    public double getMaxSpeedMps() {
+        return maxSpeedMps;
+    }
+
+    public void setMaxSpeedMps(double maxSpeedMps) {
+        this.maxSpeedMps = maxSpeedMps;
+    }
+
+    public double getMinLatitude() {
+        return minLatitude;
+    }
+
+    public void setMinLatitude(double minLatitude) {
+        this.minLatitude = minLatitude;
+    }
+
+    public double getMinLongitude() {
+        return minLongitude;
+    }
+
+    public void setMinLongitude(double minLongitude) {
+        this.minLongitude = minLongitude;
+    }
+
+    public double getMaxLatitude() {
+        return maxLatitude;
+    }
+
+    public void setMaxLatitude(double maxLatitude) {
+        this.maxLatitude = maxLatitude;
+    }
+
+    public double getMaxLongitude() {
+        return maxLongitude;
+    }
+
+    public void setMaxLongitude(double maxLongitude) {
+        this.maxLongitude = maxLongitude;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public void setLastTimestamp(long lastTimestamp) {
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    public double getLastLatitude() {
+        return lastLatitude;
+    }
+
+    public void setLastLatitude(double lastLatitude) {
+        this.lastLatitude = lastLatitude;
+    }
+
+    public double getLastLongitude() {
+        return lastLongitude;
+    }
+
+    public void setLastLongitude(double lastLongitude) {
+        this.lastLongitude = lastLongitude;
+    }
+
+    public long getComputedUntil() {
+        return computedUntil;
+    }
+
+    public void setComputedUntil(long computedUntil) {
+        this.computedUntil = computedUntil;
+    }
+
+    @Override
+    public String toString() {
+        return "JourneyStats{" +
+                "pointCount=" + pointCount +
+                ", distanceMeters=" + distanceMeters +
+                ", movingTimeMs=" + movingTimeMs +
+                ", maxSpeedMps=" + maxSpeedMps +
+                '}';
+    }
+}
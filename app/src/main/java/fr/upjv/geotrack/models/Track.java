@@ -0,0 +1,291 @@
+package fr.upjv.geotrack.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Columnar track: timestamps and coordinates are stored in primitive arrays and the
+ * user/journey identifiers once for the whole track, instead of one Localisation object
+ * (with its own id, user id and Date) per point.
+ */
+public class Track {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final String userUUID;
+    private final String journeyId;
+    private long[] timestamps;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int size;
+
+    // Constructor
+    public Track(String UserUUID, String JourneyId) {
+        this(UserUUID, JourneyId, DEFAULT_CAPACITY);
+    }
+
+    // Constructor with an initial capacity, useful when the number of points is known
+    public Track(String UserUUID, String JourneyId, int InitialCapacity) {
+        this.userUUID = UserUUID;
+        this.journeyId = JourneyId;
+        int capacity = Math.max(InitialCapacity, 1);
+        this.timestamps = new long[capacity];
+        this.latitudes = new double[capacity];
+        this.longitudes = new double[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Build a track from a list of localisations
+     * @param userUUID Owner of the track
+     * @param journeyId Journey the track belongs to (can be null)
+     * @param localisations Localisations to copy
+     * @return A new track holding the same points in the same order
+     */
+    public static Track fromLocalisations(String userUUID, String journeyId, List<Localisation> localisations) {
+        Track track = new Track(userUUID, journeyId, localisations.size());
+        for (Localisation localisation : localisations) {
+            track.add(localisation.getTimestamp().getTime(), localisation.getLatitude(), localisation.getLongitude());
+        }
+        return track;
+    }
+
+    /**
+     * Append a point at the end of the track
+     */
+    public void add(long timestampMs, double latitude, double longitude) {
+        if (size == timestamps.length) {
+            int capacity = size + (size >> 1) + 1;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+        }
+        timestamps[size] = timestampMs;
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        size++;
+    }
+
+    /**
+     * Append all the points of another track at the end of this one
+     * @param other Track whose points are copied
+     */
+    public void addAll(Track other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.timestamps[i], other.latitudes[i], other.longitudes[i]);
+        }
+    }
+
+    /**
+     * Merge two tracks sorted by timestamp into a new sorted track.
+     * When both contain a point with the same timestamp, the one from newer wins.
+     * @param older Existing points
+     * @param newer Points being added
+     * @return A new track with the header of newer
+     */
+    public static Track merge(Track older, Track newer) {
+        Track merged = new Track(newer.userUUID, newer.journeyId, older.size + newer.size);
+        int i = 0;
+        int j = 0;
+        while (i < older.size || j < newer.size) {
+            if (j == newer.size || (i < older.size && older.timestamps[i] < newer.timestamps[j])) {
+                merged.add(older.timestamps[i], older.latitudes[i], older.longitudes[i]);
+                i++;
+            } else {
+                if (i < older.size && older.timestamps[i] == newer.timestamps[j]) {
+                    i++;
+                }
+                merged.add(newer.timestamps[j], newer.latitudes[j], newer.longitudes[j]);
+                j++;
+            }
+        }
+        return merged;
+    }
+
+    // Getters
+    public String getUserUUID() {
+        return userUUID;
+    }
+
+    public String getJourneyId() {
+        return journeyId;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    /**
+     * Backing arrays, only the first size() entries are meaningful.
+     * Exposed so that hot loops (simplification, statistics, export) avoid per-point calls.
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    public double[] getLatitudes() {
+        return latitudes;
+    }
+
+    public double[] getLongitudes() {
+        return longitudes;
+    }
+
+    /**
+     * Check if the points are ordered by timestamp
+     * @return true if timestamps never decrease
+     */
+    public boolean isSortedByTime() {
+        for (int i = 1; i < size; i++) {
+            if (timestamps[i] < timestamps[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sort the points by timestamp (stable). Does nothing if already sorted.
+     */
+    public void sortByTime() {
+        if (isSortedByTime()) {
+            return;
+        }
+
+        // Bottom-up merge sort of the point indices, keyed by timestamp
+        int[] order = new int[size];
+        int[] buffer = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        for (int width = 1; width < size; width *= 2) {
+            for (int left = 0; left < size; left += 2 * width) {
+                int middle = Math.min(left + width, size);
+                int right = Math.min(left + 2 * width, size);
+                int i = left;
+                int j = middle;
+                int k = left;
+                while (i < middle && j < right) {
+                    buffer[k++] = timestamps[order[j]] < timestamps[order[i]] ? order[j++] : order[i++];
+                }
+                while (i < middle) {
+                    buffer[k++] = order[i++];
+                }
+                while (j < right) {
+                    buffer[k++] = order[j++];
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+
+        Track sorted = select(order);
+        this.timestamps = sorted.timestamps;
+        this.latitudes = sorted.latitudes;
+        this.longitudes = sorted.longitudes;
+    }
+
+    /**
+     * Build a new track with the points at the given indices
+     * @param indices Indices of the points to keep, in the wanted order
+     * @return A new track with the same header
+     */
+    public Track select(int[] indices) {
+        Track selected = new Track(userUUID, journeyId, indices.length);
+        for (int index : indices) {
+            selected.add(timestamps[index], latitudes[index], longitudes[index]);
+        }
+        return selected;
+    }
+
+    /**
+     * Build a new track with the points in [from, to)
+     * @param from First point index (inclusive)
+     * @param to Last point index (exclusive)
+     * @return A new track with the same header
+     */
+    public Track subTrack(int from, int to) {
+        Track sub = new Track(userUUID, journeyId, to - from);
+        for (int i = from; i < to; i++) {
+            sub.add(timestamps[i], latitudes[i], longitudes[i]);
+        }
+        return sub;
+    }
+
+    /**
+     * Get the bounding box of the track
+     * @return {minLatitude, minLongitude, maxLatitude, maxLongitude}, or null if the track is empty
+     */
+    public double[] getBounds() {
+        if (size == 0) {
+            return null;
+        }
+        double minLatitude = latitudes[0];
+        double maxLatitude = latitudes[0];
+        double minLongitude = longitudes[0];
+        double maxLongitude = longitudes[0];
+        for (int i = 1; i < size; i++) {
+            minLatitude = Math.min(minLatitude, latitudes[i]);
+            maxLatitude = Math.max(maxLatitude, latitudes[i]);
+            minLongitude = Math.min(minLongitude, longitudes[i]);
+            maxLongitude = Math.max(maxLongitude, longitudes[i]);
+        }
+        return new double[]{minLatitude, minLongitude, maxLatitude, maxLongitude};
+    }
+
+    /**
+     * Release the unused capacity of the backing arrays
+     */
+    public void trimToSize() {
+        if (size < timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size);
+            latitudes = Arrays.copyOf(latitudes, size);
+            longitudes = Arrays.copyOf(longitudes, size);
+        }
+    }
+
+    /**
+     * Convert back to localisation objects, for code that still works with lists
+     * @return One localisation per point, with ids built from the user and the timestamp
+     */
+    public List<Localisation> toLocalisations() {
+        List<Localisation> localisations = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            localisations.add(new Localisation(
+                    userUUID + "_" + timestamps[i],
+                    userUUID,
+                    new Date(timestamps[i]),
+                    latitudes[i],
+                    longitudes[i]
+            ));
+        }
+        return localisations;
+    }
+
+    @Override
+    public String toString() {
+        return "Track{" +
+                "userUUID='" + userUUID + '\'' +
+                ", journeyId='" + journeyId + '\'' +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,22 @@
+package fr.upjv.geotrack.models;
+
+/**
+ * Follower, following and journey counts of a user, summed from the counter shards.
+ */
+public class UserCounts {
+    private long followers;
+    private long following;
+    private long journeys;
+
+    public UserCounts() { }
+
+    public UserCounts(long followers, long following, long journeys) {
+        this.followers = followers;
+        this.following = following;
+        this.journeys = journeys;
+    }
+
+    public long getFollowers() { return followers; }
+    public long getFollowing() { return following; }
+    public long getJourneys() { return journeys; }
+}
@@ -0,0 +1,221 @@
+package fr.upjv.geotrack.services;
+
+/**
+ * Chooses the location sampling interval from the motion observed in recent fixes.
+ *
+ * The configured base interval is used while moving slowly. The rate is raised when
+ * moving fast or turning, and dropped to a long interval once the device has been
+ * stationary for a few fixes. The provider's distance filter stops fixes from arriving
+ * while the device is parked, so going without fixes for a few intervals also counts
+ * as stationary (see onNoFix).
+ */
+public class AdaptiveSamplingScheduler {
+
+    public enum MotionState {
+        STATIONARY,
+        SLOW,
+        FAST,
+        TURNING
+    }
+
+    private static final double EARTH_RADIUS_M = 6371000;
+    private static final double STATIONARY_SPEED_MPS = 0.5; // Below this we consider the device parked
+    private static final double FAST_SPEED_MPS = 8.0; // ~30 km/h, driving or cycling fast
+    private static final double TURN_ANGLE_DEG = 30.0; // Bearing change that counts as a turn
+    private static final int STATIONARY_FIX_COUNT = 3; // Slow fixes in a row, or intervals without a fix, before going stationary
+    private static final double SPEED_SMOOTHING = 0.5; // Weight of the newest speed sample
+    private static final long MIN_INTERVAL_MS = 1000;
+    private static final long STATIONARY_INTERVAL_MS = 5 * 60 * 1000;
+    private static final int STATIONARY_INTERVAL_FACTOR = 2; // Stationary interval, in base intervals
+
+    private long baseIntervalMs;
+    private boolean enabled = true;
+    private MotionState state = MotionState.SLOW;
+
+    // Last fix seen
+    private boolean hasLastFix = false;
+    private long lastTimeMs;
+    private double lastLatitude;
+    private double lastLongitude;
+    private double lastBearing = Double.NaN;
+    private double smoothedSpeedMps = 0;
+    private int slowFixCount = 0;
+
+    public AdaptiveSamplingScheduler(long baseIntervalMs) {
+        this.baseIntervalMs = baseIntervalMs;
+    }
+
+    /**
+     * Feed a new fix and update the motion state
+     * @param timeMs Time of the fix in milliseconds
+     * @param latitude Latitude of the fix
+     * @param longitude Longitude of the fix
+     * @param speedMps Speed reported by the provider, or NaN if unknown
+     * @param bearingDeg Bearing reported by the provider, or NaN if unknown
+     * @return The motion state after this fix
+     */
+    public synchronized MotionState onFix(long timeMs, double latitude, double longitude, double speedMps, double bearingDeg) {
+        if (hasLastFix && timeMs > lastTimeMs) {
+            double distance = distanceMeters(lastLatitude, lastLongitude, latitude, longitude);
+            if (Double.isNaN(speedMps)) {
+                speedMps = distance / ((timeMs - lastTimeMs) / 1000.0);
+            }
+            if (Double.isNaN(bearingDeg) && distance > 0) {
+                bearingDeg = bearingDegrees(lastLatitude, lastLongitude, latitude, longitude);
+            }
+        }
+
+        if (!Double.isNaN(speedMps)) {
+            smoothedSpeedMps = SPEED_SMOOTHING * speedMps + (1 - SPEED_SMOOTHING) * smoothedSpeedMps;
+        }
+
+        boolean turning = false;
+        if (smoothedSpeedMps >= STATIONARY_SPEED_MPS && !Double.isNaN(bearingDeg)) {
+            if (!Double.isNaN(lastBearing)) {
+                double delta = Math.abs(bearingDeg - lastBearing) % 360;
+                turning = Math.min(delta, 360 - delta) >= TURN_ANGLE_DEG;
+            }
+            lastBearing = bearingDeg;
+        }
+
+        if (smoothedSpeedMps < STATIONARY_SPEED_MPS) {
+            slowFixCount++;
+            state = slowFixCount >= STATIONARY_FIX_COUNT ? MotionState.STATIONARY : MotionState.SLOW;
+        } else {
+            slowFixCount = 0;
+            if (turning) {
+                state = MotionState.TURNING;
+            } else if (smoothedSpeedMps >= FAST_SPEED_MPS) {
+                state = MotionState.FAST;
+            } else {
+                state = MotionState.SLOW;
+            }
+        }
+
+        hasLastFix = true;
+        lastTimeMs = timeMs;
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        return state;
+    }
+
+    /**
+     * Switch to STATIONARY when no fix arrived for STATIONARY_FIX_COUNT recommended intervals.
+     * Nothing changes before the first fix.
+     * @param nowMs Current time in milliseconds, on the same clock as the fix times
+     * @return true if the state changed
+     */
+    public synchronized boolean onNoFix(long nowMs) {
+        if (!enabled || !hasLastFix || state == MotionState.STATIONARY
+                || nowMs - lastTimeMs < getNoFixTimeoutMs()) {
+            return false;
+        }
+        state = MotionState.STATIONARY;
+        slowFixCount = STATIONARY_FIX_COUNT;
+        smoothedSpeedMps = 0;
+        lastBearing = Double.NaN;
+        return true;
+    }
+
+    /**
+     * Get how long to wait without a fix before onNoFix switches to STATIONARY
+     * @return Timeout in milliseconds
+     */
+    public synchronized long getNoFixTimeoutMs() {
+        return STATIONARY_FIX_COUNT * getRecommendedIntervalMs();
+    }
+
+    /**
+     * Get the interval the provider should use for the current motion state
+     * @return Interval in milliseconds
+     */
+    public synchronized long getRecommendedIntervalMs() {
+        if (!enabled) {
+            return baseIntervalMs;
+        }
+        switch (state) {
+            case STATIONARY:
+                return Math.max(baseIntervalMs * STATIONARY_INTERVAL_FACTOR, STATIONARY_INTERVAL_MS);
+            case FAST:
+                return Math.max(MIN_INTERVAL_MS, baseIntervalMs / 2);
+            case TURNING:
+                return Math.max(MIN_INTERVAL_MS, baseIntervalMs / 4);
+            case SLOW:
+            default:
+                return baseIntervalMs;
+        }
+    }
+
+    /**
+     * Get the shortest delay between two deliveries. While stationary this stays at the
+     * base interval so that moving again is picked up quickly through the distance filter.
+     * @return Minimum update interval in milliseconds
+     */
+    public synchronized long getRecommendedMinUpdateIntervalMs() {
+        if (enabled && state == MotionState.STATIONARY) {
+            return baseIntervalMs;
+        }
+        return getRecommendedIntervalMs() / 2;
+    }
+
+    public synchronized void setBaseIntervalMs(long baseIntervalMs) {
+        this.baseIntervalMs = baseIntervalMs;
+    }
+
+    public synchronized long getBaseIntervalMs() {
+        return baseIntervalMs;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized MotionState getState() {
+        return state;
+    }
+
+    /**
+     * Whether the provider can trade accuracy for power, i.e. while adaptive sampling
+     * considers the device stationary
+     */
+    public synchronized boolean isLowPowerRecommended() {
+        return enabled && state == MotionState.STATIONARY;
+    }
+
+    public synchronized double getSmoothedSpeedMps() {
+        return smoothedSpeedMps;
+    }
+
+    /**
+     * Forget the motion history, e.g. when tracking restarts
+     */
+    public synchronized void reset() {
+        hasLastFix = false;
+        lastBearing = Double.NaN;
+        smoothedSpeedMps = 0;
+        slowFixCount = 0;
+        state = MotionState.SLOW;
+    }
+
+    private static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        return EARTH_RADIUS_M * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    private static double bearingDegrees(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double deltaLambda = Math.toRadians(lon2 - lon1);
+        double y = Math.sin(deltaLambda) * Math.cos(phi2);
+        double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(deltaLambda);
+        return (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+    }
+}
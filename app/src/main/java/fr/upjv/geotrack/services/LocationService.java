@@ -9,11 +9,15 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
+import android.location.Location;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -22,22 +26,38 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.Priority;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
-import java.util.Date;
-import java.util.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import fr.upjv.geotrack.R;
-import fr.upjv.geotrack.models.Localisation;
+import fr.upjv.geotrack.SettingsActivity;
+import fr.upjv.geotrack.models.Track;
 import fr.upjv.geotrack.controllers.LocalisationController;
+import fr.upjv.geotrack.utils.LocationJournal;
 
 public class LocationService extends Service {
     private static final int NOTIFICATION_ID = 1001;
     private static final String CHANNEL_ID = "LocationServiceChannel";
     private static final String TAG = "LocationService";
     private static final int DEFAULT_INTERVAL_MS = 30 * 60 * 1000; // Default 2 seconds
+    private static final long FLUSH_INTERVAL_MS = 5 * 60 * 1000; // Send journaled fixes every 5 minutes
+    private static final float MIN_UPDATE_DISTANCE_M = 5f; // Ignore jitter while standing still
+    private static final int MAX_BATCHED_FIXES = 10; // Let the chipset batch up to 10 fixes
+    private static final long MAX_UPDATE_DELAY_MS = 2 * 60 * 1000; // But deliver at least every 2 minutes
+    private static final String PREFS_NAME = "GeoTrackPrefs";
+    private static final String KEY_CHUNKS_MIGRATED = "track_chunks_migrated_";
+    private static final int MAX_FIXES_PER_FLUSH = 10 * LocalisationController.MAX_BATCH_OPERATIONS;
 
     // Binder for bound service
     private final IBinder binder = new LocationBinder();
@@ -45,13 +65,61 @@ public class LocationService extends Service {
     private FirebaseAuth mAuth;
     private FirebaseUser currentUser;
     private FusedLocationProviderClient fusedLocationClient;
-    private Thread locationThread;
     private boolean isRunning = false;
     private boolean isBound = false;
 
+    // Fixes are journaled on disk and flushed to Firestore in batches
+    private LocalisationController localisationController;
+    private volatile LocationJournal locationJournal;
+    private volatile String journalUserUUID;
+    private final ExecutorService journalExecutor = Executors.newSingleThreadExecutor();
+    private final Handler flushHandler = new Handler(Looper.getMainLooper());
+    private boolean isFlushing = false;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushJournal();
+            flushHandler.postDelayed(this, FLUSH_INTERVAL_MS);
+        }
+    };
+
     // Configurable interval for location updates
     private volatile long locationUpdateInterval = DEFAULT_INTERVAL_MS;
 
+    // Adapts the requested interval to the observed motion
+    private final AdaptiveSamplingScheduler samplingScheduler = new AdaptiveSamplingScheduler(DEFAULT_INTERVAL_MS);
+    private long activeRequestIntervalMs = 0;
+    private long activeMaxUpdateDelayMs = 0;
+    private boolean activeLowPower = false;
+    private boolean hasFineLocationPermission = false;
+    // The distance filter stops fixes while parked, so a missing fix also means stationary
+    private final Handler samplingHandler = new Handler(Looper.getMainLooper());
+    private final Runnable noFixRunnable = () -> {
+        if (samplingScheduler.onNoFix(System.currentTimeMillis())) {
+            Log.d(TAG, "No fix for a while, considering the device stationary");
+            applySamplingPolicy();
+        } else if (samplingScheduler.getState() != AdaptiveSamplingScheduler.MotionState.STATIONARY) {
+            scheduleNoFixCheck();
+        }
+    };
+
+    // Receives (possibly hardware-batched) fixes from the fused provider
+    private final LocationCallback locationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            List<Location> locations = locationResult.getLocations();
+            Log.d(TAG, "Received " + locations.size() + " location(s)");
+            for (Location location : locations) {
+                journalLocation(location.getTime(), location.getLatitude(), location.getLongitude());
+                samplingScheduler.onFix(location.getTime(), location.getLatitude(), location.getLongitude(),
+                        location.hasSpeed() ? location.getSpeed() : Double.NaN,
+                        location.hasBearing() ? location.getBearing() : Double.NaN);
+            }
+            applySamplingPolicy();
+            scheduleNoFixCheck();
+        }
+    };
+
     // Binder class for clients to access the service
     public class LocationBinder extends Binder {
         public LocationService getService() {
@@ -129,38 +197,226 @@ public class LocationService extends Service {
         if (fusedLocationClient == null) {
             fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
         }
+
+        if (localisationController == null) {
+            localisationController = new LocalisationController();
+        }
+
+        // Start from the interval and sampling mode chosen in the settings
+        locationUpdateInterval = Math.max(1000, SettingsActivity.getSavedInterval(this));
+        samplingScheduler.setBaseIntervalMs(locationUpdateInterval);
+        samplingScheduler.setEnabled(SettingsActivity.isAdaptiveSamplingEnabled(this));
+
+        openJournal();
     }
 
-    private void startLocationTracking() {
-        if (isRunning) return;
+    /**
+     * Open the on-device journal of the current user (one file per user)
+     */
+    private void openJournal() {
+        if (currentUser == null) {
+            return;
+        }
 
-        isRunning = true;
-        locationThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (isRunning && !Thread.currentThread().isInterrupted()) {
-                    Log.d(TAG, "Location service alive - interval: " + locationUpdateInterval + "ms");
-                    try {
-                        saveCurrentLocation();
-                        Thread.sleep(locationUpdateInterval); // Use configurable interval
-                    } catch (InterruptedException e) {
-                        Log.d(TAG, "Location thread interrupted");
-                        break;
-                    }
+        String userUUID = currentUser.getUid();
+        if (userUUID.equals(journalUserUUID)) {
+            return;
+        }
+
+        journalExecutor.execute(() -> {
+            if (userUUID.equals(journalUserUUID)) {
+                return;
+            }
+            try {
+                if (locationJournal != null) {
+                    locationJournal.close();
                 }
-                Log.d(TAG, "Location tracking stopped");
+                File file = new File(getFilesDir(), "location_journal_" + userUUID + ".bin");
+                locationJournal = new LocationJournal(file);
+                journalUserUUID = userUUID;
+                flushHandler.post(() -> migrateLegacyLocalisations(userUUID));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open location journal", e);
+                locationJournal = null;
+                journalUserUUID = null;
             }
         });
-        locationThread.start();
+    }
+
+    /**
+     * Move the per-point localisation documents of a user into track chunks, once per user.
+     * Point documents are kept so older app versions can still read them.
+     */
+    private void migrateLegacyLocalisations(String userUUID) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String key = KEY_CHUNKS_MIGRATED + userUUID;
+        if (prefs.getBoolean(key, false)) {
+            return;
+        }
+
+        localisationController.migrateLegacyLocalisations(userUUID, false)
+                .addOnSuccessListener(migrated -> {
+                    Log.d(TAG, "Migrated " + migrated + " legacy localisations to chunks");
+                    prefs.edit().putBoolean(key, true).apply();
+                })
+                .addOnFailureListener(e -> Log.e(TAG, "Legacy localisation migration failed, will retry", e));
+    }
+
+    /**
+     * Send pending journaled fixes to Firestore as track chunks. Fixes are only removed from
+     * the journal once their chunks are written, so nothing is lost if the flush fails.
+     */
+    private void flushJournal() {
+        if (isFlushing || journalExecutor.isShutdown()) {
+            return;
+        }
+        isFlushing = true;
+
+        journalExecutor.execute(() -> {
+            LocationJournal journal = locationJournal;
+            String userUUID = journalUserUUID;
+            Track pending;
+            try {
+                pending = journal != null ? journal.readPending(userUUID, MAX_FIXES_PER_FLUSH) : null;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read location journal", e);
+                pending = null;
+            }
+
+            if (pending == null || pending.isEmpty()) {
+                flushHandler.post(() -> isFlushing = false);
+                return;
+            }
+
+            Track toFlush = pending;
+            flushHandler.post(() -> localisationController.saveTrackChunks(toFlush)
+                    .addOnSuccessListener(aVoid -> {
+                        Log.d(TAG, "Flushed " + toFlush.size() + " journaled locations");
+                        if (journalExecutor.isShutdown()) {
+                            // Chunks are merged by timestamp, re-sending these fixes on next start is harmless
+                            isFlushing = false;
+                            return;
+                        }
+                        journalExecutor.execute(() -> {
+                            try {
+                                journal.markFlushed(toFlush.size());
+                            } catch (IOException e) {
+                                Log.e(TAG, "Failed to mark journal as flushed", e);
+                            }
+                            flushHandler.post(() -> isFlushing = false);
+                        });
+                    })
+                    .addOnFailureListener(e -> {
+                        Log.e(TAG, "Failed to flush journaled locations, will retry", e);
+                        isFlushing = false;
+                    }));
+        });
+    }
+
+    private void startLocationTracking() {
+        if (isRunning) return;
+
+        if (currentUser == null) {
+            Log.w(TAG, "No authenticated user");
+            return;
+        }
+
+        boolean hasFinePermission = ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+        boolean hasCoarsePermission = ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+        if (!hasFinePermission && !hasCoarsePermission) {
+            Log.e(TAG, "Location permissions not granted");
+            return;
+        }
+
+        hasFineLocationPermission = hasFinePermission;
+        samplingScheduler.reset();
+        isRunning = true;
+        requestLocationUpdates();
+
+        // Flush leftovers from a previous process right away, then on a schedule
+        flushHandler.removeCallbacks(flushRunnable);
+        flushHandler.post(flushRunnable);
+    }
+
+    /**
+     * (Re)register with the fused provider using the interval recommended by the scheduler.
+     * Requesting again with the same callback replaces the previous request.
+     */
+    private void requestLocationUpdates() {
+        LocationRequest locationRequest = buildLocationRequest(hasFineLocationPermission);
+        activeRequestIntervalMs = locationRequest.getIntervalMillis();
+        activeMaxUpdateDelayMs = locationRequest.getMaxUpdateDelayMillis();
+        activeLowPower = samplingScheduler.isLowPowerRecommended();
+        scheduleNoFixCheck();
+        try {
+            fusedLocationClient.requestLocationUpdates(locationRequest, locationCallback, Looper.getMainLooper())
+                    .addOnFailureListener(e -> {
+                        Log.e(TAG, "Failed to request location updates", e);
+                        isRunning = false;
+                    });
+            Log.d(TAG, "Location updates requested - interval: " + activeRequestIntervalMs + "ms, state: " + samplingScheduler.getState());
+        } catch (SecurityException e) {
+            Log.e(TAG, "Location permissions revoked", e);
+            isRunning = false;
+        }
+    }
+
+    /**
+     * Re-request updates when the motion state calls for a different interval
+     */
+    private void applySamplingPolicy() {
+        if (!isRunning) {
+            return;
+        }
+        long recommendedIntervalMs = samplingScheduler.getRecommendedIntervalMs();
+        if (recommendedIntervalMs != activeRequestIntervalMs
+                || samplingScheduler.isLowPowerRecommended() != activeLowPower) {
+            Log.d(TAG, "Motion state " + samplingScheduler.getState() + ", switching interval from "
+                    + activeRequestIntervalMs + "ms to " + recommendedIntervalMs + "ms");
+            requestLocationUpdates();
+        }
+    }
+
+    /**
+     * Check again for a missing fix once the scheduler's timeout has passed. Batched fixes
+     * can be delivered up to the max update delay late, so that delay is waited on top.
+     */
+    private void scheduleNoFixCheck() {
+        samplingHandler.removeCallbacks(noFixRunnable);
+        if (isRunning && samplingScheduler.isEnabled()) {
+            samplingHandler.postDelayed(noFixRunnable, samplingScheduler.getNoFixTimeoutMs() + activeMaxUpdateDelayMs);
+        }
+    }
+
+    /**
+     * Build the request for the fused provider. The max update delay lets the chipset
+     * collect several fixes while the SoC sleeps and deliver them in a single callback.
+     * While stationary, network positioning is enough to notice the device moving again.
+     */
+    private LocationRequest buildLocationRequest(boolean hasFinePermission) {
+        long intervalMs = samplingScheduler.getRecommendedIntervalMs();
+        long maxUpdateDelayMs = Math.max(intervalMs, Math.min(intervalMs * MAX_BATCHED_FIXES, MAX_UPDATE_DELAY_MS));
+        int priority = hasFinePermission && !samplingScheduler.isLowPowerRecommended()
+                ? Priority.PRIORITY_HIGH_ACCURACY : Priority.PRIORITY_BALANCED_POWER_ACCURACY;
+
+        return new LocationRequest.Builder(priority, intervalMs)
+                .setMinUpdateIntervalMillis(samplingScheduler.getRecommendedMinUpdateIntervalMs())
+                .setMinUpdateDistanceMeters(MIN_UPDATE_DISTANCE_M)
+                .setMaxUpdateDelayMillis(maxUpdateDelayMs)
+                .setWaitForAccurateLocation(false)
+                .build();
     }
 
     // Public method to stop location tracking (accessible from bound clients)
     public void stopLocationTracking() {
         Log.d(TAG, "Stopping location tracking");
         isRunning = false;
-        if (locationThread != null) {
-            locationThread.interrupt();
+        if (fusedLocationClient != null) {
+            fusedLocationClient.removeLocationUpdates(locationCallback);
         }
+        samplingHandler.removeCallbacks(noFixRunnable);
+        flushHandler.removeCallbacks(flushRunnable);
+        flushJournal();
     }
 
     // Public method to start location tracking (accessible from bound clients)
@@ -179,7 +435,8 @@ public class LocationService extends Service {
     // Public method to get current location status
     public String getLocationStatus() {
         if (isRunning) {
-            return "Location tracking is active (interval: " + locationUpdateInterval + "ms)";
+            return "Location tracking is active (interval: " + activeRequestIntervalMs + "ms, "
+                    + samplingScheduler.getState().name().toLowerCase() + ")";
         } else {
             return "Location tracking is stopped";
         }
@@ -194,20 +451,14 @@ public class LocationService extends Service {
 
         long oldInterval = this.locationUpdateInterval;
         this.locationUpdateInterval = intervalMs;
+        samplingScheduler.setBaseIntervalMs(intervalMs);
 
         Log.d(TAG, "Location update interval changed from " + oldInterval + "ms to " + intervalMs + "ms");
 
-        // If tracking is currently active, restart it to apply the new interval
+        // If tracking is currently active, re-request updates to apply the new interval
         if (isRunning) {
-            Log.d(TAG, "Restarting location tracking with new interval");
-            stopLocationTracking();
-            // Give a small delay to ensure the thread stops
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-            startLocationTracking();
+            Log.d(TAG, "Re-requesting location updates with new interval");
+            requestLocationUpdates();
         }
     }
 
@@ -216,6 +467,28 @@ public class LocationService extends Service {
         return locationUpdateInterval;
     }
 
+    // Enable or disable adaptive sampling (when disabled the configured interval is always used)
+    public void setAdaptiveSamplingEnabled(boolean enabled) {
+        samplingScheduler.setEnabled(enabled);
+        Log.d(TAG, "Adaptive sampling " + (enabled ? "enabled" : "disabled"));
+        applySamplingPolicy();
+        scheduleNoFixCheck();
+    }
+
+    public boolean isAdaptiveSamplingEnabled() {
+        return samplingScheduler.isEnabled();
+    }
+
+    // Motion state currently driving the sampling interval
+    public AdaptiveSamplingScheduler.MotionState getMotionState() {
+        return samplingScheduler.getState();
+    }
+
+    // Interval actually requested from the fused provider, may differ from the configured one
+    public long getActiveSamplingInterval() {
+        return isRunning ? activeRequestIntervalMs : 0;
+    }
+
     // Method to stop the entire service
     public void stopLocationService() {
         Log.d(TAG, "Stopping location service");
@@ -224,40 +497,27 @@ public class LocationService extends Service {
         stopSelf();
     }
 
-    private void saveCurrentLocation() {
-        if (currentUser == null) {
-            Log.w(TAG, "No authenticated user");
+    /**
+     * Append a fix to the on-device journal; it is sent to Firestore with the next flush
+     */
+    private void journalLocation(long timestampMs, double latitude, double longitude) {
+        if (journalExecutor.isShutdown()) {
             return;
         }
-
-        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED
-                || ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
-
-            fusedLocationClient.getLastLocation()
-                    .addOnSuccessListener(location -> {
-                        if (location != null) {
-                            Log.d(TAG, "Location found: " + location.getLatitude() + ", " + location.getLongitude());
-
-                            Localisation localisation = new Localisation(
-                                    UUID.randomUUID().toString(),
-                                    currentUser.getUid(),
-                                    new Date(),
-                                    location.getLatitude(),
-                                    location.getLongitude()
-                            );
-
-                            new LocalisationController().saveLocalisation(localisation, this.TAG);
-                            new LocalisationController().updateUserCurrentLocation(localisation, this.TAG);
-                        } else {
-                            Log.w(TAG, "Location is null - GPS might be disabled");
-                        }
-                    })
-                    .addOnFailureListener(e -> {
-                        Log.e(TAG, "Failed to get location", e);
-                    });
-        } else {
-            Log.e(TAG, "Location permissions not granted");
-        }
+        journalExecutor.execute(() -> {
+            if (locationJournal == null) {
+                Log.w(TAG, "Location journal unavailable, dropping fix");
+                return;
+            }
+            try {
+                locationJournal.append(timestampMs, latitude, longitude);
+                if (locationJournal.getPendingCount() >= MAX_FIXES_PER_FLUSH) {
+                    flushHandler.post(this::flushJournal);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to journal location", e);
+            }
+        });
     }
 
     @Override
@@ -287,9 +547,19 @@ public class LocationService extends Service {
 
         // Stop location tracking
         isRunning = false;
-        if (locationThread != null) {
-            locationThread.interrupt();
+        if (fusedLocationClient != null) {
+            fusedLocationClient.removeLocationUpdates(locationCallback);
         }
+        samplingHandler.removeCallbacks(noFixRunnable);
+        flushHandler.removeCallbacks(flushRunnable);
+
+        // Pending fixes stay in the journal and are flushed on next start
+        journalExecutor.execute(() -> {
+            if (locationJournal != null) {
+                locationJournal.close();
+            }
+        });
+        journalExecutor.shutdown();
 
         // Only schedule restart if not bound
         if (!isBound) {
@@ -0,0 +1,204 @@
+package fr.upjv.geotrack.utils;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.engine.GlideException;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.storage.FirebaseStorage;
+import com.google.firebase.storage.StorageException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache resolving Firebase Storage paths to download URLs.
+ *
+ * Download URLs stay valid until their token is revoked or the file is replaced, so they
+ * are kept in a PersistentLruCache, in memory and in SharedPreferences: images can start
+ * loading right away, and scrolling back over a list resolves nothing. Lookups running for
+ * the same path share one request, and files known to be missing are remembered for a while
+ * so fallbacks do not hit Storage on every bind. Must be used from the main thread.
+ */
+public class DownloadUrlCache {
+    private static final String TAG = "DownloadUrlCache";
+    private static final String PREFS_NAME = "GeoTrackUrlCache";
+    private static final int MAX_MEMORY_ENTRIES = 300;
+    private static final int MAX_DISK_ENTRIES = 1000;
+    // Resolve URLs again after this long, in case tokens were rotated
+    private static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+    // Do not look up a missing file again before this delay
+    private static final long MISSING_TTL_MS = 10 * 60 * 1000;
+
+    private static DownloadUrlCache instance;
+
+    private static final PersistentLruCache.Codec<Uri> CODEC = new PersistentLruCache.Codec<Uri>() {
+        @Override
+        public void write(Uri uri, JSONObject object) throws JSONException {
+            object.put("url", uri.toString());
+        }
+
+        @Override
+        public Uri read(String path, JSONObject object) throws JSONException {
+            return Uri.parse(object.getString("url"));
+        }
+    };
+
+    private final FirebaseStorage storage;
+    private final PersistentLruCache<Uri> cache;
+    private final Map<String, Task<Uri>> inFlight = new HashMap<>();
+    private final Map<String, Long> missingUntil = new HashMap<>();
+
+    private DownloadUrlCache(Context context) {
+        this.storage = FirebaseStorage.getInstance();
+        this.cache = new PersistentLruCache<>(context, TAG, PREFS_NAME, MAX_MEMORY_ENTRIES, MAX_DISK_ENTRIES, MAX_AGE_MS, CODEC);
+    }
+
+    public static synchronized DownloadUrlCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new DownloadUrlCache(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Resolve the download URL of a file
+     * @param path Storage path of the file, with or without a leading slash
+     * @return Task<Uri> containing the download URL
+     */
+    public Task<Uri> get(String path) {
+        String key = normalize(path);
+        PersistentLruCache.Entry<Uri> entry = cache.get(key);
+        if (entry != null) {
+            return Tasks.forResult(entry.value);
+        }
+
+        Long until = missingUntil.get(key);
+        if (until != null && until > System.currentTimeMillis()) {
+            return Tasks.forException(new IllegalStateException("File not found: " + key));
+        }
+
+        Task<Uri> pending = inFlight.get(key);
+        if (pending != null) {
+            return pending;
+        }
+
+        pending = storage.getReference().child(key).getDownloadUrl()
+                .addOnCompleteListener(task -> {
+                    inFlight.remove(key);
+                    if (task.isSuccessful()) {
+                        put(key, task.getResult());
+                    } else {
+                        // Network or offline errors are retried on the next bind
+                        if (isNotFound(task.getException())) {
+                            missingUntil.put(key, System.currentTimeMillis() + MISSING_TTL_MS);
+                        }
+                        Log.d(TAG, "Cannot resolve " + key + ": " + task.getException());
+                    }
+                });
+        inFlight.put(key, pending);
+        return pending;
+    }
+
+    /**
+     * Resolve the download URLs of several files, keeping their order
+     * @param paths Storage paths
+     * @return Task<List<Uri>> containing the URLs that could be resolved
+     */
+    public Task<List<Uri>> getAll(List<String> paths) {
+        List<Task<Uri>> tasks = new ArrayList<>();
+        for (String path : paths) {
+            if (path != null && !path.trim().isEmpty()) {
+                tasks.add(get(path));
+            }
+        }
+        return Tasks.whenAllComplete(tasks).continueWith(task -> {
+            List<Uri> uris = new ArrayList<>();
+            for (Task<Uri> uriTask : tasks) {
+                if (uriTask.isSuccessful()) {
+                    uris.add(uriTask.getResult());
+                }
+            }
+            return uris;
+        });
+    }
+
+    /**
+     * Start resolving files that will be shown soon, e.g. the next items of a list
+     * @param paths Storage paths, null entries are skipped
+     */
+    public void prefetch(Collection<String> paths) {
+        for (String path : paths) {
+            if (path != null && !path.trim().isEmpty()) {
+                get(path);
+            }
+        }
+    }
+
+    /**
+     * Remember the URL of a file just uploaded
+     * @param path Storage path of the file
+     * @param uri Its download URL
+     */
+    public void put(String path, Uri uri) {
+        String key = normalize(path);
+        cache.put(key, uri);
+        missingUntil.remove(key);
+    }
+
+    /**
+     * Forget the URL of a file, e.g. after it was replaced or deleted
+     * @param path Storage path of the file
+     */
+    public void invalidate(String path) {
+        String key = normalize(path);
+        cache.remove(key);
+        missingUntil.remove(key);
+    }
+
+    /**
+     * Glide listener dropping the URL of a path when the image cannot be loaded,
+     * so the next bind resolves it again (the file may have been replaced)
+     * @param path Storage path of the image
+     */
+    public RequestListener<Drawable> invalidateOnFailure(String path) {
+        return new RequestListener<Drawable>() {
+            @Override
+            public boolean onLoadFailed(@Nullable GlideException e, @Nullable Object model,
+                                        @NonNull Target<Drawable> target, boolean isFirstResource) {
+                invalidate(path);
+                return false;
+            }
+
+            @Override
+            public boolean onResourceReady(@NonNull Drawable resource, @NonNull Object model, Target<Drawable> target,
+                                           @NonNull DataSource dataSource, boolean isFirstResource) {
+                return false;
+            }
+        };
+    }
+
+    private static boolean isNotFound(Exception e) {
+        return e instanceof StorageException
+                && ((StorageException) e).getErrorCode() == StorageException.ERROR_OBJECT_NOT_FOUND;
+    }
+
+    private static String normalize(String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+}
@@ -0,0 +1,465 @@
+package fr.upjv.geotrack.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fr.upjv.geotrack.controllers.LocalisationController;
+import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.Track;
+
+/**
+ * Runs journey exports in the background, shared by every screen of the process.
+ *
+ * Jobs are identified by a key made of the journey version, the format and the destination:
+ * submitting a request identical to a running one attaches to it instead of starting a second
+ * export. Files are first written to a cache directory keyed by the journey version, so exporting
+ * or sharing a settled journey again only copies (or reuses) the cached file. A job outlives the
+ * activity that started it; a recreated activity attaches again with {@link #observe}.
+ * At most MAX_RUNNING_JOBS exports write at the same time.
+ */
+public class ExportJobManager {
+    private static final String TAG = "ExportJobManager";
+    private static final String DIRECTORY_NAME = "exports";
+    private static final int MAX_RUNNING_JOBS = 2;
+    private static final int MAX_QUEUED_JOBS = 8;
+    private static final long MAX_CACHE_BYTES = 50 * 1024 * 1024;
+    // Track pages loaded ahead of the writer, paging stops beyond that
+    private static final int MAX_PENDING_PAGES = 4;
+    // Results nobody came back for are dropped after this delay
+    private static final long UNDELIVERED_RESULT_TTL_MS = 10 * 60 * 1000;
+
+    /** Where the exported file ends up */
+    public static final int DESTINATION_DOWNLOADS = 0;
+    /** Kept in the app cache, for sharing through the FileProvider */
+    public static final int DESTINATION_SHARE = 1;
+    private static final String CANCELLED_MESSAGE = "Export cancelled";
+
+    // Interface for job updates, always called on the main thread
+    public interface ExportListener {
+        void onProgress(int writtenPoints);
+        void onExportFinished(GPXExporter.ExportResult result);
+    }
+
+    private static ExportJobManager instance;
+
+    private final File directory;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_RUNNING_JOBS, MAX_RUNNING_JOBS,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_JOBS));
+    // Running jobs, and finished ones whose result was not delivered yet.
+    // Changed on the main thread only, read by the eviction of the writing threads.
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private ExportJobManager(Context context) {
+        this.directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized ExportJobManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new ExportJobManager(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Start an export, or attach to an identical one already running. Must be called from the main thread.
+     * @param journey The journey to export
+     * @param track Its loaded track, only used to tell apart the versions of a journey still being
+     *              recorded, or null if not loaded yet. The file is always written from the
+     *              full-resolution track, paged in from Firestore and simplified with EXPORT_TOLERANCE_METERS.
+     * @param format One of the TrackWriter.FORMAT_ constants
+     * @param destination DESTINATION_DOWNLOADS or DESTINATION_SHARE
+     * @param listener Receives the progress and the result
+     * @return The key of the job, to observe or cancel it later
+     */
+    public String submit(Journey journey, Track track, String format, int destination, ExportListener listener) {
+        String version = versionOf(journey, track);
+        String key = version + "_" + format + "_" + destination;
+
+        Job job = jobs.get(key);
+        if (job != null && !job.cancelled && job.result == null) {
+            Log.d(TAG, "Attaching to running export: " + key);
+            observe(key, listener);
+            return key;
+        }
+
+        job = new Job(key, journey, format, destination, version);
+        job.listeners.add(listener);
+        jobs.put(key, job);
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many exports queued, rejecting: " + key);
+            Job rejected = job;
+            mainHandler.post(() -> finish(rejected,
+                    new GPXExporter.ExportResult(false, null, "Too many exports in progress, try again later")));
+        }
+        return key;
+    }
+
+    /**
+     * Attach a listener to a job, e.g. after a configuration change. A finished job delivers
+     * its result straight away.
+     * @return false if no such job is known anymore
+     */
+    public boolean observe(String key, ExportListener listener) {
+        Job job = jobs.get(key);
+        if (job == null) {
+            return false;
+        }
+        if (job.result != null) {
+            jobs.remove(key);
+            listener.onExportFinished(job.result);
+            return true;
+        }
+        if (!job.listeners.contains(listener)) {
+            job.listeners.add(listener);
+        }
+        listener.onProgress(job.writtenPoints);
+        return true;
+    }
+
+    /**
+     * Detach a listener, e.g. when its activity is destroyed. The job keeps running.
+     */
+    public void removeListener(String key, ExportListener listener) {
+        Job job = jobs.get(key);
+        if (job != null) {
+            job.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Stop a job. Its listeners get a failed result once the writing thread notices.
+     */
+    public void cancel(String key) {
+        Job job = jobs.get(key);
+        if (job != null && job.result == null) {
+            Log.d(TAG, "Cancelling export: " + key);
+            job.cancelled = true;
+            if (executor.remove(job)) {
+                // Still queued, it never started
+                finish(job, cancelledResult());
+            }
+        }
+    }
+
+    // Settled journeys no longer change. Others are identified by what has been loaded of them,
+    // or only match a running export when their track is paged in during the export.
+    private static String versionOf(Journey journey, Track track) {
+        StringBuilder version = new StringBuilder(journey.getId())
+                .append('_').append(journey.getStart().getTime())
+                .append('_').append(journey.getEnd().getTime())
+                .append('_').append(Integer.toHexString((journey.getName() + "\n" + journey.getDescription()).hashCode()));
+        if (!TrackCache.isCacheable(journey)) {
+            if (track == null) {
+                version.append("_live");
+            } else {
+                version.append('_').append(track.size());
+                if (!track.isEmpty()) {
+                    version.append('_').append(track.getTimestamp(track.size() - 1));
+                }
+            }
+        }
+        return version.toString();
+    }
+
+    /**
+     * Check if a job ended because it was cancelled rather than because it failed
+     */
+    public static boolean isCancelled(GPXExporter.ExportResult result) {
+        return !result.success && CANCELLED_MESSAGE.equals(result.errorMessage);
+    }
+
+    private static GPXExporter.ExportResult cancelledResult() {
+        return new GPXExporter.ExportResult(false, null, CANCELLED_MESSAGE);
+    }
+
+    // Main thread: keep the result for a while for a listener that comes back later, or drop the job
+    private void finish(Job job, GPXExporter.ExportResult result) {
+        job.result = result;
+        if (job.listeners.isEmpty() && !job.cancelled) {
+            Log.d(TAG, "Export finished with no listener attached: " + job.key);
+            mainHandler.postDelayed(() -> {
+                if (jobs.remove(job.key, job)) {
+                    Log.d(TAG, "Dropping undelivered export result: " + job.key);
+                }
+            }, UNDELIVERED_RESULT_TTL_MS);
+            return;
+        }
+        // A cancelled job may already have been replaced by a new identical request
+        jobs.remove(job.key, job);
+        for (ExportListener listener : new ArrayList<>(job.listeners)) {
+            listener.onExportFinished(result);
+        }
+    }
+
+    private class Job implements Runnable {
+        final String key;
+        final Journey journey;
+        final String format;
+        final int destination;
+        final String version;
+        // Cache directory name, unique per job for versions that are never reused
+        final String cacheName;
+        final List<ExportListener> listeners = new ArrayList<>();
+        volatile boolean cancelled;
+        volatile int writtenPoints;
+        GPXExporter.ExportResult result;
+
+        Job(String key, Journey journey, String format, int destination, String version) {
+            this.key = key;
+            this.journey = journey;
+            this.format = format;
+            this.destination = destination;
+            this.version = version;
+            this.cacheName = (version.endsWith("_live") ? version + System.nanoTime() : version)
+                    .replaceAll("[^a-zA-Z0-9._-]", "_");
+        }
+
+        @Override
+        public void run() {
+            GPXExporter.ExportResult jobResult;
+            try {
+                File cached = cachedFile();
+                if (!cached.exists()) {
+                    write(cached);
+                } else {
+                    Log.d(TAG, "Export served from cache: " + cached.getAbsolutePath());
+                    cached.getParentFile().setLastModified(System.currentTimeMillis());
+                }
+
+                File output = cached;
+                if (destination == DESTINATION_DOWNLOADS) {
+                    output = GPXExporter.createExportFile(journey, format);
+                    copy(cached, output);
+                }
+                Log.d(TAG, "File exported successfully: " + output.getAbsolutePath());
+                jobResult = new GPXExporter.ExportResult(true, output.getAbsolutePath(), null);
+            } catch (CancelledException e) {
+                jobResult = cancelledResult();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                jobResult = cancelledResult();
+            } catch (IOException e) {
+                Log.e(TAG, "Error exporting " + format.toUpperCase() + " file", e);
+                jobResult = new GPXExporter.ExportResult(false, null, e.getMessage());
+            } catch (Exception e) {
+                Log.e(TAG, "Unexpected error during " + format.toUpperCase() + " export", e);
+                jobResult = new GPXExporter.ExportResult(false, null, "Unexpected error: " + e.getMessage());
+            }
+
+            // A live version never matches again, only keep it for the share target to read
+            if (version.endsWith("_live") && (destination == DESTINATION_DOWNLOADS || !jobResult.success)) {
+                deleteRecursively(new File(directory, cacheName));
+            }
+
+            GPXExporter.ExportResult finalResult = jobResult;
+            mainHandler.post(() -> finish(this, finalResult));
+        }
+
+        // exports/<version>/<journey name>.<format>, the name is what the share target sees
+        private File cachedFile() {
+            File versionDirectory = new File(directory, cacheName);
+            return new File(versionDirectory, GPXExporter.sanitizeFileName(journey.getName()) + "." + format);
+        }
+
+        private void write(File file) throws IOException, CancelledException, InterruptedException {
+            File versionDirectory = file.getParentFile();
+            if (!versionDirectory.exists() && !versionDirectory.mkdirs()) {
+                throw new IOException("Cannot create export cache directory");
+            }
+
+            // Write to a temporary file first so the cache never holds a half-written export.
+            // Its name is unique as an export and a share of the same version can run together.
+            File temporary = File.createTempFile(file.getName(), ".tmp", versionDirectory);
+            boolean written = false;
+            try (TrackWriter writer = TrackWriter.create(format, new FileOutputStream(temporary))) {
+                writer.begin(journey);
+                appendStreamed(writer);
+                if (writtenPoints == 0) {
+                    throw new IOException("No location data to export");
+                }
+                writer.finish();
+                written = true;
+            } finally {
+                if (!written) {
+                    temporary.delete();
+                }
+            }
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                throw new IOException("Cannot move export into place: " + file.getName());
+            }
+            evictIfNeeded();
+        }
+
+        // Pages arrive on the main thread and are written here, in order, then dropped.
+        // Displayed tracks are simplified more coarsely, so the export reads the chunks again.
+        private void appendStreamed(TrackWriter writer) throws IOException, CancelledException, InterruptedException {
+            // One slot more than the pages, for the marker that ends a pass
+            BlockingQueue<Object> pages = new ArrayBlockingQueue<>(MAX_PENDING_PAGES + 1);
+            Object done = new Object();
+            Object paused = new Object();
+            requestPages(journey, pages, done, paused);
+
+            long lastTimestamp = Long.MIN_VALUE;
+            while (true) {
+                Object next = pages.take();
+                checkCancelled();
+                if (next == done) {
+                    return;
+                }
+                if (next == paused) {
+                    // Every loaded page is written, go on after the last point
+                    requestPages(new Journey(journey.getId(), journey.getUserUUID(), new Date(lastTimestamp + 1),
+                            journey.getEnd(), journey.getName(), journey.getDescription()), pages, done, paused);
+                    continue;
+                }
+                if (next instanceof IOException) {
+                    throw (IOException) next;
+                }
+                Track page = (Track) next;
+                writer.append(page);
+                lastTimestamp = page.getTimestamp(page.size() - 1);
+                progress(page.size());
+            }
+        }
+
+        // Page in the track of a time window until it ends or MAX_PENDING_PAGES are waiting to be written
+        private void requestPages(Journey window, BlockingQueue<Object> pages, Object done, Object paused) {
+            mainHandler.post(() -> new LocalisationController().loadTrackForJourney(window, GPXExporter.EXPORT_TOLERANCE_METERS,
+                    new LocalisationController.TrackPageCallback() {
+                        private boolean full;
+
+                        @Override
+                        public boolean onPageLoaded(Track page) {
+                            pages.add(page);
+                            // Stop paging once the job was cancelled, or until the writer catches up
+                            full = pages.size() >= MAX_PENDING_PAGES;
+                            return !cancelled && !full;
+                        }
+
+                        @Override
+                        public void onComplete(int totalPoints) {
+                            pages.add(full && !cancelled ? paused : done);
+                        }
+
+                        @Override
+                        public void onFailure(String message) {
+                            pages.add(new IOException("Error loading track: " + message));
+                        }
+                    }));
+        }
+
+        private void progress(int points) {
+            writtenPoints += points;
+            int written = writtenPoints;
+            mainHandler.post(() -> {
+                for (ExportListener listener : new ArrayList<>(listeners)) {
+                    listener.onProgress(written);
+                }
+            });
+        }
+
+        private void checkCancelled() throws CancelledException {
+            if (cancelled) {
+                throw new CancelledException();
+            }
+        }
+    }
+
+    private static class CancelledException extends Exception {
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream input = new FileInputStream(source);
+             OutputStream output = new FileOutputStream(target)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            target.delete();
+            throw new IOException("Error writing file: " + e.getMessage(), e);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Version directories are touched on every use, drop the least recently used first.
+    // Directories of known jobs are kept, a share target may still have to read them.
+    private synchronized void evictIfNeeded() {
+        File[] versions = directory.listFiles();
+        if (versions == null) {
+            return;
+        }
+        Set<String> inUse = new HashSet<>();
+        for (Job job : jobs.values()) {
+            inUse.add(job.cacheName);
+        }
+
+        Map<File, Long> sizes = new HashMap<>();
+        long totalBytes = 0;
+        for (File version : versions) {
+            long size = 0;
+            File[] files = version.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    size += file.length();
+                }
+            }
+            sizes.put(version, size);
+            totalBytes += size;
+        }
+        if (totalBytes <= MAX_CACHE_BYTES) {
+            return;
+        }
+
+        Arrays.sort(versions, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File version : versions) {
+            if (totalBytes <= MAX_CACHE_BYTES) {
+                break;
+            }
+            if (inUse.contains(version.getName())) {
+                continue;
+            }
+            totalBytes -= sizes.get(version);
+            deleteRecursively(version);
+            Log.d(TAG, "Evicted cached export: " + version.getName());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package fr.upjv.geotrack.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Geohash encoding and radius query ranges.
+ *
+ * A geohash interleaves longitude and latitude bits, so every prefix is a rectangular cell
+ * and the documents of a cell are one contiguous range when ordered by geohash. A radius
+ * query is covered by at most four cells at least as large as the search box, each read
+ * with a single range query.
+ */
+public class GeoHash {
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final int BITS_PER_CHAR = 5;
+    // 10 characters is about 1 m, enough for any prefix a query needs
+    public static final int DEFAULT_PRECISION = 10;
+    private static final int MAX_BITS = DEFAULT_PRECISION * BITS_PER_CHAR;
+    private static final double EARTH_RADIUS_M = 6371000;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS_M;
+
+    private GeoHash() {
+    }
+
+    /**
+     * Encode a position
+     * @param latitude Latitude in degrees
+     * @param longitude Longitude in degrees
+     * @param precision Number of characters
+     * @return The geohash
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        return toString(encodeBits(latitude, longitude, precision * BITS_PER_CHAR), precision * BITS_PER_CHAR);
+    }
+
+    public static String encode(double latitude, double longitude) {
+        return encode(latitude, longitude, DEFAULT_PRECISION);
+    }
+
+    /**
+     * Get the geohash ranges covering a circle. Every position within the radius has a
+     * geohash in one of the ranges; positions slightly outside may match too and must be
+     * filtered by distance.
+     * @param latitude Latitude of the center
+     * @param longitude Longitude of the center
+     * @param radiusMeters Radius in meters
+     * @return Pairs of {start, end} bounds, inclusive, for startAt/endAt queries
+     */
+    public static List<String[]> queryBounds(double latitude, double longitude, double radiusMeters) {
+        double latitudeDelta = radiusMeters / METERS_PER_DEGREE;
+        // Widest longitude span of the box, at its edge closest to a pole
+        double farLatitude = Math.min(89.9, Math.abs(latitude) + latitudeDelta);
+        double longitudeDelta = Math.min(180, radiusMeters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(farLatitude))));
+
+        // Cells at least as large as the box, so it overlaps at most 2x2 of them
+        int latitudeBits = bitsForSpan(180, 2 * latitudeDelta);
+        int longitudeBits = bitsForSpan(360, 2 * longitudeDelta);
+        // Longitude takes the first (odd) bit
+        int bits = Math.max(1, Math.min(MAX_BITS, Math.min(2 * longitudeBits, 2 * latitudeBits + 1)));
+
+        double south = Math.max(-90, latitude - latitudeDelta);
+        double north = Math.min(90, latitude + latitudeDelta);
+        double[] latitudes = {south, latitude, north};
+        double[] longitudes = {wrap(longitude - longitudeDelta), longitude, wrap(longitude + longitudeDelta)};
+
+        Set<Long> cells = new LinkedHashSet<>();
+        for (double lat : latitudes) {
+            for (double lon : longitudes) {
+                cells.add(encodeBits(lat, lon, bits));
+            }
+        }
+
+        List<String[]> bounds = new ArrayList<>(cells.size());
+        for (long cell : cells) {
+            bounds.add(rangeOf(cell, bits));
+        }
+        return bounds;
+    }
+
+    /**
+     * Great-circle distance between two positions
+     * @return Distance in meters
+     */
+    public static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        return EARTH_RADIUS_M * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    // Number of halvings of a range that still leaves cells at least as large as a span
+    private static int bitsForSpan(double range, double span) {
+        if (span <= 0) {
+            return MAX_BITS;
+        }
+        return Math.max(0, (int) Math.floor(Math.log(range / span) / Math.log(2)));
+    }
+
+    private static long encodeBits(double latitude, double longitude, int bits) {
+        double minLatitude = -90, maxLatitude = 90;
+        double minLongitude = -180, maxLongitude = 180;
+        long hash = 0;
+        for (int i = 0; i < bits; i++) {
+            hash <<= 1;
+            if (i % 2 == 0) {
+                double middle = (minLongitude + maxLongitude) / 2;
+                if (longitude >= middle) {
+                    hash |= 1;
+                    minLongitude = middle;
+                } else {
+                    maxLongitude = middle;
+                }
+            } else {
+                double middle = (minLatitude + maxLatitude) / 2;
+                if (latitude >= middle) {
+                    hash |= 1;
+                    minLatitude = middle;
+                } else {
+                    maxLatitude = middle;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static String toString(long hash, int bits) {
+        char[] chars = new char[bits / BITS_PER_CHAR];
+        for (int i = chars.length - 1; i >= 0; i--) {
+            chars[i] = BASE32.charAt((int) (hash & 31));
+            hash >>>= BITS_PER_CHAR;
+        }
+        return new String(chars);
+    }
+
+    // Range of the geohashes starting with the given bits, which may end mid-character
+    private static String[] rangeOf(long hash, int bits) {
+        int padding = (BITS_PER_CHAR - bits % BITS_PER_CHAR) % BITS_PER_CHAR;
+        int paddedBits = bits + padding;
+        String start = toString(hash << padding, paddedBits);
+        String end = toString((hash << padding) | ((1L << padding) - 1), paddedBits);
+        // '~' sorts after every base32 character
+        return new String[]{start, end + "~"};
+    }
+
+    private static double wrap(double longitude) {
+        if (longitude > 180) {
+            return longitude - 360;
+        }
+        if (longitude < -180) {
+            return longitude + 360;
+        }
+        return longitude;
+    }
+}
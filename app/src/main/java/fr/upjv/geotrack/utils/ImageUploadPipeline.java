@@ -0,0 +1,149 @@
+package fr.upjv.geotrack.utils;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.net.Uri;
+import android.util.Log;
+import android.util.Size;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Prepares picked images for upload: decode, downscale and re-encode, off the main thread.
+ *
+ * ImageDecoder decodes straight to the target size (subsampling the source when it can) and
+ * applies the EXIF orientation. Only pixels are re-encoded, so EXIF metadata such as the GPS
+ * position of the photo is never uploaded. A smaller thumbnail can be made from the same decode.
+ * At most two images are processed at a time to bound the memory used by bitmaps.
+ */
+public class ImageUploadPipeline {
+    private static final String TAG = "ImageUploadPipeline";
+    private static final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    /** Full-size journey photo, about 300 KB */
+    public static final Spec JOURNEY_PHOTO = new Spec(2048, Bitmap.CompressFormat.WEBP_LOSSY, 80);
+    /** Journey cover shown in the feeds */
+    public static final Spec JOURNEY_THUMBNAIL = new Spec(640, Bitmap.CompressFormat.WEBP_LOSSY, 75);
+    /** Profile picture, kept in JPEG as it overwrites users/{uid}/profile.jpg */
+    public static final Spec PROFILE_PICTURE = new Spec(400, Bitmap.CompressFormat.JPEG, 80);
+
+    /**
+     * Target of an encoding: longest side in pixels, format and quality (0-100)
+     */
+    public static class Spec {
+        public final int maxDimension;
+        public final Bitmap.CompressFormat format;
+        public final int quality;
+
+        public Spec(int maxDimension, Bitmap.CompressFormat format, int quality) {
+            this.maxDimension = maxDimension;
+            this.format = format;
+            this.quality = quality;
+        }
+
+        public String getFileExtension() {
+            return format == Bitmap.CompressFormat.JPEG ? "jpg"
+                    : format == Bitmap.CompressFormat.PNG ? "png" : "webp";
+        }
+
+        public String getContentType() {
+            return format == Bitmap.CompressFormat.JPEG ? "image/jpeg"
+                    : format == Bitmap.CompressFormat.PNG ? "image/png" : "image/webp";
+        }
+    }
+
+    /**
+     * Encoded image, and its thumbnail if one was asked for
+     */
+    public static class PreparedImage {
+        public final byte[] data;
+        public final byte[] thumbnail;
+
+        public PreparedImage(byte[] data, byte[] thumbnail) {
+            this.data = data;
+            this.thumbnail = thumbnail;
+        }
+    }
+
+    /**
+     * Decode and re-encode an image on a background thread
+     * @param resolver Resolver able to open the image
+     * @param uri The picked image
+     * @param spec Size, format and quality of the uploaded image
+     * @return Task<PreparedImage> containing the encoded bytes
+     */
+    public static Task<PreparedImage> prepare(ContentResolver resolver, Uri uri, Spec spec) {
+        return prepare(resolver, uri, spec, null);
+    }
+
+    /**
+     * Decode an image once and encode it along with a thumbnail, on a background thread
+     * @param thumbnailSpec Size, format and quality of the thumbnail, or null for none
+     * @return Task<PreparedImage> containing the encoded bytes
+     */
+    public static Task<PreparedImage> prepare(ContentResolver resolver, Uri uri, Spec spec, Spec thumbnailSpec) {
+        return Tasks.call(executor, () -> {
+            Bitmap bitmap = decode(resolver, uri, spec.maxDimension);
+            try {
+                byte[] data = encode(bitmap, spec);
+                byte[] thumbnail = null;
+                if (thumbnailSpec != null) {
+                    Bitmap small = scaleDown(bitmap, thumbnailSpec.maxDimension);
+                    thumbnail = encode(small, thumbnailSpec);
+                    if (small != bitmap) {
+                        small.recycle();
+                    }
+                }
+                Log.d(TAG, "Prepared " + bitmap.getWidth() + "x" + bitmap.getHeight() + " image: "
+                        + data.length + " bytes" + (thumbnail != null ? ", thumbnail " + thumbnail.length + " bytes" : ""));
+                return new PreparedImage(data, thumbnail);
+            } finally {
+                bitmap.recycle();
+            }
+        });
+    }
+
+    private static Bitmap decode(ContentResolver resolver, Uri uri, int maxDimension) throws IOException {
+        ImageDecoder.Source source = ImageDecoder.createSource(resolver, uri);
+        return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+            Size size = info.getSize();
+            Size target = fit(size.getWidth(), size.getHeight(), maxDimension);
+            decoder.setTargetSize(target.getWidth(), target.getHeight());
+            // Software bitmaps can be compressed and scaled without a copy
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+        });
+    }
+
+    private static Bitmap scaleDown(Bitmap bitmap, int maxDimension) {
+        Size target = fit(bitmap.getWidth(), bitmap.getHeight(), maxDimension);
+        if (target.getWidth() == bitmap.getWidth() && target.getHeight() == bitmap.getHeight()) {
+            return bitmap;
+        }
+        return Bitmap.createScaledBitmap(bitmap, target.getWidth(), target.getHeight(), true);
+    }
+
+    // Largest size with the same aspect ratio whose longest side is at most maxDimension
+    private static Size fit(int width, int height, int maxDimension) {
+        int longest = Math.max(width, height);
+        if (longest <= maxDimension) {
+            return new Size(width, height);
+        }
+        float scale = (float) maxDimension / longest;
+        return new Size(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+    }
+
+    private static byte[] encode(Bitmap bitmap, Spec spec) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (!bitmap.compress(spec.format, spec.quality, output)) {
+            throw new IOException("Cannot encode image as " + spec.getFileExtension());
+        }
+        return output.toByteArray();
+    }
+}
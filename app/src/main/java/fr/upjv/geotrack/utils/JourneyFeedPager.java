@@ -0,0 +1,274 @@
+package fr.upjv.geotrack.utils;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.upjv.geotrack.controllers.JourneyController;
+import fr.upjv.geotrack.controllers.TimelineController;
+import fr.upjv.geotrack.models.Journey;
+
+/**
+ * Cursor-based paging of the home feed.
+ *
+ * Pages are loaded with startAfter on the last document of the previous page, and the next
+ * page is requested while the user is still a few items away from the end. Only a window
+ * of pages is kept in memory: pages scrolled far past are dropped and loaded again with
+ * endBefore if the user scrolls back, so memory stays bounded however long the feed is.
+ * The same paging runs over the global journey feed or over a user's timeline.
+ */
+public class JourneyFeedPager {
+    private static final String TAG = "JourneyFeedPager";
+    public static final int PAGE_SIZE = 20;
+    // 10 pages of 20 journeys kept in memory at most
+    private static final int MAX_PAGES = 10;
+    // Load the next page when the user is this many items from the end
+    private static final int PREFETCH_DISTANCE = 5;
+
+    // Interface for feed updates
+    public interface Listener {
+        void onJourneysChanged(List<Journey> journeys);
+        void onFailure(String error);
+    }
+
+    // Where pages come from: ordered documents, and the journeys they stand for
+    public interface Source {
+        Task<QuerySnapshot> getPage(DocumentSnapshot after, int pageSize);
+        Task<QuerySnapshot> getPageBefore(DocumentSnapshot before, int pageSize);
+        Task<List<Journey>> resolve(List<DocumentSnapshot> documents);
+    }
+
+    /**
+     * Every journey, most recent first
+     */
+    public static Source globalFeed(JourneyController journeyController) {
+        return new Source() {
+            @Override
+            public Task<QuerySnapshot> getPage(DocumentSnapshot after, int pageSize) {
+                return journeyController.getFeedPage(after, pageSize);
+            }
+
+            @Override
+            public Task<QuerySnapshot> getPageBefore(DocumentSnapshot before, int pageSize) {
+                return journeyController.getFeedPageBefore(before, pageSize);
+            }
+
+            @Override
+            public Task<List<Journey>> resolve(List<DocumentSnapshot> documents) {
+                List<Journey> journeys = new ArrayList<>();
+                for (DocumentSnapshot document : documents) {
+                    try {
+                        Journey journey = document.toObject(Journey.class);
+                        if (journey != null && journey.isValid()) {
+                            journeys.add(journey);
+                        }
+                    } catch (Exception e) {
+                        Log.w(TAG, "Skipping unreadable journey: " + document.getId(), e);
+                    }
+                }
+                return Tasks.forResult(journeys);
+            }
+        };
+    }
+
+    /**
+     * Journeys of a user and of the users they follow, from their precomputed timeline
+     */
+    public static Source timeline(TimelineController timelineController, String userId) {
+        return new Source() {
+            @Override
+            public Task<QuerySnapshot> getPage(DocumentSnapshot after, int pageSize) {
+                return timelineController.getTimelinePage(userId, after, pageSize);
+            }
+
+            @Override
+            public Task<QuerySnapshot> getPageBefore(DocumentSnapshot before, int pageSize) {
+                return timelineController.getTimelinePageBefore(userId, before, pageSize);
+            }
+
+            @Override
+            public Task<List<Journey>> resolve(List<DocumentSnapshot> documents) {
+                return timelineController.getJourneys(documents);
+            }
+        };
+    }
+
+    // A loaded page and the cursors around it
+    private static class Page {
+        final List<Journey> journeys = new ArrayList<>();
+        DocumentSnapshot first;
+        DocumentSnapshot last;
+        int size; // Documents returned by the query, before skipping any
+    }
+
+    private final Source source;
+    private final Listener listener;
+    private final ArrayDeque<Page> pages = new ArrayDeque<>();
+    private boolean headDropped = false; // Pages before the first one were dropped
+    private boolean endReached = false;
+    private boolean loading = false;
+    private int generation = 0; // Responses from before a refresh are ignored
+    private int itemCount = 0;
+
+    public JourneyFeedPager(JourneyController journeyController, Listener listener) {
+        this(globalFeed(journeyController), listener);
+    }
+
+    public JourneyFeedPager(Source source, Listener listener) {
+        this.source = source;
+        this.listener = listener;
+    }
+
+    /**
+     * Drop every page and load the first one again
+     */
+    public void refresh() {
+        generation++;
+        pages.clear();
+        headDropped = false;
+        endReached = false;
+        loading = false;
+        itemCount = 0;
+        loadNext();
+    }
+
+    /**
+     * Tell the pager which items are on screen, so it loads or restores pages around them
+     * @param firstVisible Adapter position of the first visible item
+     * @param lastVisible Adapter position of the last visible item
+     */
+    public void onVisibleRangeChanged(int firstVisible, int lastVisible) {
+        if (lastVisible >= itemCount - PREFETCH_DISTANCE) {
+            loadNext();
+        } else if (firstVisible >= 0 && firstVisible <= PREFETCH_DISTANCE) {
+            loadPrevious();
+        }
+    }
+
+    public boolean isEndReached() {
+        return endReached;
+    }
+
+    public boolean isLoading() {
+        return loading;
+    }
+
+    private void loadNext() {
+        if (loading || endReached) {
+            return;
+        }
+        loading = true;
+        int requestGeneration = generation;
+        DocumentSnapshot after = pages.isEmpty() ? null : pages.peekLast().last;
+
+        source.getPage(after, PAGE_SIZE)
+                .continueWithTask(task -> toPage(task))
+                .addOnSuccessListener(page -> {
+                    if (requestGeneration != generation) {
+                        return;
+                    }
+                    loading = false;
+                    if (page == null || page.size < PAGE_SIZE) {
+                        endReached = true;
+                    }
+                    if (page != null) {
+                        pages.addLast(page);
+                        if (pages.size() > MAX_PAGES) {
+                            pages.removeFirst();
+                            headDropped = true;
+                        }
+                    }
+                    publish();
+                    if (page != null && page.journeys.isEmpty()) {
+                        // Nothing new to scroll to, the list would never ask for more
+                        loadNext();
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    if (requestGeneration != generation) {
+                        return;
+                    }
+                    loading = false;
+                    Log.e(TAG, "Error loading feed page", e);
+                    listener.onFailure(e.getMessage());
+                });
+    }
+
+    private void loadPrevious() {
+        if (loading || !headDropped || pages.isEmpty()) {
+            return;
+        }
+        loading = true;
+        int requestGeneration = generation;
+
+        source.getPageBefore(pages.peekFirst().first, PAGE_SIZE)
+                .continueWithTask(task -> toPage(task))
+                .addOnSuccessListener(page -> {
+                    if (requestGeneration != generation) {
+                        return;
+                    }
+                    loading = false;
+                    if (page == null || page.size < PAGE_SIZE) {
+                        // Back at the top of the feed
+                        headDropped = false;
+                    }
+                    if (page != null) {
+                        pages.addFirst(page);
+                        if (pages.size() > MAX_PAGES) {
+                            pages.removeLast();
+                            endReached = false;
+                        }
+                    }
+                    publish();
+                })
+                .addOnFailureListener(e -> {
+                    if (requestGeneration != generation) {
+                        return;
+                    }
+                    loading = false;
+                    Log.e(TAG, "Error restoring feed page", e);
+                    listener.onFailure(e.getMessage());
+                });
+    }
+
+    // Resolve the journeys of a loaded page, null when the query returned nothing
+    private Task<Page> toPage(Task<QuerySnapshot> queryTask) throws Exception {
+        if (!queryTask.isSuccessful()) {
+            throw queryTask.getException();
+        }
+        List<DocumentSnapshot> documents = queryTask.getResult().getDocuments();
+        if (documents.isEmpty()) {
+            return Tasks.forResult(null);
+        }
+
+        Page page = new Page();
+        // Cursors come from the raw documents, so skipped invalid journeys do not break paging
+        page.first = documents.get(0);
+        page.last = documents.get(documents.size() - 1);
+        page.size = documents.size();
+        return source.resolve(documents).continueWith(task -> {
+            if (!task.isSuccessful()) {
+                throw task.getException();
+            }
+            page.journeys.addAll(task.getResult());
+            return page;
+        });
+    }
+
+    private void publish() {
+        List<Journey> journeys = new ArrayList<>();
+        for (Page page : pages) {
+            journeys.addAll(page.journeys);
+        }
+        itemCount = journeys.size();
+        Log.d(TAG, itemCount + " journeys in " + pages.size() + " page(s)");
+        listener.onJourneysChanged(journeys);
+    }
+}
@@ -0,0 +1,126 @@
+package fr.upjv.geotrack.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import fr.upjv.geotrack.models.Track;
+
+/**
+ * Append-only on-device journal of GPS fixes waiting to be sent to Firestore.
+ *
+ * File layout: an 8-byte header holding the number of records already flushed,
+ * followed by fixed-size records (timestamp ms, latitude, longitude).
+ * Fixes written here survive process death and are flushed in batches by LocationService.
+ */
+public class LocationJournal {
+    private static final String TAG = "LocationJournal";
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 8 + 8 + 8;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private long recordCount;
+    private long flushedCount;
+
+    public LocationJournal(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < HEADER_SIZE) {
+            raf.setLength(0);
+            raf.writeLong(0);
+        }
+
+        // Drop a partially written trailing record (process killed mid-write)
+        long dataLength = raf.length() - HEADER_SIZE;
+        recordCount = dataLength / RECORD_SIZE;
+        if (dataLength % RECORD_SIZE != 0) {
+            raf.setLength(HEADER_SIZE + recordCount * RECORD_SIZE);
+            Log.w(TAG, "Truncated torn record in journal: " + file.getName());
+        }
+
+        raf.seek(0);
+        flushedCount = Math.min(Math.max(raf.readLong(), 0), recordCount);
+        Log.d(TAG, "Journal opened: " + recordCount + " records, " + getPendingCount() + " pending");
+    }
+
+    /**
+     * Append a fix at the end of the journal
+     * @param timestampMs Time of the fix in milliseconds
+     * @param latitude Latitude of the fix
+     * @param longitude Longitude of the fix
+     */
+    public synchronized void append(long timestampMs, double latitude, double longitude) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(timestampMs).putDouble(latitude).putDouble(longitude);
+
+        raf.seek(HEADER_SIZE + recordCount * RECORD_SIZE);
+        raf.write(record.array());
+        recordCount++;
+    }
+
+    /**
+     * Read the oldest fixes that have not been flushed yet
+     * @param userUUID Owner of the fixes
+     * @param maxCount Maximum number of fixes to return
+     * @return Pending fixes as a track, oldest first
+     */
+    public synchronized Track readPending(String userUUID, int maxCount) throws IOException {
+        int count = (int) Math.min(getPendingCount(), maxCount);
+        Track pending = new Track(userUUID, null, count);
+        if (count == 0) {
+            return pending;
+        }
+
+        byte[] bytes = new byte[count * RECORD_SIZE];
+        raf.seek(HEADER_SIZE + flushedCount * RECORD_SIZE);
+        raf.readFully(bytes);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < count; i++) {
+            long timestampMs = buffer.getLong();
+            double latitude = buffer.getDouble();
+            double longitude = buffer.getDouble();
+            pending.add(timestampMs, latitude, longitude);
+        }
+        // Fixes can arrive slightly out of order when the provider delivers batches
+        pending.sortByTime();
+        return pending;
+    }
+
+    /**
+     * Mark the oldest pending fixes as flushed. The journal is compacted once everything is flushed.
+     * @param count Number of fixes successfully written to Firestore
+     */
+    public synchronized void markFlushed(int count) throws IOException {
+        flushedCount = Math.min(flushedCount + count, recordCount);
+
+        if (flushedCount == recordCount) {
+            // Everything is on the server, start a fresh journal
+            raf.setLength(HEADER_SIZE);
+            recordCount = 0;
+            flushedCount = 0;
+        }
+
+        raf.seek(0);
+        raf.writeLong(flushedCount);
+    }
+
+    public synchronized long getPendingCount() {
+        return recordCount - flushedCount;
+    }
+
+    public synchronized void close() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing journal", e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package fr.upjv.geotrack.utils;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Grid-based clustering of user positions for the live map.
+ *
+ * Positions are projected to Web Mercator pixels at the current zoom and grouped by
+ * square grid cell. Only positions inside the (slightly extended) viewport are considered,
+ * so the work and the number of markers drawn are bounded by what fits on screen rather
+ * than by the number of users. Pure computation, safe to run off the main thread.
+ */
+public class MarkerClusterer {
+    private static final double TILE_SIZE = 256;
+    // Above this zoom every user is shown individually
+    public static final float MAX_CLUSTER_ZOOM = 17f;
+    // LatLng turns a longitude of 180 into -180, so eastern edges stop just before it
+    private static final double MAX_EAST_LONGITUDE = Math.nextAfter(180.0, 0);
+
+    /**
+     * A group of users sharing a grid cell
+     */
+    public static class Cluster {
+        private final String key;
+        private final List<String> userIds = new ArrayList<>();
+        private double latitudeSum;
+        private double longitudeSum;
+        private double minLatitude = Double.MAX_VALUE;
+        private double minLongitude = Double.MAX_VALUE;
+        private double maxLatitude = -Double.MAX_VALUE;
+        private double maxLongitude = -Double.MAX_VALUE;
+
+        Cluster(String key) {
+            this.key = key;
+        }
+
+        void add(String userId, LatLng position) {
+            userIds.add(userId);
+            latitudeSum += position.latitude;
+            longitudeSum += position.longitude;
+            minLatitude = Math.min(minLatitude, position.latitude);
+            minLongitude = Math.min(minLongitude, position.longitude);
+            maxLatitude = Math.max(maxLatitude, position.latitude);
+            maxLongitude = Math.max(maxLongitude, position.longitude);
+        }
+
+        // Stable identifier of the grid cell, used to reuse bubble markers between passes
+        public String getKey() {
+            return key;
+        }
+
+        public List<String> getUserIds() {
+            return userIds;
+        }
+
+        public int size() {
+            return userIds.size();
+        }
+
+        public LatLng getCenter() {
+            return new LatLng(latitudeSum / userIds.size(), longitudeSum / userIds.size());
+        }
+
+        public LatLngBounds getBounds() {
+            return new LatLngBounds(new LatLng(minLatitude, minLongitude), new LatLng(maxLatitude, maxLongitude));
+        }
+    }
+
+    /**
+     * Result of a clustering pass
+     */
+    public static class Result {
+        private final List<Cluster> clusters = new ArrayList<>();
+        private final Set<String> singleUserIds = new HashSet<>();
+
+        // Groups of two users or more, drawn as bubbles
+        public List<Cluster> getClusters() {
+            return clusters;
+        }
+
+        // Users alone in their cell and inside the viewport, drawn with their own marker
+        public Set<String> getSingleUserIds() {
+            return singleUserIds;
+        }
+    }
+
+    private MarkerClusterer() {
+    }
+
+    /**
+     * Cluster user positions for the given camera
+     * @param positions Position of each user
+     * @param zoom Current camera zoom
+     * @param viewport Visible region, positions far outside it are skipped (null to keep all)
+     * @param cellSizePx Size of a grid cell in screen pixels
+     * @return Clusters and individually visible users
+     */
+    public static Result cluster(Map<String, LatLng> positions, float zoom, LatLngBounds viewport, double cellSizePx) {
+        Result result = new Result();
+        LatLngBounds area = viewport != null ? extendViewport(viewport) : null;
+
+        if (zoom >= MAX_CLUSTER_ZOOM) {
+            for (Map.Entry<String, LatLng> entry : positions.entrySet()) {
+                if (area == null || area.contains(entry.getValue())) {
+                    result.singleUserIds.add(entry.getKey());
+                }
+            }
+            return result;
+        }
+
+        // Integer zoom keeps cells stable while the user pinches between two levels
+        double worldSize = TILE_SIZE * Math.pow(2, Math.floor(zoom));
+        Map<String, Cluster> cells = new HashMap<>();
+        for (Map.Entry<String, LatLng> entry : positions.entrySet()) {
+            LatLng position = entry.getValue();
+            if (area != null && !area.contains(position)) {
+                continue;
+            }
+
+            long column = (long) Math.floor(projectX(position.longitude, worldSize) / cellSizePx);
+            long row = (long) Math.floor(projectY(position.latitude, worldSize) / cellSizePx);
+            String key = (int) Math.floor(zoom) + "/" + column + "/" + row;
+
+            Cluster cell = cells.get(key);
+            if (cell == null) {
+                cell = new Cluster(key);
+                cells.put(key, cell);
+            }
+            cell.add(entry.getKey(), position);
+        }
+
+        for (Cluster cell : cells.values()) {
+            if (cell.size() == 1) {
+                result.singleUserIds.add(cell.userIds.get(0));
+            } else {
+                result.clusters.add(cell);
+            }
+        }
+        return result;
+    }
+
+    private static double projectX(double longitude, double worldSize) {
+        return (longitude + 180) / 360 * worldSize;
+    }
+
+    private static double projectY(double latitude, double worldSize) {
+        // Clamp to the Mercator limit to avoid infinities at the poles
+        double sin = Math.sin(Math.toRadians(Math.max(-85.05112878, Math.min(85.05112878, latitude))));
+        return (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * worldSize;
+    }
+
+    /**
+     * Add half a screen on each side so markers are ready when the user pans a little
+     * @param viewport Visible region
+     * @return The area clustering considers
+     */
+    public static LatLngBounds extendViewport(LatLngBounds viewport) {
+        double latitudeMargin = (viewport.northeast.latitude - viewport.southwest.latitude) / 2;
+        double south = Math.max(-90, viewport.southwest.latitude - latitudeMargin);
+        double north = Math.min(90, viewport.northeast.latitude + latitudeMargin);
+
+        double west = viewport.southwest.longitude;
+        double east = viewport.northeast.longitude;
+        double longitudeSpan = east >= west ? east - west : east + 360 - west;
+        if (longitudeSpan * 2 >= 360) {
+            return new LatLngBounds(new LatLng(south, -180), new LatLng(north, MAX_EAST_LONGITUDE));
+        }
+        west = wrap(west - longitudeSpan / 2);
+        east = Math.min(MAX_EAST_LONGITUDE, wrap(east + longitudeSpan / 2));
+        return new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+    }
+
+    private static double wrap(double longitude) {
+        if (longitude > 180) {
+            return longitude - 360;
+        }
+        if (longitude < -180) {
+            return longitude + 360;
+        }
+        return longitude;
+    }
+}
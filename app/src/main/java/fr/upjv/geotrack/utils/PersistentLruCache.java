@@ -0,0 +1,174 @@
+package fr.upjv.geotrack.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory LRU backed by a SharedPreferences store, shared by the caches of the app.
+ *
+ * Each value is stored as a JSON object stamped with the time it was stored. Values older
+ * than the maximum age are ignored, and the oldest ones are dropped once the store grows over
+ * its limit. Checking that limit reads the whole store, so it is only done every TRIM_INTERVAL
+ * writes. Must be used from the main thread.
+ */
+class PersistentLruCache<V> {
+    private static final String STORED_AT = "fetchedAt";
+    private static final int TRIM_INTERVAL = 50;
+
+    // Converts values to and from the JSON objects of the store
+    interface Codec<V> {
+        void write(V value, JSONObject object) throws JSONException;
+        V read(String key, JSONObject object) throws JSONException;
+    }
+
+    // A value and the time it was stored
+    static class Entry<V> {
+        final V value;
+        final long storedAt;
+
+        Entry(V value, long storedAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private final String tag;
+    private final SharedPreferences preferences;
+    private final Codec<V> codec;
+    private final int maxDiskEntries;
+    private final long maxAgeMs;
+    private final Map<String, Entry<V>> memory;
+    private int pendingDiskWrites = 0;
+
+    PersistentLruCache(Context context, String tag, String prefsName, int maxMemoryEntries, int maxDiskEntries,
+                       long maxAgeMs, Codec<V> codec) {
+        this.tag = tag;
+        this.preferences = context.getApplicationContext().getSharedPreferences(prefsName, Context.MODE_PRIVATE);
+        this.codec = codec;
+        this.maxDiskEntries = maxDiskEntries;
+        this.maxAgeMs = maxAgeMs;
+        this.memory = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+    }
+
+    /**
+     * Get a value from memory, or from disk if it was evicted from memory
+     * @return The value and when it was stored, or null if unknown or too old
+     */
+    Entry<V> get(String key) {
+        long now = System.currentTimeMillis();
+        Entry<V> entry = memory.get(key);
+        if (entry == null) {
+            entry = readFromDisk(key);
+            if (entry != null) {
+                memory.put(key, entry);
+            }
+        }
+        return entry != null && now - entry.storedAt <= maxAgeMs ? entry : null;
+    }
+
+    void put(String key, V value) {
+        SharedPreferences.Editor editor = preferences.edit();
+        putOnDisk(editor, key, store(key, value));
+        editor.apply();
+        trimIfNeeded(1);
+    }
+
+    /**
+     * Store several values with a single write to disk
+     */
+    void putAll(Map<String, V> values) {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, V> value : values.entrySet()) {
+            putOnDisk(editor, value.getKey(), store(value.getKey(), value.getValue()));
+        }
+        editor.apply();
+        trimIfNeeded(values.size());
+    }
+
+    void remove(String key) {
+        memory.remove(key);
+        preferences.edit().remove(key).apply();
+    }
+
+    private Entry<V> store(String key, V value) {
+        Entry<V> entry = new Entry<>(value, System.currentTimeMillis());
+        memory.put(key, entry);
+        return entry;
+    }
+
+    private Entry<V> readFromDisk(String key) {
+        String json = preferences.getString(key, null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            JSONObject object = new JSONObject(json);
+            return new Entry<>(codec.read(key, object), object.getLong(STORED_AT));
+        } catch (JSONException e) {
+            Log.w(tag, "Corrupted cache entry, dropping it: " + key, e);
+            preferences.edit().remove(key).apply();
+            return null;
+        }
+    }
+
+    private void putOnDisk(SharedPreferences.Editor editor, String key, Entry<V> entry) {
+        try {
+            JSONObject object = new JSONObject();
+            object.put(STORED_AT, entry.storedAt);
+            codec.write(entry.value, object);
+            editor.putString(key, object.toString());
+        } catch (JSONException e) {
+            Log.w(tag, "Cannot store cache entry: " + key, e);
+        }
+    }
+
+    private void trimIfNeeded(int writes) {
+        pendingDiskWrites += writes;
+        if (pendingDiskWrites >= TRIM_INTERVAL) {
+            pendingDiskWrites = 0;
+            trimDisk();
+        }
+    }
+
+    // Drop the oldest entries once the store grows over its limit
+    private void trimDisk() {
+        Map<String, ?> all = preferences.getAll();
+        if (all.size() <= maxDiskEntries) {
+            return;
+        }
+
+        List<Map.Entry<String, Long>> ages = new ArrayList<>();
+        for (Map.Entry<String, ?> stored : all.entrySet()) {
+            long storedAt = 0;
+            try {
+                storedAt = new JSONObject(String.valueOf(stored.getValue())).optLong(STORED_AT, 0);
+            } catch (JSONException ignored) {
+                // Unreadable entries go first
+            }
+            ages.add(new AbstractMap.SimpleEntry<>(stored.getKey(), storedAt));
+        }
+        ages.sort((a, b) -> Long.compare(a.getValue(), b.getValue()));
+
+        SharedPreferences.Editor editor = preferences.edit();
+        for (int i = 0; i < ages.size() - maxDiskEntries; i++) {
+            editor.remove(ages.get(i).getKey());
+        }
+        editor.apply();
+        Log.d(tag, "Trimmed " + (ages.size() - maxDiskEntries) + " cache entries");
+    }
+}
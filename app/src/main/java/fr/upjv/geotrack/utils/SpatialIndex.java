@@ -0,0 +1,313 @@
+package fr.upjv.geotrack.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * In-memory spatial index of user positions, bucketed by latitude/longitude grid cell.
+ *
+ * Cells are fixed-size squares in degrees (the same partition a geohash of fixed precision
+ * gives), so an update only moves a user between two buckets. Radius, viewport and
+ * k-nearest queries only visit the cells around the query, falling back to a plain scan
+ * when that would visit more cells than there are users.
+ */
+public class SpatialIndex {
+    private static final double EARTH_RADIUS_M = 6371000;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS_M;
+    private static final double DEFAULT_CELL_DEGREES = 0.05; // ~5.5 km of latitude
+
+    private static class Entry {
+        final String userId;
+        double latitude;
+        double longitude;
+        long cell;
+
+        Entry(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    // Candidate of a nearest-neighbour search, ordered by distance
+    private static class Candidate {
+        final String userId;
+        final double distance;
+
+        Candidate(String userId, double distance) {
+            this.userId = userId;
+            this.distance = distance;
+        }
+    }
+
+    private final double cellDegrees;
+    private final int columns;
+    private final int rows;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<Long, Set<Entry>> cells = new HashMap<>();
+
+    public SpatialIndex() {
+        this(DEFAULT_CELL_DEGREES);
+    }
+
+    public SpatialIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        this.columns = (int) Math.ceil(360 / cellDegrees);
+        this.rows = (int) Math.ceil(180 / cellDegrees);
+    }
+
+    /**
+     * Insert or move a user
+     */
+    public void update(String userId, double latitude, double longitude) {
+        long cell = cellOf(latitude, longitude);
+        Entry entry = entries.get(userId);
+        if (entry == null) {
+            entry = new Entry(userId);
+            entries.put(userId, entry);
+        } else if (entry.cell != cell) {
+            removeFromCell(entry);
+        } else {
+            // Same cell, only the coordinates change
+            entry.latitude = latitude;
+            entry.longitude = longitude;
+            return;
+        }
+
+        entry.latitude = latitude;
+        entry.longitude = longitude;
+        entry.cell = cell;
+        Set<Entry> bucket = cells.get(cell);
+        if (bucket == null) {
+            bucket = new HashSet<>();
+            cells.put(cell, bucket);
+        }
+        bucket.add(entry);
+    }
+
+    /**
+     * Remove a user from the index
+     */
+    public void remove(String userId) {
+        Entry entry = entries.remove(userId);
+        if (entry != null) {
+            removeFromCell(entry);
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        cells.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Find the users within a distance of a point
+     * @param latitude Latitude of the center
+     * @param longitude Longitude of the center
+     * @param radiusMeters Search radius in meters
+     * @return User ids, closest first
+     */
+    public List<String> withinRadius(double latitude, double longitude, double radiusMeters) {
+        double latitudeDelta = radiusMeters / METERS_PER_DEGREE;
+        double longitudeDelta = radiusMeters / (METERS_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(latitude))));
+
+        List<Candidate> found = new ArrayList<>();
+        for (Entry entry : candidates(latitude - latitudeDelta, longitude - longitudeDelta,
+                latitude + latitudeDelta, longitude + longitudeDelta)) {
+            double distance = distanceMeters(latitude, longitude, entry.latitude, entry.longitude);
+            if (distance <= radiusMeters) {
+                found.add(new Candidate(entry.userId, distance));
+            }
+        }
+        Collections.sort(found, (a, b) -> Double.compare(a.distance, b.distance));
+
+        List<String> userIds = new ArrayList<>(found.size());
+        for (Candidate candidate : found) {
+            userIds.add(candidate.userId);
+        }
+        return userIds;
+    }
+
+    /**
+     * Find the users inside a viewport
+     * @param south Southern latitude
+     * @param west Western longitude (greater than east when crossing the antimeridian)
+     * @param north Northern latitude
+     * @param east Eastern longitude
+     * @return User ids in no particular order
+     */
+    public List<String> inBounds(double south, double west, double north, double east) {
+        boolean crossesAntimeridian = west > east;
+        List<String> userIds = new ArrayList<>();
+        for (Entry entry : candidates(south, west, north, crossesAntimeridian ? east + 360 : east)) {
+            boolean inLongitude = crossesAntimeridian
+                    ? entry.longitude >= west || entry.longitude <= east
+                    : entry.longitude >= west && entry.longitude <= east;
+            if (inLongitude && entry.latitude >= south && entry.latitude <= north) {
+                userIds.add(entry.userId);
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * Find the k users closest to a point, searching rings of cells outward from it
+     * @param latitude Latitude of the point
+     * @param longitude Longitude of the point
+     * @param k Number of users wanted
+     * @return Up to k user ids, closest first
+     */
+    public List<String> nearest(double latitude, double longitude, int k) {
+        // Max-heap of the best k candidates, farthest on top
+        PriorityQueue<Candidate> best = new PriorityQueue<>((a, b) -> Double.compare(b.distance, a.distance));
+        if (k <= 0 || entries.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        int centerRow = rowOf(latitude);
+        int centerColumn = columnOf(longitude);
+        double cellHeightMeters = cellDegrees * METERS_PER_DEGREE;
+        int visited = 0;
+        int maxRing = Math.max(rows, columns);
+
+        for (int ring = 0; ring <= maxRing && visited < entries.size(); ring++) {
+            if ((long) (2 * ring + 1) * (2 * ring + 1) > 4L * entries.size()) {
+                // Sparse index: checking every user is cheaper than visiting more empty cells
+                best.clear();
+                for (Entry entry : entries.values()) {
+                    best.add(new Candidate(entry.userId,
+                            distanceMeters(latitude, longitude, entry.latitude, entry.longitude)));
+                    if (best.size() > k) {
+                        best.poll();
+                    }
+                }
+                break;
+            }
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                if (row < 0 || row >= rows) {
+                    continue;
+                }
+                boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+                // Inner rows only contribute their two edge cells
+                int step = edgeRow ? 1 : Math.max(1, 2 * ring);
+                for (int column = centerColumn - ring; column <= centerColumn + ring; column += step) {
+                    Set<Entry> bucket = cells.get(key(row, Math.floorMod(column, columns)));
+                    if (bucket == null) {
+                        continue;
+                    }
+                    for (Entry entry : bucket) {
+                        visited++;
+                        best.add(new Candidate(entry.userId,
+                                distanceMeters(latitude, longitude, entry.latitude, entry.longitude)));
+                        if (best.size() > k) {
+                            best.poll();
+                        }
+                    }
+                }
+            }
+
+            // Anything outside this ring is at least this far away
+            double ringRowLatitude = Math.min(89.9, Math.abs(latitude) + (ring + 1) * cellDegrees);
+            double cellWidthMeters = cellHeightMeters * Math.cos(Math.toRadians(ringRowLatitude));
+            double minOutsideDistance = ring * Math.min(cellHeightMeters, cellWidthMeters);
+            if (best.size() == k && best.peek().distance <= minOutsideDistance) {
+                break;
+            }
+        }
+
+        List<String> userIds = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            userIds.add(best.poll().userId);
+        }
+        Collections.reverse(userIds);
+        return userIds;
+    }
+
+    // Entries of the cells overlapping a box, or every entry when that is cheaper. Each entry is
+    // returned once, even when the box runs over the antimeridian.
+    private List<Entry> candidates(double south, double west, double north, double east) {
+        int firstRow = rowOf(Math.max(-90, south));
+        int lastRow = rowOf(Math.min(90, north));
+
+        // Column ranges as {first, last} pairs: boxes running over the antimeridian are split in two
+        int[] columnRanges;
+        if (east - west >= 360) {
+            columnRanges = new int[]{0, columns - 1};
+        } else if (west < -180) {
+            columnRanges = new int[]{columnOf(west + 360), columns - 1, 0, columnOf(east)};
+        } else if (east > 180) {
+            columnRanges = new int[]{columnOf(west), columns - 1, 0, columnOf(east - 360)};
+        } else {
+            columnRanges = new int[]{columnOf(west), columnOf(east)};
+        }
+        if (columnRanges.length == 4 && columnRanges[3] >= columnRanges[0]) {
+            // Both halves reach the same column: the box covers every longitude
+            columnRanges = new int[]{0, columns - 1};
+        }
+
+        long columnCount = 0;
+        for (int i = 0; i < columnRanges.length; i += 2) {
+            columnCount += columnRanges[i + 1] - columnRanges[i] + 1;
+        }
+        long cellCount = (long) (lastRow - firstRow + 1) * columnCount;
+        if (cellCount > entries.size()) {
+            return new ArrayList<>(entries.values());
+        }
+
+        List<Entry> result = new ArrayList<>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int i = 0; i < columnRanges.length; i += 2) {
+                for (int column = columnRanges[i]; column <= columnRanges[i + 1]; column++) {
+                    Set<Entry> bucket = cells.get(key(row, column));
+                    if (bucket != null) {
+                        result.addAll(bucket);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void removeFromCell(Entry entry) {
+        Set<Entry> bucket = cells.get(entry.cell);
+        if (bucket != null) {
+            bucket.remove(entry);
+            if (bucket.isEmpty()) {
+                cells.remove(entry.cell);
+            }
+        }
+    }
+
+    private long cellOf(double latitude, double longitude) {
+        return key(rowOf(latitude), columnOf(longitude));
+    }
+
+    private int rowOf(double latitude) {
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor((latitude + 90) / cellDegrees)));
+    }
+
+    private int columnOf(double longitude) {
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor((longitude + 180) / cellDegrees)));
+    }
+
+    private long key(int row, int column) {
+        return (long) row * columns + column;
+    }
+
+    private static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        return EARTH_RADIUS_M * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+}
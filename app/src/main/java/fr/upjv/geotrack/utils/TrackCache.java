@@ -0,0 +1,194 @@
+package fr.upjv.geotrack.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.Track;
+
+/**
+ * On-disk cache of simplified journey tracks, one file per journey.
+ *
+ * Each file stores the version stamp of the journey it was built from, so an edited
+ * journey is reloaded from Firestore. Files are evicted least recently used first once
+ * the cache grows over its size limit. Disk work runs on a single background thread.
+ */
+public class TrackCache {
+    private static final String TAG = "TrackCache";
+    private static final String DIRECTORY_NAME = "tracks";
+    private static final int MAGIC = 0x47545243; // "GTRC"
+    private static final int FORMAT_VERSION = 1;
+    private static final long MAX_CACHE_BYTES = 20 * 1024 * 1024;
+    // Fixes can still be flushed a while after a journey ends, cache only settled journeys
+    private static final long SETTLE_DELAY_MS = 60 * 60 * 1000;
+
+    private static TrackCache instance;
+
+    private final File directory;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private TrackCache(Context context) {
+        this.directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+    }
+
+    public static synchronized TrackCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new TrackCache(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Check if the track of a journey can be cached, i.e. no more fixes will be added to it
+     * @param journey The journey to check
+     * @return true if the journey ended long enough ago
+     */
+    public static boolean isCacheable(Journey journey) {
+        return journey.getEnd() != null
+                && journey.getEnd().getTime() + SETTLE_DELAY_MS < System.currentTimeMillis();
+    }
+
+    /**
+     * Load the cached track of a journey
+     * @param journey The journey to load
+     * @return Task<Track> containing the cached track, or null if missing or outdated
+     */
+    public Task<Track> get(Journey journey) {
+        String version = versionOf(journey);
+        return Tasks.call(executor, () -> read(journey, version));
+    }
+
+    /**
+     * Store the track of a journey, replacing any previous version
+     * @param journey The journey the track belongs to
+     * @param track The simplified track
+     * @return Task<Void> completing once the file is written
+     */
+    public Task<Void> put(Journey journey, Track track) {
+        String version = versionOf(journey);
+        return Tasks.call(executor, () -> {
+            write(journey, version, track);
+            evictIfNeeded();
+            return null;
+        });
+    }
+
+    /**
+     * Remove the cached track of a journey, e.g. after the journey is deleted
+     * @param journeyId The id of the journey
+     */
+    public Task<Void> remove(String journeyId) {
+        return Tasks.call(executor, () -> {
+            File file = fileFor(journeyId);
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Failed to delete cached track: " + file.getName());
+            }
+            return null;
+        });
+    }
+
+    // A journey's track only depends on its owner and time window
+    private static String versionOf(Journey journey) {
+        return journey.getUserUUID() + "_" + journey.getStart().getTime() + "_" + journey.getEnd().getTime();
+    }
+
+    private File fileFor(String journeyId) {
+        return new File(directory, journeyId + ".bin");
+    }
+
+    private Track read(Journey journey, String version) {
+        File file = fileFor(journey.getId());
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION
+                    || !version.equals(input.readUTF())) {
+                Log.d(TAG, "Cached track is outdated: " + journey.getId());
+                file.delete();
+                return null;
+            }
+            byte[] points = new byte[input.readInt()];
+            input.readFully(points);
+
+            Track track = new Track(journey.getUserUUID(), journey.getId());
+            TrackCodec.decode(points, track);
+
+            // Remember the access for LRU eviction
+            file.setLastModified(System.currentTimeMillis());
+            Log.d(TAG, "Loaded " + track.size() + " cached points for journey: " + journey.getId());
+            return track;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Corrupted cached track, dropping it: " + journey.getId(), e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private void write(Journey journey, String version, Track track) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create track cache directory");
+        }
+
+        // Write to a temporary file first so a crash never leaves a half-written track
+        File file = fileFor(journey.getId());
+        File temporary = new File(directory, journey.getId() + ".tmp");
+        byte[] points = TrackCodec.encode(track);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(version);
+            output.writeInt(points.length);
+            output.write(points);
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Cannot move cached track into place: " + file.getName());
+        }
+        Log.d(TAG, "Cached " + track.size() + " points (" + points.length + " bytes) for journey: " + journey.getId());
+    }
+
+    private void evictIfNeeded() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= MAX_CACHE_BYTES) {
+            return;
+        }
+
+        // Oldest access first
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (totalBytes <= MAX_CACHE_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalBytes -= length;
+                Log.d(TAG, "Evicted cached track: " + file.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package fr.upjv.geotrack.utils;
+
+import java.util.Arrays;
+
+import fr.upjv.geotrack.models.Track;
+
+/**
+ * Compact binary encoding of a track, used for the per-hour track chunk documents.
+ *
+ * Layout: a version byte, the number of points as a varint, then for each point the
+ * zigzag varint deltas of timestamp (ms), latitude and longitude (both in 1e-6 degrees).
+ * A point recorded every few seconds takes 5-8 bytes instead of a whole Firestore document.
+ */
+public class TrackCodec {
+    private static final int VERSION = 1;
+    private static final double COORDINATE_SCALE = 1e6;
+
+    private TrackCodec() {
+    }
+
+    /**
+     * Encode a whole track
+     * @param track Track ordered by timestamp
+     * @return Encoded bytes
+     */
+    public static byte[] encode(Track track) {
+        return encode(track, 0, track.size());
+    }
+
+    /**
+     * Encode the points [from, to) of a track
+     * @param track Track ordered by timestamp
+     * @param from First point index (inclusive)
+     * @param to Last point index (exclusive)
+     * @return Encoded bytes
+     */
+    public static byte[] encode(Track track, int from, int to) {
+        int count = Math.max(0, to - from);
+        ByteWriter writer = new ByteWriter(8 + count * 8);
+        writer.writeByte(VERSION);
+        writer.writeVarint(count);
+
+        long[] timestamps = track.getTimestamps();
+        double[] latitudes = track.getLatitudes();
+        double[] longitudes = track.getLongitudes();
+        long previousTime = 0;
+        long previousLatitude = 0;
+        long previousLongitude = 0;
+        for (int i = from; i < to; i++) {
+            long latitude = Math.round(latitudes[i] * COORDINATE_SCALE);
+            long longitude = Math.round(longitudes[i] * COORDINATE_SCALE);
+            writer.writeVarint(zigzag(timestamps[i] - previousTime));
+            writer.writeVarint(zigzag(latitude - previousLatitude));
+            writer.writeVarint(zigzag(longitude - previousLongitude));
+            previousTime = timestamps[i];
+            previousLatitude = latitude;
+            previousLongitude = longitude;
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decode points and append them to a track
+     * @param bytes Bytes produced by encode
+     * @param into Track receiving the points
+     * @throws IllegalArgumentException if the bytes are not a supported encoding
+     */
+    public static void decode(byte[] bytes, Track into) {
+        if (bytes == null || bytes.length == 0) {
+            return;
+        }
+        ByteReader reader = new ByteReader(bytes);
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported track encoding version: " + version);
+        }
+
+        long count = reader.readVarint();
+        long time = 0;
+        long latitude = 0;
+        long longitude = 0;
+        for (long i = 0; i < count; i++) {
+            time += unzigzag(reader.readVarint());
+            latitude += unzigzag(reader.readVarint());
+            longitude += unzigzag(reader.readVarint());
+            into.add(time, latitude / COORDINATE_SCALE, longitude / COORDINATE_SCALE);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class ByteWriter {
+        private byte[] buffer;
+        private int length;
+
+        ByteWriter(int capacity) {
+            buffer = new byte[Math.max(capacity, 16)];
+        }
+
+        void writeByte(int value) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+
+    private static class ByteReader {
+        private final byte[] buffer;
+        private int position;
+
+        ByteReader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int readByte() {
+            if (position >= buffer.length) {
+                throw new IllegalArgumentException("Truncated track encoding");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+                if (shift > 63) {
+                    throw new IllegalArgumentException("Malformed varint in track encoding");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package fr.upjv.geotrack.utils;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Xml;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import fr.upjv.geotrack.controllers.JourneyController;
+import fr.upjv.geotrack.controllers.LocalisationController;
+import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.Track;
+
+/**
+ * Import of GPX and KML files (optionally gzipped) as a new journey.
+ *
+ * The file is read with a pull parser, so only the current page of points is in memory.
+ * Each page is written into the hourly track chunks with batched writes; a few pages are
+ * committed in parallel and parsing waits when too many commits are pending, so a file of
+ * several years is ingested at network speed without piling up in memory.
+ */
+public class TrackImporter {
+    private static final String TAG = "TrackImporter";
+    private static final int PAGE_SIZE = 5000;
+    // Pages being committed at the same time, parsing waits beyond that
+    private static final int MAX_PENDING_PAGES = 4;
+    // Spacing given to points without a time, e.g. a KML LineString
+    private static final long UNTIMED_INTERVAL_MS = 1000;
+
+    // Interface for import progress and result, called on the main thread
+    public interface ImportCallback {
+        void onProgress(int importedPoints);
+        void onComplete(Journey journey);
+        void onFailure(String error);
+    }
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final Context context;
+    private final String userUUID;
+    private final ImportCallback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LocalisationController localisationController = new LocalisationController();
+    private final Semaphore pendingPages = new Semaphore(MAX_PENDING_PAGES);
+    private final AtomicReference<Exception> writeError = new AtomicReference<>();
+    // Points whose chunks are committed, they stay in the user's track if the import fails
+    private final AtomicInteger writtenPoints = new AtomicInteger();
+
+    // Points waiting to be written, and what was already handed over
+    private Track page;
+    private long lastSubmittedBucket = Long.MIN_VALUE;
+    private int pointCount = 0;
+    private long firstTimestamp = Long.MAX_VALUE;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private long previousTimestamp = Long.MIN_VALUE;
+
+    // Metadata read from the file
+    private String name;
+    private String description;
+    private Long fileTime;
+
+    private TrackImporter(Context context, String userUUID, ImportCallback callback) {
+        this.context = context.getApplicationContext();
+        this.userUUID = userUUID;
+        this.callback = callback;
+        this.page = new Track(userUUID, null, PAGE_SIZE);
+    }
+
+    /**
+     * Import a GPX or KML file in the background
+     * @param context Any context, used to open the file
+     * @param uri The file, e.g. from ACTION_OPEN_DOCUMENT
+     * @param userUUID Owner of the new journey
+     * @param callback Receives the progress and the created journey
+     */
+    public static void importFile(Context context, Uri uri, String userUUID, ImportCallback callback) {
+        TrackImporter importer = new TrackImporter(context, userUUID, callback);
+        executor.execute(() -> importer.run(uri));
+    }
+
+    private void run(Uri uri) {
+        try (InputStream in = open(uri)) {
+            parse(in);
+            flush(true);
+            waitForPendingPages();
+            if (pointCount == 0) {
+                throw new IOException("No track points found in this file");
+            }
+
+            Journey journey = new Journey(
+                    UUID.randomUUID().toString(),
+                    userUUID,
+                    new Date(firstTimestamp),
+                    new Date(lastTimestamp),
+                    name != null && !name.trim().isEmpty() ? name.trim() : "Imported journey",
+                    description
+            );
+            JourneyController journeyController = new JourneyController();
+            Tasks.await(journeyController.createJourney(journey));
+            try {
+                Tasks.await(journeyController.refreshJourneyStats(journey));
+            } catch (Exception e) {
+                // The journey is usable without them, they are computed again on display
+                Log.w(TAG, "Could not compute stats of imported journey", e);
+            }
+
+            Log.d(TAG, "Imported " + pointCount + " points as journey " + journey.getId());
+            mainHandler.post(() -> callback.onComplete(journey));
+        } catch (Exception e) {
+            Log.e(TAG, "Error importing track", e);
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            // Imported points are merged into the chunks of the user's recorded track and
+            // cannot be told apart anymore, say so rather than pretend nothing was written
+            int written = writtenPoints.get();
+            if (written > 0) {
+                message += " (" + written + " points were already saved to your location history)";
+            }
+            String failure = message;
+            mainHandler.post(() -> callback.onFailure(failure));
+        }
+    }
+
+    private InputStream open(Uri uri) throws IOException {
+        InputStream raw = context.getContentResolver().openInputStream(uri);
+        if (raw == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        BufferedInputStream in = new BufferedInputStream(raw, 64 * 1024);
+        // Gzipped exports start with the gzip magic number
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first == 0x1f && second == 0x8b) {
+            return new BufferedInputStream(new GZIPInputStream(in, 64 * 1024), 64 * 1024);
+        }
+        return in;
+    }
+
+    // Stream the file, handing every point to addPoint
+    private void parse(InputStream in) throws IOException, XmlPullParserException, InterruptedException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(in, null);
+
+        ArrayDeque<String> path = new ArrayDeque<>();
+        ArrayDeque<Long> kmlTimes = new ArrayDeque<>();
+        String root = null;
+        Double pointLatitude = null;
+        Double pointLongitude = null;
+        Long pointTime = null;
+
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                String tag = parser.getName();
+                String parent = path.peek();
+                if (root == null) {
+                    root = tag;
+                    if (!"gpx".equals(root) && !"kml".equals(root)) {
+                        throw new IOException("Not a GPX or KML file");
+                    }
+                }
+                path.push(tag);
+
+                switch (tag) {
+                    case "trkpt":
+                    case "rtept":
+                        pointLatitude = parseCoordinate(parser.getAttributeValue(null, "lat"));
+                        pointLongitude = parseCoordinate(parser.getAttributeValue(null, "lon"));
+                        pointTime = null;
+                        break;
+                    case "time":
+                        if ("trkpt".equals(parent) || "rtept".equals(parent)) {
+                            pointTime = parseTime(readText(parser, path));
+                        } else if ("metadata".equals(parent) && fileTime == null) {
+                            fileTime = parseTime(readText(parser, path));
+                        }
+                        break;
+                    case "name":
+                        if (name == null && ("metadata".equals(parent) || "trk".equals(parent)
+                                || "rte".equals(parent) || "Document".equals(parent))) {
+                            name = readText(parser, path);
+                        }
+                        break;
+                    case "desc":
+                    case "description":
+                        if (description == null && ("metadata".equals(parent) || "trk".equals(parent)
+                                || "Document".equals(parent))) {
+                            description = readText(parser, path);
+                        }
+                        break;
+                    case "coordinates":
+                        // Track lines only, markers are single points
+                        if ("LineString".equals(parent)) {
+                            addCoordinates(readText(parser, path));
+                        }
+                        break;
+                    case "when":
+                        if ("gx:Track".equals(parent)) {
+                            kmlTimes.add(parseTimeOrZero(readText(parser, path)));
+                        } else if (fileTime == null) {
+                            fileTime = parseTime(readText(parser, path));
+                        }
+                        break;
+                    case "gx:coord":
+                        // gx:Track lists every time, then every "lon lat alt" in the same order
+                        String coord = readText(parser, path).trim();
+                        String[] values = coord.split("\\s+");
+                        // Consume the time even for a bad point so the next ones keep theirs
+                        Long time = kmlTimes.poll();
+                        Double latitude = values.length >= 2 ? parseCoordinate(values[1]) : null;
+                        Double longitude = values.length >= 2 ? parseCoordinate(values[0]) : null;
+                        if (latitude != null && longitude != null) {
+                            addPoint(time != null && time != 0 ? time : null, latitude, longitude);
+                        } else {
+                            Log.w(TAG, "Skipping invalid coordinates: " + coord);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                String tag = path.pop();
+                if ("trkpt".equals(tag) || "rtept".equals(tag)) {
+                    if (pointLatitude != null && pointLongitude != null) {
+                        addPoint(pointTime, pointLatitude, pointLongitude);
+                    } else {
+                        Log.w(TAG, "Skipping " + tag + " with invalid coordinates");
+                    }
+                } else if ("gx:Track".equals(tag)) {
+                    kmlTimes.clear();
+                }
+            }
+        }
+    }
+
+    // Text of the current element; its end tag is consumed, so it is popped from the path
+    private static String readText(XmlPullParser parser, ArrayDeque<String> path) throws IOException, XmlPullParserException {
+        String text = parser.nextText();
+        path.pop();
+        return text != null ? text : "";
+    }
+
+    // KML LineString coordinates: "lon,lat[,alt]" tuples separated by whitespace
+    private void addCoordinates(String text) throws IOException, InterruptedException {
+        for (String tuple : text.trim().split("\\s+")) {
+            String[] values = tuple.split(",");
+            if (values.length >= 2) {
+                Double latitude = parseCoordinate(values[1]);
+                Double longitude = parseCoordinate(values[0]);
+                if (latitude != null && longitude != null) {
+                    addPoint(null, latitude, longitude);
+                } else {
+                    Log.w(TAG, "Skipping invalid coordinates: " + tuple);
+                }
+            }
+        }
+    }
+
+    // A finite decimal degree value, or null if missing or unreadable
+    private static Double parseCoordinate(String text) {
+        if (text == null) {
+            return null;
+        }
+        try {
+            double value = Double.parseDouble(text.trim());
+            return Double.isNaN(value) || Double.isInfinite(value) ? null : value;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void addPoint(Long time, double latitude, double longitude) throws IOException, InterruptedException {
+        long timestamp;
+        if (time != null) {
+            timestamp = time;
+        } else if (previousTimestamp != Long.MIN_VALUE) {
+            timestamp = previousTimestamp + UNTIMED_INTERVAL_MS;
+        } else if (fileTime != null) {
+            timestamp = fileTime;
+        } else {
+            // Stamping them with the current time would mix them with the hours being recorded
+            throw new IOException("This file has no timestamps, its points cannot be placed in your history");
+        }
+        previousTimestamp = timestamp;
+
+        page.add(timestamp, latitude, longitude);
+        pointCount++;
+        firstTimestamp = Math.min(firstTimestamp, timestamp);
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        if (page.size() >= PAGE_SIZE) {
+            flush(false);
+        }
+    }
+
+    /**
+     * Hand the buffered points over to be written. Unless this is the end of the file, the
+     * points of the last hour are kept for the next page, so every chunk is written once.
+     */
+    private void flush(boolean last) throws InterruptedException {
+        if (page.isEmpty()) {
+            return;
+        }
+        page.sortByTime();
+
+        int keepFrom = page.size();
+        if (!last) {
+            long lastBucket = page.getTimestamp(page.size() - 1) / LocalisationController.CHUNK_DURATION_MS;
+            while (keepFrom > 0 && page.getTimestamp(keepFrom - 1) / LocalisationController.CHUNK_DURATION_MS == lastBucket) {
+                keepFrom--;
+            }
+            if (keepFrom == 0) {
+                // A whole page within one hour, write it anyway
+                keepFrom = page.size();
+            }
+        }
+
+        Track ready = page.subTrack(0, keepFrom);
+        Track kept = page.subTrack(keepFrom, page.size());
+        page = new Track(userUUID, null, PAGE_SIZE);
+        page.addAll(kept);
+        submit(ready);
+    }
+
+    private void submit(Track points) throws InterruptedException {
+        Exception error = writeError.get();
+        if (error != null) {
+            throw new IllegalStateException("Error writing track: " + error.getMessage(), error);
+        }
+
+        long firstBucket = points.getTimestamp(0) / LocalisationController.CHUNK_DURATION_MS;
+        if (firstBucket <= lastSubmittedBucket) {
+            // Unordered file: this page reaches back into hours already handed over,
+            // their writes must land before they are read again for merging
+            waitForPendingPages();
+        }
+        lastSubmittedBucket = Math.max(lastSubmittedBucket,
+                points.getTimestamp(points.size() - 1) / LocalisationController.CHUNK_DURATION_MS);
+
+        pendingPages.acquire();
+        int imported = pointCount - page.size();
+        Task<Void> write = localisationController.saveImportedChunks(userUUID, points);
+        write.addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                writtenPoints.addAndGet(points.size());
+            } else {
+                writeError.compareAndSet(null, task.getException());
+            }
+            pendingPages.release();
+        });
+        mainHandler.post(() -> callback.onProgress(imported));
+    }
+
+    private void waitForPendingPages() throws InterruptedException {
+        pendingPages.acquire(MAX_PENDING_PAGES);
+        pendingPages.release(MAX_PENDING_PAGES);
+        Exception error = writeError.get();
+        if (error != null) {
+            throw new IllegalStateException("Error writing track: " + error.getMessage(), error);
+        }
+    }
+
+    // ISO 8601 times, with or without an offset (UTC assumed)
+    private static Long parseTime(String text) {
+        String value = text.trim();
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeParseException ignored) {
+                Log.w(TAG, "Skipping unreadable time: " + value);
+                return null;
+            }
+        }
+    }
+
+    private static long parseTimeOrZero(String text) {
+        Long time = parseTime(text);
+        return time != null ? time : 0;
+    }
+}
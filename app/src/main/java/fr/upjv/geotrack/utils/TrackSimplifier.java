@@ -0,0 +1,324 @@
+package fr.upjv.geotrack.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.upjv.geotrack.models.Localisation;
+import fr.upjv.geotrack.models.Track;
+
+/**
+ * Trajectory simplification working on primitive latitude/longitude arrays.
+ *
+ * Both algorithms return the sorted indices of the points to keep; the first and last
+ * points are always kept. Coordinates are projected to local meters (equirectangular
+ * around the track's mean latitude), which is accurate enough at journey scale.
+ */
+public class TrackSimplifier {
+    private static final double EARTH_RADIUS_M = 6371000;
+
+    private TrackSimplifier() {
+    }
+
+    /**
+     * Douglas-Peucker simplification with a metric tolerance
+     * @param latitudes Latitudes in degrees
+     * @param longitudes Longitudes in degrees
+     * @param count Number of points to consider in the arrays
+     * @param toleranceMeters Maximum distance between the original track and the simplified one
+     * @return Sorted indices of the points to keep
+     */
+    public static int[] douglasPeucker(double[] latitudes, double[] longitudes, int count, double toleranceMeters) {
+        if (count <= 2 || toleranceMeters <= 0) {
+            return allIndices(count);
+        }
+
+        double[] xs = new double[count];
+        double[] ys = new double[count];
+        project(latitudes, longitudes, count, xs, ys);
+
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        int kept = 2;
+
+        // Explicit stack of [first, last] segments instead of recursion
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        double toleranceSquared = toleranceMeters * toleranceMeters;
+
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            double maxDistanceSquared = 0;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distanceSquared = segmentDistanceSquared(xs[i], ys[i], xs[first], ys[first], xs[last], ys[last]);
+                if (distanceSquared > maxDistanceSquared) {
+                    maxDistanceSquared = distanceSquared;
+                    farthest = i;
+                }
+            }
+
+            if (farthest != -1 && maxDistanceSquared > toleranceSquared) {
+                keep[farthest] = true;
+                kept++;
+                if (top + 4 > stack.length) {
+                    int[] grown = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, grown, 0, top);
+                    stack = grown;
+                }
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int[] indices = new int[kept];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                indices[n++] = i;
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Visvalingam-Whyatt simplification down to a target number of points.
+     * Points whose triangle with their neighbours has the smallest area are removed first.
+     * @param latitudes Latitudes in degrees
+     * @param longitudes Longitudes in degrees
+     * @param count Number of points to consider in the arrays
+     * @param targetCount Number of points to keep (at least 2)
+     * @return Sorted indices of the points to keep
+     */
+    public static int[] visvalingamWhyatt(double[] latitudes, double[] longitudes, int count, int targetCount) {
+        targetCount = Math.max(2, targetCount);
+        if (count <= targetCount) {
+            return allIndices(count);
+        }
+
+        double[] xs = new double[count];
+        double[] ys = new double[count];
+        project(latitudes, longitudes, count, xs, ys);
+
+        // Doubly linked list over the remaining points
+        int[] previous = new int[count];
+        int[] next = new int[count];
+        double[] areas = new double[count];
+        for (int i = 0; i < count; i++) {
+            previous[i] = i - 1;
+            next[i] = i + 1;
+        }
+        next[count - 1] = -1;
+
+        // Indexed min-heap of interior points keyed by area
+        int[] heap = new int[count];
+        int[] heapPosition = new int[count];
+        int heapSize = 0;
+        for (int i = 1; i < count - 1; i++) {
+            areas[i] = triangleArea(xs, ys, i - 1, i, i + 1);
+            heap[heapSize] = i;
+            heapPosition[i] = heapSize;
+            heapSize++;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapPosition, areas, heapSize, i);
+        }
+
+        boolean[] removed = new boolean[count];
+        int remaining = count;
+        double maxRemovedArea = 0;
+
+        while (remaining > targetCount && heapSize > 0) {
+            int point = heap[0];
+            heapSize--;
+            if (heapSize > 0) {
+                heap[0] = heap[heapSize];
+                heapPosition[heap[0]] = 0;
+                siftDown(heap, heapPosition, areas, heapSize, 0);
+            }
+            heapPosition[point] = -1;
+
+            // Keep areas monotonic so a neighbour never becomes cheaper than an already removed point
+            maxRemovedArea = Math.max(maxRemovedArea, areas[point]);
+            removed[point] = true;
+            remaining--;
+
+            int before = previous[point];
+            int after = next[point];
+            next[before] = after;
+            previous[after] = before;
+
+            if (previous[before] != -1) {
+                areas[before] = Math.max(maxRemovedArea, triangleArea(xs, ys, previous[before], before, after));
+                updateHeap(heap, heapPosition, areas, heapSize, before);
+            }
+            if (next[after] != -1) {
+                areas[after] = Math.max(maxRemovedArea, triangleArea(xs, ys, before, after, next[after]));
+                updateHeap(heap, heapPosition, areas, heapSize, after);
+            }
+        }
+
+        int[] indices = new int[remaining];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (!removed[i]) {
+                indices[n++] = i;
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Douglas-Peucker simplification of a track
+     * @param track Track ordered by timestamp
+     * @param toleranceMeters Maximum deviation allowed in meters
+     * @return A new track holding the kept points
+     */
+    public static Track simplify(Track track, double toleranceMeters) {
+        return track.select(douglasPeucker(track.getLatitudes(), track.getLongitudes(), track.size(), toleranceMeters));
+    }
+
+    /**
+     * Visvalingam-Whyatt simplification of a track
+     * @param track Track ordered by timestamp
+     * @param targetCount Maximum number of points to keep
+     * @return A new track holding the kept points
+     */
+    public static Track simplifyToCount(Track track, int targetCount) {
+        return track.select(visvalingamWhyatt(track.getLatitudes(), track.getLongitudes(), track.size(), targetCount));
+    }
+
+    /**
+     * Douglas-Peucker simplification of an ordered list of localisations
+     * @param localisations Localisations ordered by timestamp
+     * @param toleranceMeters Maximum deviation allowed in meters
+     * @return A new list holding the kept localisations
+     */
+    public static List<Localisation> simplify(List<Localisation> localisations, double toleranceMeters) {
+        int count = localisations.size();
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        fillCoordinates(localisations, latitudes, longitudes);
+        return select(localisations, douglasPeucker(latitudes, longitudes, count, toleranceMeters));
+    }
+
+    /**
+     * Visvalingam-Whyatt simplification of an ordered list of localisations
+     * @param localisations Localisations ordered by timestamp
+     * @param targetCount Maximum number of localisations to keep
+     * @return A new list holding the kept localisations
+     */
+    public static List<Localisation> simplifyToCount(List<Localisation> localisations, int targetCount) {
+        int count = localisations.size();
+        if (count <= targetCount) {
+            return new ArrayList<>(localisations);
+        }
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        fillCoordinates(localisations, latitudes, longitudes);
+        return select(localisations, visvalingamWhyatt(latitudes, longitudes, count, targetCount));
+    }
+
+    private static void fillCoordinates(List<Localisation> localisations, double[] latitudes, double[] longitudes) {
+        for (int i = 0; i < latitudes.length; i++) {
+            Localisation localisation = localisations.get(i);
+            latitudes[i] = localisation.getLatitude();
+            longitudes[i] = localisation.getLongitude();
+        }
+    }
+
+    private static List<Localisation> select(List<Localisation> localisations, int[] indices) {
+        List<Localisation> selected = new ArrayList<>(indices.length);
+        for (int index : indices) {
+            selected.add(localisations.get(index));
+        }
+        return selected;
+    }
+
+    private static int[] allIndices(int count) {
+        int[] indices = new int[Math.max(count, 0)];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        return indices;
+    }
+
+    private static void project(double[] latitudes, double[] longitudes, int count, double[] xs, double[] ys) {
+        double meanLatitude = 0;
+        for (int i = 0; i < count; i++) {
+            meanLatitude += latitudes[i];
+        }
+        double metersPerDegreeLat = Math.toRadians(1) * EARTH_RADIUS_M;
+        double metersPerDegreeLon = metersPerDegreeLat * Math.cos(Math.toRadians(meanLatitude / count));
+        for (int i = 0; i < count; i++) {
+            xs[i] = longitudes[i] * metersPerDegreeLon;
+            ys[i] = latitudes[i] * metersPerDegreeLat;
+        }
+    }
+
+    private static double segmentDistanceSquared(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double ex = px - (ax + t * dx);
+        double ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    private static double triangleArea(double[] xs, double[] ys, int a, int b, int c) {
+        return Math.abs((xs[b] - xs[a]) * (ys[c] - ys[a]) - (xs[c] - xs[a]) * (ys[b] - ys[a])) / 2;
+    }
+
+    private static void updateHeap(int[] heap, int[] heapPosition, double[] areas, int heapSize, int point) {
+        int position = heapPosition[point];
+        if (position < 0) {
+            return;
+        }
+        siftUp(heap, heapPosition, areas, position);
+        siftDown(heap, heapPosition, areas, heapSize, heapPosition[point]);
+    }
+
+    private static void siftUp(int[] heap, int[] heapPosition, double[] areas, int position) {
+        int point = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (areas[heap[parent]] <= areas[point]) {
+                break;
+            }
+            heap[position] = heap[parent];
+            heapPosition[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = point;
+        heapPosition[point] = position;
+    }
+
+    private static void siftDown(int[] heap, int[] heapPosition, double[] areas, int heapSize, int position) {
+        int point = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && areas[heap[child + 1]] < areas[heap[child]]) {
+                child++;
+            }
+            if (areas[heap[child]] >= areas[point]) {
+                break;
+            }
+            heap[position] = heap[child];
+            heapPosition[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = point;
+        heapPosition[point] = position;
+    }
+}
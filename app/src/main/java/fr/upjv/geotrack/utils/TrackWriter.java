@@ -0,0 +1,428 @@
+package fr.upjv.geotrack.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.zip.GZIPOutputStream;
+
+import fr.upjv.geotrack.models.Journey;
+import fr.upjv.geotrack.models.Track;
+
+/**
+ * Streaming writer of track files.
+ *
+ * The header is written by begin, points are appended page by page as they are loaded and
+ * the footer is written by finish, so only the current page is ever in memory. Output goes
+ * through a large buffer straight to the stream, no document is built in memory.
+ *
+ * Besides GPX and KML, compact formats are available for sharing long journeys: gzipped
+ * GPX, GeoJSON, Google encoded polyline and a binary format reusing the TrackCodec encoding.
+ * A format name is also the extension of its files.
+ */
+public abstract class TrackWriter implements Closeable {
+    public static final String FORMAT_GPX = "gpx";
+    public static final String FORMAT_KML = "kml";
+    public static final String FORMAT_GPX_GZIP = "gpx.gz";
+    public static final String FORMAT_GEOJSON = "geojson";
+    public static final String FORMAT_POLYLINE = "polyline";
+    public static final String FORMAT_BINARY = "gtrk";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Coordinates are written with 6 decimals (about 10 cm), the precision they are stored with
+    private static final long COORDINATE_SCALE = 1000000L;
+    // Immutable, so one instance is shared by every export thread
+    private static final DateTimeFormatter ISO_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+
+    protected final OutputStream out;
+    protected final Writer writer;
+
+    protected TrackWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.writer = new OutputStreamWriter(this.out, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create a writer for a format
+     * @param format One of the FORMAT_ constants
+     * @param out Destination, closed with the writer
+     */
+    public static TrackWriter create(String format, OutputStream out) throws IOException {
+        switch (format) {
+            case FORMAT_GPX:
+                return new GpxWriter(out);
+            case FORMAT_KML:
+                return new KmlWriter(out);
+            case FORMAT_GPX_GZIP:
+                return new GpxWriter(new GZIPOutputStream(out, BUFFER_SIZE));
+            case FORMAT_GEOJSON:
+                return new GeoJsonWriter(out);
+            case FORMAT_POLYLINE:
+                return new PolylineWriter(out);
+            case FORMAT_BINARY:
+                return new BinaryWriter(out);
+            default:
+                throw new IllegalArgumentException("Unknown export format: " + format);
+        }
+    }
+
+    /**
+     * Write the header and the journey metadata
+     */
+    public abstract void begin(Journey journey) throws IOException;
+
+    /**
+     * Write points following the ones already written
+     */
+    public abstract void append(Track points) throws IOException;
+
+    /**
+     * Write the footer and flush, the file is complete afterwards
+     */
+    public abstract void finish() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    protected static String formatTime(long timestampMs) {
+        return ISO_FORMAT.format(Instant.ofEpochMilli(timestampMs));
+    }
+
+    /**
+     * Decimal degrees in fixed-point notation, never in scientific notation (e.g. 1.0E-4),
+     * which GPX, KML and GeoJSON readers do not all accept. Trailing zeros are dropped.
+     */
+    protected static String formatCoordinate(double degrees) {
+        long scaled = Math.round(degrees * COORDINATE_SCALE);
+        StringBuilder text = new StringBuilder(12);
+        if (scaled < 0) {
+            text.append('-');
+            scaled = -scaled;
+        }
+        text.append(scaled / COORDINATE_SCALE);
+        long fraction = scaled % COORDINATE_SCALE;
+        if (fraction != 0) {
+            // Adding the scale pads the fraction with leading zeros, the extra 1 is skipped
+            String digits = Long.toString(fraction + COORDINATE_SCALE);
+            int end = digits.length();
+            while (digits.charAt(end - 1) == '0') {
+                end--;
+            }
+            text.append('.').append(digits, 1, end);
+        }
+        return text.toString();
+    }
+
+    protected static String escapeJSON(String text) {
+        if (text == null) return "";
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    protected static String escapeXML(String text) {
+        if (text == null) return "";
+        return text.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;")
+                .replace("'", "&apos;");
+    }
+
+    private static class GpxWriter extends TrackWriter {
+        GpxWriter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void begin(Journey journey) throws IOException {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<gpx version=\"1.1\" creator=\"GeoTrack\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n");
+
+            // Metadata
+            writer.write("  <metadata>\n");
+            writer.write("    <name>" + escapeXML(journey.getName()) + "</name>\n");
+            if (journey.hasDescription()) {
+                writer.write("    <desc>" + escapeXML(journey.getDescription()) + "</desc>\n");
+            }
+            writer.write("    <time>" + formatTime(journey.getStart().getTime()) + "</time>\n");
+            writer.write("  </metadata>\n");
+
+            // Track
+            writer.write("  <trk>\n");
+            writer.write("    <name>" + escapeXML(journey.getName()) + "</name>\n");
+            if (journey.hasDescription()) {
+                writer.write("    <desc>" + escapeXML(journey.getDescription()) + "</desc>\n");
+            }
+            writer.write("    <trkseg>\n");
+        }
+
+        @Override
+        public void append(Track points) throws IOException {
+            double[] latitudes = points.getLatitudes();
+            double[] longitudes = points.getLongitudes();
+            long[] timestamps = points.getTimestamps();
+            for (int i = 0; i < points.size(); i++) {
+                writer.write("      <trkpt lat=\"");
+                writer.write(formatCoordinate(latitudes[i]));
+                writer.write("\" lon=\"");
+                writer.write(formatCoordinate(longitudes[i]));
+                writer.write("\">\n        <time>");
+                writer.write(formatTime(timestamps[i]));
+                writer.write("</time>\n      </trkpt>\n");
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.write("    </trkseg>\n");
+            writer.write("  </trk>\n");
+            writer.write("</gpx>");
+            writer.flush();
+        }
+    }
+
+    private static class KmlWriter extends TrackWriter {
+        private String journeyName;
+        private boolean lineOpen = false;
+        private int pointCount = 0;
+        private long lastTimestamp;
+        private double lastLatitude;
+        private double lastLongitude;
+
+        KmlWriter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void begin(Journey journey) throws IOException {
+            journeyName = journey.getName();
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n");
+            writer.write("  <Document>\n");
+            writer.write("    <name>" + escapeXML(journey.getName()) + "</name>\n");
+            if (journey.hasDescription()) {
+                writer.write("    <description>" + escapeXML(journey.getDescription()) + "</description>\n");
+            }
+
+            // Style for the track
+            writer.write("    <Style id=\"trackStyle\">\n");
+            writer.write("      <LineStyle>\n");
+            writer.write("        <color>ff5cce6c</color>\n"); // Purple color in KML format
+            writer.write("        <width>4</width>\n");
+            writer.write("      </LineStyle>\n");
+            writer.write("    </Style>\n");
+        }
+
+        @Override
+        public void append(Track points) throws IOException {
+            if (points.isEmpty()) {
+                return;
+            }
+            if (!lineOpen) {
+                // Start marker, then the track line whose coordinates follow page by page
+                writeMarker("Journey Start", "Started at: ", points.getTimestamp(0), points.getLatitude(0), points.getLongitude(0));
+                writer.write("    <Placemark>\n");
+                writer.write("      <name>" + escapeXML(journeyName) + " Track</name>\n");
+                writer.write("      <styleUrl>#trackStyle</styleUrl>\n");
+                writer.write("      <LineString>\n");
+                writer.write("        <tessellate>1</tessellate>\n");
+                writer.write("        <coordinates>\n");
+                lineOpen = true;
+            }
+
+            double[] latitudes = points.getLatitudes();
+            double[] longitudes = points.getLongitudes();
+            for (int i = 0; i < points.size(); i++) {
+                writer.write("          ");
+                writer.write(formatCoordinate(longitudes[i]));
+                writer.write(',');
+                writer.write(formatCoordinate(latitudes[i]));
+                writer.write('\n');
+            }
+
+            int last = points.size() - 1;
+            pointCount += points.size();
+            lastTimestamp = points.getTimestamp(last);
+            lastLatitude = points.getLatitude(last);
+            lastLongitude = points.getLongitude(last);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (lineOpen) {
+                writer.write("        </coordinates>\n");
+                writer.write("      </LineString>\n");
+                writer.write("    </Placemark>\n");
+                // The end is only known once every page was written
+                if (pointCount > 1) {
+                    writeMarker("Journey End", "Ended at: ", lastTimestamp, lastLatitude, lastLongitude);
+                }
+            }
+            writer.write("  </Document>\n");
+            writer.write("</kml>");
+            writer.flush();
+        }
+
+        private void writeMarker(String name, String label, long timestamp, double latitude, double longitude) throws IOException {
+            writer.write("    <Placemark>\n");
+            writer.write("      <name>" + name + "</name>\n");
+            writer.write("      <description>" + label + formatTime(timestamp) + "</description>\n");
+            writer.write("      <Point>\n");
+            writer.write("        <coordinates>" + formatCoordinate(longitude) + "," + formatCoordinate(latitude) + "</coordinates>\n");
+            writer.write("      </Point>\n");
+            writer.write("    </Placemark>\n");
+        }
+    }
+
+    /**
+     * GeoJSON Feature with a LineString geometry, coordinates as [longitude, latitude]
+     */
+    private static class GeoJsonWriter extends TrackWriter {
+        private boolean firstPoint = true;
+
+        GeoJsonWriter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void begin(Journey journey) throws IOException {
+            writer.write("{\"type\":\"Feature\",\"properties\":{");
+            writer.write("\"name\":\"" + escapeJSON(journey.getName()) + "\"");
+            if (journey.hasDescription()) {
+                writer.write(",\"description\":\"" + escapeJSON(journey.getDescription()) + "\"");
+            }
+            writer.write(",\"start\":\"" + formatTime(journey.getStart().getTime()) + "\"");
+            writer.write(",\"creator\":\"GeoTrack\"},");
+            writer.write("\"geometry\":{\"type\":\"LineString\",\"coordinates\":[");
+        }
+
+        @Override
+        public void append(Track points) throws IOException {
+            double[] latitudes = points.getLatitudes();
+            double[] longitudes = points.getLongitudes();
+            for (int i = 0; i < points.size(); i++) {
+                if (!firstPoint) {
+                    writer.write(',');
+                }
+                firstPoint = false;
+                writer.write('[');
+                writer.write(formatCoordinate(longitudes[i]));
+                writer.write(',');
+                writer.write(formatCoordinate(latitudes[i]));
+                writer.write(']');
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.write("]}}\n");
+            writer.flush();
+        }
+    }
+
+    /**
+     * Google encoded polyline (precision 1e-5 degrees), as a single line of text.
+     * Deltas continue across pages, so the result is one polyline.
+     */
+    private static class PolylineWriter extends TrackWriter {
+        private static final double POLYLINE_SCALE = 1e5;
+        private long previousLatitude = 0;
+        private long previousLongitude = 0;
+
+        PolylineWriter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void begin(Journey journey) {
+            // The format has no room for metadata
+        }
+
+        @Override
+        public void append(Track points) throws IOException {
+            double[] latitudes = points.getLatitudes();
+            double[] longitudes = points.getLongitudes();
+            for (int i = 0; i < points.size(); i++) {
+                long latitude = Math.round(latitudes[i] * POLYLINE_SCALE);
+                long longitude = Math.round(longitudes[i] * POLYLINE_SCALE);
+                writeValue(latitude - previousLatitude);
+                writeValue(longitude - previousLongitude);
+                previousLatitude = latitude;
+                previousLongitude = longitude;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.write('\n');
+            writer.flush();
+        }
+
+        private void writeValue(long delta) throws IOException {
+            long value = delta < 0 ? ~(delta << 1) : delta << 1;
+            while (value >= 0x20) {
+                writer.write((int) ((0x20 | (value & 0x1f)) + 63));
+                value >>= 5;
+            }
+            writer.write((int) (value + 63));
+        }
+    }
+
+    /**
+     * Binary track file. Layout: the magic "GTRK", a version byte, the journey name
+     * (modified UTF-8, length-prefixed), its start time in ms, then one block per page
+     * (int length followed by a TrackCodec encoding), and a zero length to end the file.
+     */
+    private static class BinaryWriter extends TrackWriter {
+        private static final int VERSION = 1;
+        private final DataOutputStream data;
+
+        BinaryWriter(OutputStream out) {
+            super(out);
+            this.data = new DataOutputStream(this.out);
+        }
+
+        @Override
+        public void begin(Journey journey) throws IOException {
+            data.writeBytes("GTRK");
+            data.writeByte(VERSION);
+            data.writeUTF(journey.getName() != null ? journey.getName() : "");
+            data.writeLong(journey.getStart().getTime());
+        }
+
+        @Override
+        public void append(Track points) throws IOException {
+            if (points.isEmpty()) {
+                return;
+            }
+            byte[] block = TrackCodec.encode(points);
+            data.writeInt(block.length);
+            data.write(block);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            data.writeInt(0);
+            data.flush();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package fr.upjv.geotrack.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.upjv.geotrack.models.User;
+
+/**
+ * Process-wide cache of user profiles shared by the feed, profiles, search and map.
+ *
+ * Profiles are kept in a PersistentLruCache, in memory and in SharedPreferences, so a cold
+ * start shows names immediately and refreshes them in the background. Requests made while
+ * a profile is being fetched share the same task, and all misses of a frame are loaded
+ * together with whereIn queries of up to 30 ids. Must be used from the main thread.
+ */
+public class UserCache {
+    private static final String TAG = "UserCache";
+    private static final String PREFS_NAME = "GeoTrackUserCache";
+    private static final String COLLECTION_NAME = "users";
+    private static final int WHERE_IN_LIMIT = 30;
+    private static final int MAX_MEMORY_ENTRIES = 200;
+    private static final int MAX_DISK_ENTRIES = 500;
+    // Profiles older than this are refreshed from Firestore
+    private static final long TTL_MS = 10 * 60 * 1000;
+    // Profiles older than this are not shown at all
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static UserCache instance;
+
+    private static final PersistentLruCache.Codec<User> CODEC = new PersistentLruCache.Codec<User>() {
+        @Override
+        public void write(User user, JSONObject object) throws JSONException {
+            // JSONObject drops null values, optString falls back to null when reading
+            object.put("email", user.getEmail());
+            object.put("displayName", user.getDisplayName());
+            object.put("profilePicturePath", user.getProfilePicturePath());
+            object.put("profilePictureUrl", user.getProfilePictureUrl());
+        }
+
+        @Override
+        public User read(String uid, JSONObject object) {
+            User user = new User();
+            user.setUid(uid);
+            user.setEmail(object.optString("email", null));
+            user.setDisplayName(object.optString("displayName", null));
+            user.setProfilePicturePath(object.optString("profilePicturePath", null));
+            user.setProfilePictureUrl(object.optString("profilePictureUrl", null));
+            return user;
+        }
+    };
+
+    private final FirebaseFirestore DBFireStore;
+    private final PersistentLruCache<User> cache;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, TaskCompletionSource<User>> inFlight = new HashMap<>();
+    private final List<String> queued = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    private UserCache(Context context) {
+        this.DBFireStore = FirebaseFirestore.getInstance();
+        this.cache = new PersistentLruCache<>(context, TAG, PREFS_NAME, MAX_MEMORY_ENTRIES, MAX_DISK_ENTRIES, MAX_AGE_MS, CODEC);
+    }
+
+    public static synchronized UserCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new UserCache(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Get a user profile
+     * @param uid The user's id
+     * @return Task<User> containing the profile, or null if the user does not exist
+     */
+    public Task<User> get(String uid) {
+        PersistentLruCache.Entry<User> entry = cache.get(uid);
+        if (entry != null) {
+            if (System.currentTimeMillis() - entry.storedAt > TTL_MS) {
+                // Show the known profile now, refresh it for the next request
+                fetch(uid);
+            }
+            return Tasks.forResult(entry.value);
+        }
+        return fetch(uid);
+    }
+
+    /**
+     * Get several user profiles, loading the missing ones together
+     * @param uids The users' ids
+     * @return Task<List<User>> containing the profiles found, in the order of the ids
+     */
+    public Task<List<User>> getAll(List<String> uids) {
+        List<Task<User>> tasks = new ArrayList<>();
+        for (String uid : uids) {
+            tasks.add(get(uid));
+        }
+        return Tasks.whenAllComplete(tasks).continueWith(task -> {
+            List<User> users = new ArrayList<>();
+            for (Task<User> userTask : tasks) {
+                if (userTask.isSuccessful() && userTask.getResult() != null) {
+                    users.add(userTask.getResult());
+                }
+            }
+            return users;
+        });
+    }
+
+    /**
+     * Store a profile read or written elsewhere, e.g. by a profile screen
+     * @param user The up to date profile
+     */
+    public void put(User user) {
+        putAll(Collections.singletonList(user));
+    }
+
+    /**
+     * Store profiles read elsewhere, e.g. search results
+     * @param users The up to date profiles
+     */
+    public void putAll(Collection<User> users) {
+        Map<String, User> byId = new HashMap<>();
+        for (User user : users) {
+            if (user != null && user.getUid() != null) {
+                byId.put(user.getUid(), user);
+            }
+        }
+        cache.putAll(byId);
+    }
+
+    /**
+     * Forget a profile after it was modified, so the next request reads it again
+     * @param uid The user's id
+     */
+    public void invalidate(String uid) {
+        cache.remove(uid);
+    }
+
+    /**
+     * Parse a user document
+     * @param document Document of the users collection
+     * @return The profile
+     */
+    public static User parseUser(DocumentSnapshot document) {
+        User user = new User();
+        String uid = document.getString("uid");
+        user.setUid(uid != null ? uid : document.getId());
+        user.setEmail(document.getString("email"));
+        user.setDisplayName(document.getString("displayName"));
+        user.setProfilePicturePath(document.getString("profilePicturePath"));
+        user.setProfilePictureUrl(document.getString("profilePictureUrl"));
+        return user;
+    }
+
+    // Join the running fetch of a user, or queue it for the next batch
+    private Task<User> fetch(String uid) {
+        TaskCompletionSource<User> pending = inFlight.get(uid);
+        if (pending != null) {
+            return pending.getTask();
+        }
+
+        pending = new TaskCompletionSource<>();
+        inFlight.put(uid, pending);
+        queued.add(uid);
+        if (!flushScheduled) {
+            // Wait for the rest of the frame so every bind of a list shares the same queries
+            flushScheduled = true;
+            mainHandler.post(this::flush);
+        }
+        return pending.getTask();
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        List<String> uids = new ArrayList<>(queued);
+        queued.clear();
+
+        for (int i = 0; i < uids.size(); i += WHERE_IN_LIMIT) {
+            List<String> batch = uids.subList(i, Math.min(i + WHERE_IN_LIMIT, uids.size()));
+            fetchBatch(new ArrayList<>(batch));
+        }
+        Log.d(TAG, "Fetching " + uids.size() + " user(s) in " + ((uids.size() + WHERE_IN_LIMIT - 1) / WHERE_IN_LIMIT) + " query(ies)");
+    }
+
+    private void fetchBatch(List<String> uids) {
+        DBFireStore.collection(COLLECTION_NAME)
+                .whereIn(FieldPath.documentId(), uids)
+                .get()
+                .addOnSuccessListener(querySnapshot -> {
+                    Map<String, User> fetched = new HashMap<>();
+                    for (DocumentSnapshot document : querySnapshot.getDocuments()) {
+                        fetched.put(document.getId(), parseUser(document));
+                    }
+                    cache.putAll(fetched);
+                    for (Map.Entry<String, User> user : fetched.entrySet()) {
+                        complete(user.getKey(), user.getValue());
+                    }
+
+                    // Ids without a document
+                    for (String uid : uids) {
+                        complete(uid, null);
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error fetching users: " + e.getMessage());
+                    for (String uid : uids) {
+                        TaskCompletionSource<User> pending = inFlight.remove(uid);
+                        if (pending != null) {
+                            pending.setException(e);
+                        }
+                    }
+                });
+    }
+
+    private void complete(String uid, User user) {
+        TaskCompletionSource<User> pending = inFlight.remove(uid);
+        if (pending != null) {
+            pending.setResult(user);
+        }
+    }
+}
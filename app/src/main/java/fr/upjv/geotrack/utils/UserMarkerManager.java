@@ -0,0 +1,289 @@
+package fr.upjv.geotrack.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps one map marker per user and reconciles it with the latest known state.
+ *
+ * Updates are queued and applied once per frame, so several snapshots arriving together
+ * cost a single pass. Existing markers are mutated in place (only the attributes that
+ * changed), and position changes are interpolated over a short animation driven by the
+ * same frame callback for all markers. Must be used from the main thread.
+ */
+public class UserMarkerManager {
+    private static final String TAG = "UserMarkerManager";
+    private static final long ANIMATION_DURATION_MS = 600;
+
+    // Wanted state of a user's marker
+    private static class MarkerState {
+        LatLng position;
+        String title;
+        String snippet;
+        float hue;
+    }
+
+    // Running position animation of a marker
+    private static class MarkerAnimation {
+        LatLng from;
+        LatLng to;
+        long startTime;
+    }
+
+    private final GoogleMap googleMap;
+    private final Map<String, Marker> markers = new HashMap<>();
+    private final Map<String, MarkerState> states = new HashMap<>();
+    private final Map<String, MarkerState> pendingUpdates = new LinkedHashMap<>();
+    private final List<String> pendingRemovals = new ArrayList<>();
+    private final Map<String, MarkerAnimation> animations = new HashMap<>();
+    private final Map<Float, BitmapDescriptor> iconCache = new HashMap<>();
+    private Set<String> visibleUserIds = null; // null when every marker is shown
+    private boolean frameScheduled = false;
+
+    private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> {
+        frameScheduled = false;
+        applyPendingChanges();
+        stepAnimations();
+        if (!animations.isEmpty()) {
+            scheduleFrame();
+        }
+    };
+
+    public UserMarkerManager(GoogleMap googleMap) {
+        this.googleMap = googleMap;
+    }
+
+    /**
+     * Queue the new state of a user's marker. Only the last update before the next frame is applied.
+     * @param userId The user the marker belongs to
+     * @param position New position
+     * @param title Marker title
+     * @param snippet Marker snippet
+     * @param hue Hue of the default marker icon
+     */
+    public void setUserMarker(String userId, LatLng position, String title, String snippet, float hue) {
+        MarkerState state = new MarkerState();
+        state.position = position;
+        state.title = title;
+        state.snippet = snippet;
+        state.hue = hue;
+        pendingRemovals.remove(userId);
+        pendingUpdates.put(userId, state);
+        scheduleFrame();
+    }
+
+    /**
+     * Queue the removal of a user's marker
+     * @param userId The user whose marker is removed
+     */
+    public void removeUserMarker(String userId) {
+        pendingUpdates.remove(userId);
+        if (!pendingRemovals.contains(userId)) {
+            pendingRemovals.add(userId);
+        }
+        scheduleFrame();
+    }
+
+    /**
+     * Show only the markers of the given users, e.g. those not grouped in a cluster
+     * @param userIds Users whose markers are shown, or null to show every marker
+     */
+    public void setVisibleUsers(Set<String> userIds) {
+        visibleUserIds = userIds;
+        for (Map.Entry<String, Marker> entry : markers.entrySet()) {
+            boolean visible = isVisible(entry.getKey());
+            if (entry.getValue().isVisible() != visible) {
+                entry.getValue().setVisible(visible);
+            }
+        }
+    }
+
+    private boolean isVisible(String userId) {
+        return visibleUserIds == null || visibleUserIds.contains(userId);
+    }
+
+    /**
+     * Remove every marker immediately and cancel pending work
+     */
+    public void clear() {
+        for (Marker marker : markers.values()) {
+            marker.remove();
+        }
+        markers.clear();
+        states.clear();
+        pendingUpdates.clear();
+        pendingRemovals.clear();
+        animations.clear();
+        if (frameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+            frameScheduled = false;
+        }
+    }
+
+    /**
+     * Get the user a marker belongs to
+     * @param marker A marker created by this manager
+     * @return The user id, or null for other markers
+     */
+    public String getUserId(Marker marker) {
+        Object tag = marker.getTag();
+        return tag instanceof String && markers.containsKey(tag) ? (String) tag : null;
+    }
+
+    /**
+     * Get the final position of every user, ignoring running animations
+     * @return Map of user id to target position
+     */
+    public Map<String, LatLng> getTargetPositions() {
+        Map<String, LatLng> positions = new HashMap<>();
+        for (Map.Entry<String, MarkerState> entry : states.entrySet()) {
+            positions.put(entry.getKey(), entry.getValue().position);
+        }
+        for (Map.Entry<String, MarkerState> entry : pendingUpdates.entrySet()) {
+            positions.put(entry.getKey(), entry.getValue().position);
+        }
+        for (String userId : pendingRemovals) {
+            positions.remove(userId);
+        }
+        return positions;
+    }
+
+    public boolean isEmpty() {
+        return getTargetPositions().isEmpty();
+    }
+
+    private void scheduleFrame() {
+        if (!frameScheduled) {
+            frameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    }
+
+    private void applyPendingChanges() {
+        for (String userId : pendingRemovals) {
+            Marker marker = markers.remove(userId);
+            if (marker != null) {
+                marker.remove();
+            }
+            states.remove(userId);
+            animations.remove(userId);
+        }
+        pendingRemovals.clear();
+
+        for (Map.Entry<String, MarkerState> entry : pendingUpdates.entrySet()) {
+            applyState(entry.getKey(), entry.getValue());
+        }
+        pendingUpdates.clear();
+    }
+
+    private void applyState(String userId, MarkerState state) {
+        Marker marker = markers.get(userId);
+        MarkerState current = states.get(userId);
+
+        if (marker == null) {
+            marker = googleMap.addMarker(new MarkerOptions()
+                    .position(state.position)
+                    .title(state.title)
+                    .snippet(state.snippet)
+                    .icon(iconFor(state.hue))
+                    .visible(isVisible(userId)));
+            if (marker == null) {
+                return;
+            }
+            marker.setTag(userId);
+            markers.put(userId, marker);
+            states.put(userId, state);
+            Log.d(TAG, "Created marker for user " + userId);
+            return;
+        }
+
+        // Mutate only what changed, the marker and its GL objects are kept
+        if (current == null || !state.position.equals(current.position)) {
+            MarkerAnimation animation = new MarkerAnimation();
+            animation.from = marker.getPosition();
+            animation.to = state.position;
+            animation.startTime = SystemClock.uptimeMillis();
+            animations.put(userId, animation);
+        }
+        if (current == null || !equals(state.title, current.title)) {
+            marker.setTitle(state.title);
+        }
+        if (current == null || !equals(state.snippet, current.snippet)) {
+            marker.setSnippet(state.snippet);
+            if (marker.isInfoWindowShown()) {
+                marker.showInfoWindow();
+            }
+        }
+        if (current == null || state.hue != current.hue) {
+            marker.setIcon(iconFor(state.hue));
+        }
+        states.put(userId, state);
+    }
+
+    private void stepAnimations() {
+        long now = SystemClock.uptimeMillis();
+        Iterator<Map.Entry<String, MarkerAnimation>> iterator = animations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, MarkerAnimation> entry = iterator.next();
+            Marker marker = markers.get(entry.getKey());
+            MarkerAnimation animation = entry.getValue();
+            if (marker == null) {
+                iterator.remove();
+                continue;
+            }
+
+            float progress = Math.min(1f, (now - animation.startTime) / (float) ANIMATION_DURATION_MS);
+            // Ease out: fast start, soft landing
+            float eased = 1 - (1 - progress) * (1 - progress);
+            marker.setPosition(interpolate(animation.from, animation.to, eased));
+            if (progress >= 1f) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private BitmapDescriptor iconFor(float hue) {
+        BitmapDescriptor icon = iconCache.get(hue);
+        if (icon == null) {
+            icon = BitmapDescriptorFactory.defaultMarker(hue);
+            iconCache.put(hue, icon);
+        }
+        return icon;
+    }
+
+    private static LatLng interpolate(LatLng from, LatLng to, float fraction) {
+        double latitude = from.latitude + (to.latitude - from.latitude) * fraction;
+        double longitudeDelta = to.longitude - from.longitude;
+        // Take the short way around the antimeridian
+        if (Math.abs(longitudeDelta) > 180) {
+            longitudeDelta -= Math.signum(longitudeDelta) * 360;
+        }
+        double longitude = from.longitude + longitudeDelta * fraction;
+        if (longitude > 180) {
+            longitude -= 360;
+        } else if (longitude < -180) {
+            longitude += 360;
+        }
+        return new LatLng(latitude, longitude);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,122 @@
+package fr.upjv.geotrack.models;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class JourneyStatsTest {
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * 6371000;
+    private static final long START = 1700000000000L;
+
+    // Northward at a constant speed, one fix per second
+    private static Track steadyTrack(int count, double speedMps) {
+        Track track = new Track("user", "journey");
+        for (int i = 0; i < count; i++) {
+            track.add(START + i * 1000L, 49.0 + i * speedMps / METERS_PER_DEGREE, 2.0);
+        }
+        return track;
+    }
+
+    @Test
+    public void addTrack_measuresDistanceAndSpeed() {
+        JourneyStats stats = new JourneyStats();
+        stats.addTrack(steadyTrack(101, 10));
+
+        assertEquals(101, stats.getPointCount());
+        assertEquals(1000, stats.getDistanceMeters(), 1);
+        assertEquals(100000, stats.getMovingTimeMs());
+        assertEquals(10, stats.getMaxSpeedMps(), 0.01);
+        assertEquals(10, stats.averageSpeedMps(), 0.01);
+    }
+
+    @Test
+    public void addPoint_ignoresJitterAndJumps() {
+        JourneyStats stats = new JourneyStats();
+        stats.addPoint(START, 49.0, 2.0);
+        // 0.1 m in 1 s: standing still
+        stats.addPoint(START + 1000, 49.0 + 0.1 / METERS_PER_DEGREE, 2.0);
+        // 10 km in 1 s: a bad fix
+        stats.addPoint(START + 2000, 49.0 + 10000 / METERS_PER_DEGREE, 2.0);
+
+        assertEquals(3, stats.getPointCount());
+        assertEquals(0, stats.getDistanceMeters(), 0);
+        assertEquals(0, stats.getMovingTimeMs());
+        assertEquals(0, stats.averageSpeedMps(), 0);
+    }
+
+    @Test
+    public void addPoint_ignoresOlderPoints() {
+        JourneyStats stats = new JourneyStats();
+        stats.addPoint(START + 1000, 49.0, 2.0);
+        stats.addPoint(START, 50.0, 3.0);
+        stats.addPoint(START + 1000, 50.0, 3.0);
+
+        assertEquals(1, stats.getPointCount());
+        assertEquals(49.0, stats.getMaxLatitude(), 0);
+        assertEquals(START + 1000, stats.getLastTimestamp());
+    }
+
+    @Test
+    public void addPoint_tracksBounds() {
+        JourneyStats stats = new JourneyStats();
+        stats.addPoint(START, 49.0, 2.0);
+        stats.addPoint(START + 60000, 49.01, 1.99);
+        stats.addPoint(START + 120000, 48.99, 2.02);
+
+        assertEquals(48.99, stats.getMinLatitude(), 0);
+        assertEquals(49.01, stats.getMaxLatitude(), 0);
+        assertEquals(1.99, stats.getMinLongitude(), 0);
+        assertEquals(2.02, stats.getMaxLongitude(), 0);
+    }
+
+    @Test
+    public void addTrack_resumesFromPreviousStats() {
+        Track track = steadyTrack(200, 5);
+        JourneyStats whole = new JourneyStats();
+        whole.addTrack(track);
+
+        JourneyStats resumed = new JourneyStats();
+        resumed.addTrack(track.subTrack(0, 120));
+        resumed = JourneyStats.fromJson(resumed.toJson());
+        resumed.addTrack(track.subTrack(120, 200));
+
+        assertEquals(whole.getPointCount(), resumed.getPointCount());
+        assertEquals(whole.getDistanceMeters(), resumed.getDistanceMeters(), 1e-6);
+        assertEquals(whole.getMovingTimeMs(), resumed.getMovingTimeMs());
+        assertEquals(whole.getMaxSpeedMps(), resumed.getMaxSpeedMps(), 1e-9);
+    }
+
+    @Test
+    public void fromJson_roundTrips() {
+        JourneyStats stats = new JourneyStats();
+        stats.addTrack(steadyTrack(50, 3));
+        stats.setComputedUntil(START + 3600000);
+
+        JourneyStats copy = JourneyStats.fromJson(stats.toJson());
+        assertEquals(stats.getPointCount(), copy.getPointCount());
+        assertEquals(stats.getDistanceMeters(), copy.getDistanceMeters(), 0);
+        assertEquals(stats.getLastTimestamp(), copy.getLastTimestamp());
+        assertEquals(stats.getLastLatitude(), copy.getLastLatitude(), 0);
+        assertEquals(stats.getComputedUntil(), copy.getComputedUntil());
+    }
+
+    @Test
+    public void fromJson_withoutStats() {
+        assertNull(JourneyStats.fromJson(null));
+        assertNull(JourneyStats.fromJson("not a map"));
+    }
+
+    @Test
+    public void isStale_untilJourneyHasSettled() {
+        Journey journey = new Journey("journey", "user", new Date(START), new Date(START + 3600000), "Test", "");
+        JourneyStats stats = new JourneyStats();
+
+        stats.setComputedUntil(START + 3600000);
+        assertTrue(stats.isStale(journey));
+
+        stats.setComputedUntil(START + 3600000 + 24 * 3600000L);
+        assertFalse(stats.isStale(journey));
+    }
+}
@@ -0,0 +1,106 @@
+package fr.upjv.geotrack.models;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrackTest {
+    private static Track track(long... timestamps) {
+        Track track = new Track("user", "journey");
+        for (long timestamp : timestamps) {
+            track.add(timestamp, timestamp / 1000.0, 2.0);
+        }
+        return track;
+    }
+
+    private static void assertTimestamps(Track track, long... expected) {
+        assertEquals(expected.length, track.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], track.getTimestamp(i));
+        }
+    }
+
+    @Test
+    public void add_growsPastInitialCapacity() {
+        Track track = new Track("user", "journey", 1);
+        for (int i = 0; i < 100; i++) {
+            track.add(i, 49, 2);
+        }
+        assertEquals(100, track.size());
+        assertEquals(99, track.getTimestamp(99));
+    }
+
+    @Test
+    public void merge_interleavesByTimestamp() {
+        Track merged = Track.merge(track(1000, 3000, 5000), track(2000, 4000, 6000));
+        assertTimestamps(merged, 1000, 2000, 3000, 4000, 5000, 6000);
+    }
+
+    @Test
+    public void merge_prefersNewerPointOnSameTimestamp() {
+        Track older = new Track("user", "journey");
+        older.add(1000, 10, 20);
+        older.add(2000, 11, 21);
+        Track newer = new Track("user", "journey");
+        newer.add(2000, 50, 60);
+
+        Track merged = Track.merge(older, newer);
+        assertTimestamps(merged, 1000, 2000);
+        assertEquals(50, merged.getLatitude(1), 0);
+        assertEquals(60, merged.getLongitude(1), 0);
+    }
+
+    @Test
+    public void merge_withEmptyTrack() {
+        assertTimestamps(Track.merge(new Track("user", "journey"), track(1000, 2000)), 1000, 2000);
+        assertTimestamps(Track.merge(track(1000, 2000), new Track("user", "journey")), 1000, 2000);
+    }
+
+    @Test
+    public void sortByTime_sortsAndKeepsCoordinatesTogether() {
+        Track track = track(5000, 1000, 4000, 2000, 3000);
+        assertFalse(track.isSortedByTime());
+
+        track.sortByTime();
+        assertTrue(track.isSortedByTime());
+        assertTimestamps(track, 1000, 2000, 3000, 4000, 5000);
+        for (int i = 0; i < track.size(); i++) {
+            assertEquals(track.getTimestamp(i) / 1000.0, track.getLatitude(i), 0);
+        }
+    }
+
+    @Test
+    public void sortByTime_isStable() {
+        Track track = new Track("user", "journey");
+        track.add(2000, 1, 0);
+        track.add(1000, 2, 0);
+        track.add(2000, 3, 0);
+        track.add(1000, 4, 0);
+
+        track.sortByTime();
+        assertTimestamps(track, 1000, 1000, 2000, 2000);
+        assertEquals(2, track.getLatitude(0), 0);
+        assertEquals(4, track.getLatitude(1), 0);
+        assertEquals(1, track.getLatitude(2), 0);
+        assertEquals(3, track.getLatitude(3), 0);
+    }
+
+    @Test
+    public void select_keepsChosenPoints() {
+        Track selected = track(1000, 2000, 3000, 4000).select(new int[]{0, 2, 3});
+        assertTimestamps(selected, 1000, 3000, 4000);
+        assertEquals("journey", selected.getJourneyId());
+    }
+
+    @Test
+    public void subTrack_copiesRange() {
+        Track sub = track(1000, 2000, 3000, 4000).subTrack(1, 3);
+        assertTimestamps(sub, 2000, 3000);
+        assertEquals("journey", sub.getJourneyId());
+    }
+
+    @Test
+    public void getBounds_ofEmptyTrackIsNull() {
+        assertNull(new Track("user", "journey").getBounds());
+    }
+}
@@ -0,0 +1,97 @@
+package fr.upjv.geotrack.services;
+
+import org.junit.Test;
+
+import fr.upjv.geotrack.services.AdaptiveSamplingScheduler.MotionState;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveSamplingSchedulerTest {
+    private static final long BASE_INTERVAL_MS = 60 * 1000;
+    // About 11 m between two points along a meridian
+    private static final double STEP_DEGREES = 1e-4;
+
+    // Feed fixes 10 s apart moving north at the given speed, return the time of the last one
+    private static long drive(AdaptiveSamplingScheduler scheduler, int count, double speedMps) {
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            time = i * 10000L;
+            scheduler.onFix(time, 49.0 + i * STEP_DEGREES, 2.0, speedMps, 0);
+        }
+        return time;
+    }
+
+    @Test
+    public void slowFixes_enterStationary() {
+        AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(BASE_INTERVAL_MS);
+        scheduler.onFix(0, 49.0, 2.0, 0, Double.NaN);
+        scheduler.onFix(1000, 49.0, 2.0, 0, Double.NaN);
+        assertEquals(MotionState.SLOW, scheduler.getState());
+
+        scheduler.onFix(2000, 49.0, 2.0, 0, Double.NaN);
+        assertEquals(MotionState.STATIONARY, scheduler.getState());
+    }
+
+    @Test
+    public void fastFixes_raiseTheRate() {
+        AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(BASE_INTERVAL_MS);
+        drive(scheduler, 5, 20);
+        assertEquals(MotionState.FAST, scheduler.getState());
+        assertEquals(BASE_INTERVAL_MS / 2, scheduler.getRecommendedIntervalMs());
+    }
+
+    @Test
+    public void noFix_entersStationaryAfterTimeout() {
+        AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(BASE_INTERVAL_MS);
+        long lastFix = drive(scheduler, 5, 20);
+        long timeout = scheduler.getNoFixTimeoutMs();
+        assertEquals(3 * BASE_INTERVAL_MS / 2, timeout);
+
+        assertFalse(scheduler.onNoFix(lastFix + timeout - 1));
+        assertEquals(MotionState.FAST, scheduler.getState());
+
+        assertTrue(scheduler.onNoFix(lastFix + timeout));
+        assertEquals(MotionState.STATIONARY, scheduler.getState());
+        assertTrue(scheduler.isLowPowerRecommended());
+        assertFalse(scheduler.onNoFix(lastFix + 2 * timeout));
+    }
+
+    @Test
+    public void noFix_waitsForTheFirstFix() {
+        AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(BASE_INTERVAL_MS);
+        assertFalse(scheduler.onNoFix(Long.MAX_VALUE));
+        assertEquals(MotionState.SLOW, scheduler.getState());
+    }
+
+    @Test
+    public void noFix_ignoredWhenDisabled() {
+        AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(BASE_INTERVAL_MS);
+        long lastFix = drive(scheduler, 5, 20);
+        scheduler.setEnabled(false);
+        assertFalse(scheduler.onNoFix(lastFix + 100 * BASE_INTERVAL_MS));
+        assertFalse(scheduler.isLowPowerRecommended());
+    }
+
+    @Test
+    public void movingAgain_leavesStationary() {
+        AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(BASE_INTERVAL_MS);
+        long lastFix = drive(scheduler, 5, 20);
+        scheduler.onNoFix(lastFix + scheduler.getNoFixTimeoutMs());
+
+        scheduler.onFix(lastFix + scheduler.getNoFixTimeoutMs() + 1000, 49.01, 2.0, 20, 0);
+        assertNotEquals(MotionState.STATIONARY, scheduler.getState());
+        assertFalse(scheduler.isLowPowerRecommended());
+    }
+
+    @Test
+    public void stationaryInterval_isLongerThanBase() {
+        AdaptiveSamplingScheduler scheduler = new AdaptiveSamplingScheduler(30 * 60 * 1000);
+        for (int i = 0; i < 3; i++) {
+            scheduler.onFix(i * 1000L, 49.0, 2.0, 0, Double.NaN);
+        }
+        assertEquals(MotionState.STATIONARY, scheduler.getState());
+        assertTrue(scheduler.getRecommendedIntervalMs() > scheduler.getBaseIntervalMs());
+        // Moving again is still picked up at the base rate through the distance filter
+        assertEquals(scheduler.getBaseIntervalMs(), scheduler.getRecommendedMinUpdateIntervalMs());
+    }
+}
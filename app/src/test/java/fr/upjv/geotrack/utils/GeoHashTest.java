@@ -0,0 +1,98 @@
+package fr.upjv.geotrack.utils;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GeoHashTest {
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * 6371000;
+
+    private static boolean covered(List<String[]> bounds, String hash) {
+        for (String[] range : bounds) {
+            if (hash.compareTo(range[0]) >= 0 && hash.compareTo(range[1]) <= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Every position within the radius must fall in one of the ranges
+    private static void assertCoversCircle(double latitude, double longitude, double radiusMeters) {
+        List<String[]> bounds = GeoHash.queryBounds(latitude, longitude, radiusMeters);
+        assertTrue(bounds.size() >= 1 && bounds.size() <= 4);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            double bearing = random.nextDouble() * 2 * Math.PI;
+            double distance = radiusMeters * Math.sqrt(random.nextDouble());
+            double pointLatitude = latitude + distance * Math.cos(bearing) / METERS_PER_DEGREE;
+            double pointLongitude = longitude + distance * Math.sin(bearing)
+                    / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+            if (pointLongitude > 180) {
+                pointLongitude -= 360;
+            } else if (pointLongitude < -180) {
+                pointLongitude += 360;
+            }
+            if (GeoHash.distanceMeters(latitude, longitude, pointLatitude, pointLongitude) > radiusMeters) {
+                continue;
+            }
+            String hash = GeoHash.encode(pointLatitude, pointLongitude);
+            assertTrue("Not covered: " + pointLatitude + "," + pointLongitude, covered(bounds, hash));
+        }
+    }
+
+    @Test
+    public void encode_knownValue() {
+        assertEquals("u4pruydqqv", GeoHash.encode(57.64911, 10.40744));
+        assertEquals("u4pru", GeoHash.encode(57.64911, 10.40744, 5));
+    }
+
+    @Test
+    public void encode_prefixIsContainingCell() {
+        String hash = GeoHash.encode(49.8941, 2.2957);
+        for (int precision = 1; precision < GeoHash.DEFAULT_PRECISION; precision++) {
+            assertTrue(hash.startsWith(GeoHash.encode(49.8941, 2.2957, precision)));
+        }
+    }
+
+    @Test
+    public void queryBounds_coversCircle() {
+        assertCoversCircle(49.8941, 2.2957, 1000);
+        assertCoversCircle(49.8941, 2.2957, 50000);
+        assertCoversCircle(-33.8688, 151.2093, 250);
+    }
+
+    @Test
+    public void queryBounds_coversCircleAcrossEquatorAndPrimeMeridian() {
+        assertCoversCircle(0.0001, -0.0001, 5000);
+    }
+
+    @Test
+    public void queryBounds_coversCircleAcrossAntimeridian() {
+        assertCoversCircle(-16.5, 179.999, 20000);
+        assertCoversCircle(65.0, -179.99, 10000);
+    }
+
+    @Test
+    public void queryBounds_coversCircleNearPole() {
+        assertCoversCircle(89.5, 45, 20000);
+    }
+
+    @Test
+    public void queryBounds_excludesFarPositions() {
+        List<String[]> bounds = GeoHash.queryBounds(49.8941, 2.2957, 1000);
+        assertFalse(covered(bounds, GeoHash.encode(48.8566, 2.3522)));
+        assertFalse(covered(bounds, GeoHash.encode(-49.8941, 2.2957)));
+    }
+
+    @Test
+    public void distanceMeters_knownDistance() {
+        // Paris - Amiens, about 115 km
+        double distance = GeoHash.distanceMeters(48.8566, 2.3522, 49.8941, 2.2957);
+        assertEquals(115500, distance, 1500);
+        assertEquals(0, GeoHash.distanceMeters(49, 2, 49, 2), 0);
+    }
+}
@@ -0,0 +1,106 @@
+package fr.upjv.geotrack.utils;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MarkerClustererTest {
+    private static final double CELL_SIZE_PX = 80;
+
+    @Test
+    public void cluster_groupsNearbyUsers() {
+        Map<String, LatLng> positions = new HashMap<>();
+        positions.put("a", new LatLng(49.8941, 2.2957));
+        positions.put("b", new LatLng(49.8942, 2.2958));
+        positions.put("paris", new LatLng(48.8566, 2.3522));
+
+        MarkerClusterer.Result result = MarkerClusterer.cluster(positions, 10f, null, CELL_SIZE_PX);
+
+        assertEquals(1, result.getClusters().size());
+        MarkerClusterer.Cluster cluster = result.getClusters().get(0);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(cluster.getUserIds()));
+        assertEquals(49.89415, cluster.getCenter().latitude, 1e-9);
+        assertEquals(new HashSet<>(Arrays.asList("paris")), result.getSingleUserIds());
+    }
+
+    @Test
+    public void cluster_showsEveryUserAtHighZoom() {
+        Map<String, LatLng> positions = new HashMap<>();
+        positions.put("a", new LatLng(49.8941, 2.2957));
+        positions.put("b", new LatLng(49.8941, 2.2957));
+
+        MarkerClusterer.Result result = MarkerClusterer.cluster(positions, MarkerClusterer.MAX_CLUSTER_ZOOM, null, CELL_SIZE_PX);
+
+        assertTrue(result.getClusters().isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), result.getSingleUserIds());
+    }
+
+    @Test
+    public void cluster_skipsUsersFarOutsideViewport() {
+        Map<String, LatLng> positions = new HashMap<>();
+        positions.put("inside", new LatLng(49.9, 2.3));
+        positions.put("nearby", new LatLng(50.2, 2.3));    // within the extra half screen
+        positions.put("far", new LatLng(-33.8, 151.2));
+        LatLngBounds viewport = new LatLngBounds(new LatLng(49.5, 2.0), new LatLng(50.0, 2.5));
+
+        MarkerClusterer.Result result = MarkerClusterer.cluster(positions, 12f, viewport, CELL_SIZE_PX);
+
+        assertEquals(new HashSet<>(Arrays.asList("inside", "nearby")), result.getSingleUserIds());
+        assertTrue(result.getClusters().isEmpty());
+    }
+
+    @Test
+    public void cluster_keysAreStableWithinZoomLevel() {
+        Map<String, LatLng> positions = new HashMap<>();
+        positions.put("a", new LatLng(49.8941, 2.2957));
+        positions.put("b", new LatLng(49.8942, 2.2958));
+
+        String key = MarkerClusterer.cluster(positions, 10.2f, null, CELL_SIZE_PX).getClusters().get(0).getKey();
+        assertEquals(key, MarkerClusterer.cluster(positions, 10.8f, null, CELL_SIZE_PX).getClusters().get(0).getKey());
+    }
+
+    @Test
+    public void extendViewport_addsHalfScreenOnEachSide() {
+        LatLngBounds extended = MarkerClusterer.extendViewport(
+                new LatLngBounds(new LatLng(40, 10), new LatLng(50, 20)));
+
+        assertEquals(35, extended.southwest.latitude, 1e-9);
+        assertEquals(5, extended.southwest.longitude, 1e-9);
+        assertEquals(55, extended.northeast.latitude, 1e-9);
+        assertEquals(25, extended.northeast.longitude, 1e-9);
+    }
+
+    @Test
+    public void extendViewport_acrossAntimeridian() {
+        LatLngBounds extended = MarkerClusterer.extendViewport(
+                new LatLngBounds(new LatLng(-20, 170), new LatLng(-10, -170)));
+
+        assertEquals(160, extended.southwest.longitude, 1e-9);
+        assertEquals(-160, extended.northeast.longitude, 1e-9);
+        assertTrue(extended.contains(new LatLng(-15, 179.9)));
+        assertTrue(extended.contains(new LatLng(-15, -165)));
+        assertFalse(extended.contains(new LatLng(-15, 0)));
+    }
+
+    @Test
+    public void extendViewport_coversWholeWorldWhenWide() {
+        LatLngBounds extended = MarkerClusterer.extendViewport(
+                new LatLngBounds(new LatLng(-80, -100), new LatLng(80, 100)));
+
+        assertEquals(-90, extended.southwest.latitude, 1e-9);
+        assertEquals(-180, extended.southwest.longitude, 1e-9);
+        assertEquals(90, extended.northeast.latitude, 1e-9);
+        assertEquals(180, extended.northeast.longitude, 1e-9);
+        assertTrue(extended.contains(new LatLng(0, -180)));
+        assertTrue(extended.contains(new LatLng(0, 0)));
+        assertTrue(extended.contains(new LatLng(0, 179.999)));
+    }
+}
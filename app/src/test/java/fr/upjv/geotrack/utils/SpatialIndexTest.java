@@ -0,0 +1,133 @@
+package fr.upjv.geotrack.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SpatialIndexTest {
+    private static final double EARTH_RADIUS_M = 6371000;
+
+    // Haversine distance, the reference the brute-force checks sort by
+    private static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double latDistance = Math.toRadians(lat2 - lat1);
+        double lonDistance = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
+        return EARTH_RADIUS_M * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    @Test
+    public void withinRadius_returnsClosestFirst() {
+        SpatialIndex index = new SpatialIndex();
+        index.update("far", 49.9041, 2.2957);    // about 1.1 km
+        index.update("near", 49.8951, 2.2957);   // about 110 m
+        index.update("outside", 50.8941, 2.2957);
+
+        assertEquals(Arrays.asList("near", "far"), index.withinRadius(49.8941, 2.2957, 2000));
+        assertEquals(Arrays.asList("near"), index.withinRadius(49.8941, 2.2957, 500));
+    }
+
+    @Test
+    public void update_movesUserBetweenCells() {
+        SpatialIndex index = new SpatialIndex();
+        index.update("user", 49.8941, 2.2957);
+        index.update("user", 48.8566, 2.3522);
+
+        assertEquals(1, index.size());
+        assertTrue(index.withinRadius(49.8941, 2.2957, 1000).isEmpty());
+        assertEquals(Arrays.asList("user"), index.withinRadius(48.8566, 2.3522, 1000));
+    }
+
+    @Test
+    public void remove_dropsUser() {
+        SpatialIndex index = new SpatialIndex();
+        index.update("user", 49.8941, 2.2957);
+        index.remove("user");
+        index.remove("unknown");
+
+        assertEquals(0, index.size());
+        assertTrue(index.inBounds(-90, -180, 90, 180).isEmpty());
+    }
+
+    @Test
+    public void inBounds_keepsUsersInsideViewport() {
+        SpatialIndex index = new SpatialIndex();
+        index.update("inside", 49.9, 2.3);
+        index.update("north", 51.0, 2.3);
+        index.update("east", 49.9, 4.0);
+
+        assertEquals(Arrays.asList("inside"), index.inBounds(49.0, 2.0, 50.0, 3.0));
+    }
+
+    @Test
+    public void inBounds_acrossAntimeridian() {
+        SpatialIndex index = new SpatialIndex();
+        index.update("west", -17.0, 179.5);
+        index.update("east", -17.0, -179.5);
+        index.update("greenwich", -17.0, 0.0);
+
+        List<String> found = index.inBounds(-18.0, 179.0, -16.0, -179.0);
+        Collections.sort(found);
+        assertEquals(Arrays.asList("east", "west"), found);
+    }
+
+    @Test
+    public void withinRadius_acrossAntimeridianReturnsEachUserOnce() {
+        SpatialIndex index = new SpatialIndex();
+        index.update("same", 0.0, 179.99);      // about 1 km away
+        index.update("across", 0.0, -179.99);   // about 1.2 km away, on the other side
+
+        assertEquals(Arrays.asList("same", "across"), index.withinRadius(0.0, 179.999, 20000));
+    }
+
+    @Test
+    public void nearest_matchesBruteForce() {
+        SpatialIndex index = new SpatialIndex();
+        Map<String, double[]> positions = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            double latitude = 48 + random.nextDouble() * 4;
+            double longitude = 1 + random.nextDouble() * 4;
+            positions.put("user" + i, new double[]{latitude, longitude});
+            index.update("user" + i, latitude, longitude);
+        }
+
+        double latitude = 49.8941;
+        double longitude = 2.2957;
+        List<String> expected = new ArrayList<>(positions.keySet());
+        expected.sort((a, b) -> Double.compare(
+                distanceMeters(latitude, longitude, positions.get(a)[0], positions.get(a)[1]),
+                distanceMeters(latitude, longitude, positions.get(b)[0], positions.get(b)[1])));
+
+        assertEquals(expected.subList(0, 10), index.nearest(latitude, longitude, 10));
+    }
+
+    @Test
+    public void nearest_acrossAntimeridian() {
+        SpatialIndex index = new SpatialIndex();
+        index.update("across", 0.0, -179.99);  // about 2 km away, on the other side
+        index.update("sameSide", 0.0, 179.9);  // about 10 km away
+
+        assertEquals(Arrays.asList("across", "sameSide"), index.nearest(0.0, 179.99, 2));
+    }
+
+    @Test
+    public void nearest_returnsEveryUserWhenFewer() {
+        SpatialIndex index = new SpatialIndex();
+        index.update("a", 49.0, 2.0);
+        index.update("b", -33.0, 151.0);
+
+        assertEquals(Arrays.asList("a", "b"), index.nearest(49.0, 2.1, 5));
+        assertTrue(index.nearest(49.0, 2.1, 0).isEmpty());
+        assertTrue(new SpatialIndex().nearest(49.0, 2.1, 3).isEmpty());
+    }
+}
@@ -0,0 +1,90 @@
+package fr.upjv.geotrack.utils;
+
+import org.junit.Test;
+
+import fr.upjv.geotrack.models.Track;
+
+import static org.junit.Assert.*;
+
+public class TrackCodecTest {
+    // Coordinates are stored in 1e-6 degrees
+    private static final double PRECISION = 0.5e-6;
+
+    private static Track sampleTrack() {
+        Track track = new Track("user", "journey");
+        long time = 1700000000000L;
+        track.add(time, 49.8941234, 2.2957891);
+        track.add(time + 3000, 49.8942, 2.2959);
+        // Negative deltas, southern and western hemispheres
+        track.add(time + 5000, -33.8688197, -151.2092955);
+        track.add(time + 5001, 89.999999, 179.999999);
+        track.add(time + 86400000L, -90, -180);
+        return track;
+    }
+
+    private static Track decode(byte[] bytes) {
+        Track track = new Track("user", "journey");
+        TrackCodec.decode(bytes, track);
+        return track;
+    }
+
+    @Test
+    public void encode_roundTrips() {
+        Track track = sampleTrack();
+        Track decoded = decode(TrackCodec.encode(track));
+
+        assertEquals(track.size(), decoded.size());
+        for (int i = 0; i < track.size(); i++) {
+            assertEquals(track.getTimestamp(i), decoded.getTimestamp(i));
+            assertEquals(track.getLatitude(i), decoded.getLatitude(i), PRECISION);
+            assertEquals(track.getLongitude(i), decoded.getLongitude(i), PRECISION);
+        }
+    }
+
+    @Test
+    public void encode_rangeOnlyHoldsThosePoints() {
+        Track track = sampleTrack();
+        Track decoded = decode(TrackCodec.encode(track, 1, 3));
+
+        assertEquals(2, decoded.size());
+        assertEquals(track.getTimestamp(1), decoded.getTimestamp(0));
+        assertEquals(track.getLatitude(2), decoded.getLatitude(1), PRECISION);
+    }
+
+    @Test
+    public void encode_emptyTrack() {
+        assertEquals(0, decode(TrackCodec.encode(new Track("user", "journey"))).size());
+    }
+
+    @Test
+    public void decode_appendsToExistingPoints() {
+        Track track = new Track("user", "journey");
+        track.add(1000, 1, 1);
+        TrackCodec.decode(TrackCodec.encode(sampleTrack()), track);
+        assertEquals(1 + sampleTrack().size(), track.size());
+        assertEquals(1000, track.getTimestamp(0));
+    }
+
+    @Test
+    public void decode_ignoresMissingBytes() {
+        assertEquals(0, decode(null).size());
+        assertEquals(0, decode(new byte[0]).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsUnknownVersion() {
+        byte[] bytes = TrackCodec.encode(sampleTrack());
+        bytes[0] = 99;
+        decode(bytes);
+    }
+
+    @Test
+    public void encode_isCompact() {
+        Track track = new Track("user", "journey");
+        for (int i = 0; i < 1000; i++) {
+            track.add(1700000000000L + i * 5000L, 49.0 + i * 1e-5, 2.0 + i * 1e-5);
+        }
+        // A few bytes per point once the first absolute values are written
+        assertTrue(TrackCodec.encode(track).length < 1000 * 8);
+    }
+}
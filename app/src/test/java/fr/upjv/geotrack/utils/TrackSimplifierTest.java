@@ -0,0 +1,141 @@
+package fr.upjv.geotrack.utils;
+
+import org.junit.Test;
+
+import fr.upjv.geotrack.models.Track;
+
+import static org.junit.Assert.*;
+
+public class TrackSimplifierTest {
+    // About 11 m between two points along a meridian
+    private static final double STEP_DEGREES = 1e-4;
+
+    // Straight north for `count` points, as {latitudes, longitudes}
+    private static double[][] straightLine(int count) {
+        double[][] line = new double[2][count];
+        for (int i = 0; i < count; i++) {
+            line[0][i] = 49.0 + i * STEP_DEGREES;
+            line[1][i] = 2.0;
+        }
+        return line;
+    }
+
+    // North for 50 points, then east for 50 points: the corner is index 49
+    private static double[][] cornerLine() {
+        double[][] line = new double[2][100];
+        for (int i = 0; i < 50; i++) {
+            line[0][i] = 49.0 + i * STEP_DEGREES;
+            line[1][i] = 2.0;
+        }
+        for (int i = 1; i <= 50; i++) {
+            line[0][49 + i] = 49.0 + 49 * STEP_DEGREES;
+            line[1][49 + i] = 2.0 + i * STEP_DEGREES;
+        }
+        return line;
+    }
+
+    private static Track toTrack(double[][] line) {
+        Track track = new Track("user", "journey");
+        for (int i = 0; i < line[0].length; i++) {
+            track.add(i * 1000L, line[0][i], line[1][i]);
+        }
+        return track;
+    }
+
+    private static void assertSortedWithEnds(int[] indices, int count) {
+        assertEquals(0, indices[0]);
+        assertEquals(count - 1, indices[indices.length - 1]);
+        for (int i = 1; i < indices.length; i++) {
+            assertTrue(indices[i] > indices[i - 1]);
+        }
+    }
+
+    @Test
+    public void douglasPeucker_dropsStraightLinePoints() {
+        double[][] line = straightLine(100);
+        int[] kept = TrackSimplifier.douglasPeucker(line[0], line[1], 100, 1.0);
+        assertArrayEquals(new int[]{0, 99}, kept);
+    }
+
+    @Test
+    public void douglasPeucker_keepsCorner() {
+        double[][] line = cornerLine();
+        int[] kept = TrackSimplifier.douglasPeucker(line[0], line[1], 100, 5.0);
+        assertArrayEquals(new int[]{0, 49, 99}, kept);
+    }
+
+    @Test
+    public void douglasPeucker_keepsEveryPointWithoutTolerance() {
+        double[][] line = cornerLine();
+        int[] kept = TrackSimplifier.douglasPeucker(line[0], line[1], 100, 0);
+        assertEquals(100, kept.length);
+        assertSortedWithEnds(kept, 100);
+    }
+
+    @Test
+    public void douglasPeucker_handlesTinyTracks() {
+        assertEquals(0, TrackSimplifier.douglasPeucker(new double[0], new double[0], 0, 5.0).length);
+        assertArrayEquals(new int[]{0}, TrackSimplifier.douglasPeucker(new double[]{49}, new double[]{2}, 1, 5.0));
+        assertArrayEquals(new int[]{0, 1},
+                TrackSimplifier.douglasPeucker(new double[]{49, 49.1}, new double[]{2, 2}, 2, 5.0));
+    }
+
+    @Test
+    public void douglasPeucker_keepsZigzagAboveTolerance() {
+        // Points alternate about 22 m east and west of the line, far above a 5 m tolerance
+        double[][] line = straightLine(21);
+        for (int i = 1; i < 21; i += 2) {
+            line[1][i] += 3 * STEP_DEGREES;
+        }
+        int[] kept = TrackSimplifier.douglasPeucker(line[0], line[1], 21, 5.0);
+        assertEquals(21, kept.length);
+    }
+
+    @Test
+    public void visvalingamWhyatt_keepsTargetCount() {
+        double[][] line = cornerLine();
+        int[] kept = TrackSimplifier.visvalingamWhyatt(line[0], line[1], 100, 10);
+        assertEquals(10, kept.length);
+        assertSortedWithEnds(kept, 100);
+    }
+
+    @Test
+    public void visvalingamWhyatt_keepsCornerLast() {
+        double[][] line = cornerLine();
+        int[] kept = TrackSimplifier.visvalingamWhyatt(line[0], line[1], 100, 3);
+        assertArrayEquals(new int[]{0, 49, 99}, kept);
+    }
+
+    @Test
+    public void visvalingamWhyatt_keepsShortTracks() {
+        double[][] line = straightLine(5);
+        int[] kept = TrackSimplifier.visvalingamWhyatt(line[0], line[1], 5, 10);
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, kept);
+    }
+
+    @Test
+    public void visvalingamWhyatt_neverKeepsLessThanTwoPoints() {
+        double[][] line = straightLine(20);
+        int[] kept = TrackSimplifier.visvalingamWhyatt(line[0], line[1], 20, 0);
+        assertArrayEquals(new int[]{0, 19}, kept);
+    }
+
+    @Test
+    public void simplify_keepsTrackHeaderAndPoints() {
+        Track track = toTrack(cornerLine());
+        Track simplified = TrackSimplifier.simplify(track, 5.0);
+        assertEquals("user", simplified.getUserUUID());
+        assertEquals("journey", simplified.getJourneyId());
+        assertEquals(3, simplified.size());
+        assertEquals(track.getTimestamp(49), simplified.getTimestamp(1));
+        assertEquals(track.getLatitude(49), simplified.getLatitude(1), 0);
+        assertEquals(track.getLongitude(49), simplified.getLongitude(1), 0);
+    }
+
+    @Test
+    public void simplifyToCount_keepsAtMostTarget() {
+        Track simplified = TrackSimplifier.simplifyToCount(toTrack(cornerLine()), 25);
+        assertEquals(25, simplified.size());
+        assertTrue(simplified.isSortedByTime());
+    }
+}